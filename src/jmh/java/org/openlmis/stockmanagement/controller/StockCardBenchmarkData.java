@@ -0,0 +1,62 @@
+package org.openlmis.stockmanagement.controller;
+
+import org.openlmis.core.domain.Facility;
+import org.openlmis.core.domain.Product;
+import org.openlmis.stockmanagement.domain.*;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Builds stock cards with their entries, lots on hand and key/values, as loaded for the stock card endpoints.
+ */
+final class StockCardBenchmarkData {
+
+  private StockCardBenchmarkData() {
+  }
+
+  static StockCard stockCard(long id, int entryCount, int lotCount, Random random) {
+    Facility facility = new Facility();
+    facility.setId(1L);
+    Product product = new Product();
+    product.setId(id);
+    product.setCode("P" + id);
+    product.setPrimaryName("Product " + id);
+
+    StockCard card = StockCard.createZeroedStockCard(facility, product);
+    card.setId(id);
+    card.getKeyValues().add(new StockCardEntryKV("vvmstatus", "1", new Date(1000L)));
+
+    List<LotOnHand> lotsOnHand = new ArrayList<>(lotCount);
+    for (int i = 0; i < lotCount; i++) {
+      Lot lot = new Lot();
+      lot.setId(id * lotCount + i);
+      lot.setProduct(product);
+      lot.setLotCode("L" + i);
+      lot.setManufacturerName("Manufacturer");
+      lot.setExpirationDate(new Date(1000L + random.nextInt(1000000)));
+      LotOnHand lotOnHand = LotOnHand.createZeroedLotOnHand(lot, card);
+      lotOnHand.setId(lot.getId());
+      // every other lot is empty, and left out unless empty lots are included
+      lotOnHand.setQuantityOnHand(i % 2 == 0 ? 0L : (long) random.nextInt(1000));
+      lotOnHand.getKeyValues().add(new StockCardEntryKV("vvmstatus", "2", new Date(2000L)));
+      lotsOnHand.add(lotOnHand);
+    }
+    card.setLotsOnHand(lotsOnHand);
+
+    List<StockCardEntry> entries = new ArrayList<>(entryCount);
+    for (int i = 0; i < entryCount; i++) {
+      StockCardEntry entry = new StockCardEntry(card, StockCardEntryType.CREDIT, random.nextInt(100),
+          new Date(1000L + random.nextInt(1000000)), "REF" + i);
+      entry.setId(id * entryCount + i);
+      entry.setLotOnHand(lotCount == 0 ? null : lotsOnHand.get(i % lotCount));
+      entry.addKeyValue("vvmStatus", String.valueOf(random.nextInt(4)));
+      entries.add(entry);
+    }
+    card.setEntries(entries);
+
+    return card;
+  }
+}
@@ -0,0 +1,70 @@
+package org.openlmis.stockmanagement.controller;
+
+import org.openjdk.jmh.annotations.*;
+import org.openlmis.stockmanagement.domain.LotOnHand;
+import org.openlmis.stockmanagement.domain.StockCard;
+import org.openlmis.stockmanagement.domain.StockCardEntry;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how StockCardController filters the stock cards of a facility before responding: truncating entries to the
+ * requested number, and leaving out empty lots.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 3)
+@Fork(1)
+public class StockCardFilterBenchmark {
+
+  @Param({"100", "1000"})
+  private int cardCount;
+
+  @Param({"50"})
+  private int entriesPerCard;
+
+  @Param({"10"})
+  private int lotsPerCard;
+
+  @Param({"1"})
+  private int entryCount;
+
+  private StockCardController controller;
+
+  private List<StockCard> stockCards;
+
+  private List<List<StockCardEntry>> entries;
+
+  private List<List<LotOnHand>> lotsOnHand;
+
+  @Setup
+  public void setup() {
+    controller = new StockCardController();
+    Random random = new Random(42);
+    stockCards = new ArrayList<>(cardCount);
+    entries = new ArrayList<>(cardCount);
+    lotsOnHand = new ArrayList<>(cardCount);
+    for (int i = 0; i < cardCount; i++) {
+      StockCard card = StockCardBenchmarkData.stockCard(i, entriesPerCard, lotsPerCard, random);
+      stockCards.add(card);
+      entries.add(card.getEntries());
+      lotsOnHand.add(card.getLotsOnHand());
+    }
+  }
+
+  @Benchmark
+  public List<StockCard> filterEntries() {
+    // filtering replaces the lists of a card without changing them, so each invocation starts from the full lists
+    for (int i = 0; i < cardCount; i++) {
+      stockCards.get(i).setEntries(entries.get(i));
+      stockCards.get(i).setLotsOnHand(lotsOnHand.get(i));
+    }
+    controller.filterEntries(stockCards, entryCount, false);
+    return stockCards;
+  }
+}
@@ -0,0 +1,43 @@
+package org.openlmis.stockmanagement.controller;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import org.openjdk.jmh.annotations.*;
+import org.openlmis.stockmanagement.domain.StockCard;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the Jackson serialization of a stock card with a long history, as returned by the stock card endpoints.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 3)
+@Fork(1)
+public class StockCardSerializationBenchmark {
+
+  @Param({"100", "10000"})
+  private int entryCount;
+
+  @Param({"20"})
+  private int lotCount;
+
+  private ObjectWriter writer;
+
+  private StockCard stockCard;
+
+  @Setup
+  public void setup() {
+    writer = new ObjectMapper().writer();
+    stockCard = StockCardBenchmarkData.stockCard(1L, entryCount, lotCount, new Random(42));
+  }
+
+  @Benchmark
+  public byte[] serialize() throws JsonProcessingException {
+    return writer.writeValueAsBytes(stockCard);
+  }
+}
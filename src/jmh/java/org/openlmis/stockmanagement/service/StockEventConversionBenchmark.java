@@ -0,0 +1,83 @@
+package org.openlmis.stockmanagement.service;
+
+import org.openjdk.jmh.annotations.*;
+import org.openlmis.core.domain.Facility;
+import org.openlmis.core.domain.Product;
+import org.openlmis.core.domain.StockAdjustmentReason;
+import org.openlmis.stockmanagement.domain.StockCard;
+import org.openlmis.stockmanagement.domain.StockCardEntry;
+import org.openlmis.stockmanagement.dto.StockEvent;
+import org.openlmis.stockmanagement.dto.StockEventType;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the conversion of the stock events of a request to stock card entries, once their stock cards and reasons
+ * are resolved, as done by StockEventService for every event it processes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 3)
+@Fork(1)
+public class StockEventConversionBenchmark {
+
+  @Param({"100", "10000"})
+  private int eventCount;
+
+  @Param({"50"})
+  private int productCount;
+
+  private List<StockEvent> events;
+
+  private Map<String, StockCard> stockCards;
+
+  private StockAdjustmentReason reason;
+
+  @Setup
+  public void setup() {
+    Facility facility = new Facility();
+    facility.setId(1L);
+    stockCards = new HashMap<>();
+    for (int i = 0; i < productCount; i++) {
+      Product product = new Product();
+      product.setId((long) i);
+      product.setCode("P" + i);
+      stockCards.put(product.getCode(), StockCard.createZeroedStockCard(facility, product));
+    }
+    reason = new StockAdjustmentReason();
+    reason.setName("DAMAGED");
+    reason.setAdditive(false);
+
+    StockEventType[] types = StockEventType.values();
+    Random random = new Random(42);
+    events = new ArrayList<>(eventCount);
+    for (int i = 0; i < eventCount; i++) {
+      StockEvent event = new StockEvent();
+      event.setType(types[i % types.length]);
+      event.setFacilityId(2L);
+      event.setProductCode("P" + random.nextInt(productCount));
+      event.setQuantity((long) random.nextInt(100));
+      event.setReasonName(reason.getName());
+      event.setOccurred(new Date(1000L + random.nextInt(1000000)));
+      event.setReferenceNumber("REF" + i);
+      Map<String, String> customProps = new HashMap<>();
+      customProps.put("vvmStatus", String.valueOf(random.nextInt(4)));
+      customProps.put("expirationDate", "2020-01-01");
+      event.setCustomProps(customProps);
+      events.add(event);
+    }
+  }
+
+  @Benchmark
+  public List<StockCardEntry> toEntries() {
+    List<StockCardEntry> entries = new ArrayList<>(events.size());
+    for (StockEvent event : events) {
+      StockAdjustmentReason eventReason = StockEventType.ADJUSTMENT == event.getType() ? reason : null;
+      entries.add(StockEventService.toEntry(event, stockCards.get(event.getProductCode()), eventReason, null, 1L));
+    }
+    return entries;
+  }
+}
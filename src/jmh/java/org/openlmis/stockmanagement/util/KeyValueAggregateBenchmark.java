@@ -0,0 +1,83 @@
+package org.openlmis.stockmanagement.util;
+
+import org.apache.commons.collections.CollectionUtils;
+import org.apache.commons.collections.Predicate;
+import org.apache.commons.collections.Transformer;
+import org.apache.commons.collections.list.SetUniqueList;
+import org.openjdk.jmh.annotations.*;
+import org.openlmis.stockmanagement.domain.StockCardEntryKV;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares StockManagementUtils.getKeyValueAggregate with the select-per-key implementation it replaced, over the
+ * key/values of a stock card with a long history.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 3)
+@Fork(1)
+public class KeyValueAggregateBenchmark {
+
+  @Param({"10000", "100000"})
+  private int keyValueCount;
+
+  @Param({"10"})
+  private int keyCount;
+
+  private List<StockCardEntryKV> keyValues;
+
+  private StockCardEntryKVReduceStrategy strategy;
+
+  @Setup
+  public void setup() {
+    Random random = new Random(42);
+    keyValues = new ArrayList<>(keyValueCount);
+    for (int i = 0; i < keyValueCount; i++) {
+      keyValues.add(new StockCardEntryKV("key" + random.nextInt(keyCount), String.valueOf(i),
+          new Date(1000L + random.nextInt(1000000))));
+    }
+    strategy = new LatestSyncedStrategy();
+  }
+
+  @Benchmark
+  public Map<String, String> groupByKey() {
+    return StockManagementUtils.getKeyValueAggregate(keyValues, strategy);
+  }
+
+  @Benchmark
+  public Map<String, String> selectPerKey() {
+    return selectPerKey(keyValues, strategy);
+  }
+
+  // the implementation getKeyValueAggregate had before it grouped key/values in a single pass
+  private static Map<String, String> selectPerKey(List<StockCardEntryKV> keyValues,
+                                                  StockCardEntryKVReduceStrategy strategy) {
+    Map<String, String> returnMap = new HashMap<>();
+
+    Collection keys = CollectionUtils.collect(keyValues, new Transformer() {
+      @Override
+      public Object transform(Object o) {
+        return ((StockCardEntryKV) o).getKeyColumn();
+      }
+    });
+
+    SetUniqueList.decorate((List) keys);
+
+    for (final Object item : keys) {
+      List<StockCardEntryKV> subList = (List<StockCardEntryKV>) CollectionUtils.select(keyValues, new Predicate() {
+        @Override
+        public boolean evaluate(Object o) {
+          return ((StockCardEntryKV) o).getKeyColumn().equalsIgnoreCase((String) item);
+        }
+      });
+      StockCardEntryKV entry = strategy.reduce(subList);
+      returnMap.put(entry.getKeyColumn(), entry.getValueColumn());
+    }
+
+    return returnMap;
+  }
+}
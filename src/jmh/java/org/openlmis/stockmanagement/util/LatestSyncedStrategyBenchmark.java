@@ -0,0 +1,44 @@
+package org.openlmis.stockmanagement.util;
+
+import org.openjdk.jmh.annotations.*;
+import org.openlmis.stockmanagement.domain.StockCardEntryKV;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures LatestSyncedStrategy.reduce over the key/values of a single key, as reduced once per key of a stock card.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 3)
+@Fork(1)
+public class LatestSyncedStrategyBenchmark {
+
+  @Param({"10", "1000", "100000"})
+  private int keyValueCount;
+
+  private List<StockCardEntryKV> keyValues;
+
+  private StockCardEntryKVReduceStrategy strategy;
+
+  @Setup
+  public void setup() {
+    Random random = new Random(42);
+    keyValues = new ArrayList<>(keyValueCount);
+    for (int i = 0; i < keyValueCount; i++) {
+      keyValues.add(new StockCardEntryKV("vvmstatus", String.valueOf(i), new Date(1000L + random.nextInt(1000000))));
+    }
+    strategy = new LatestSyncedStrategy();
+  }
+
+  @Benchmark
+  public StockCardEntryKV reduce() {
+    return strategy.reduce(keyValues);
+  }
+}
@@ -10,39 +10,55 @@ package org.openlmis.stockmanagement.controller;
  * You should have received a copy of the GNU Affero General Public License along with this program.  If not, see http://www.gnu.org/licenses.  For additional information contact info@OpenLMIS.org. 
  */
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
 import com.wordnik.swagger.annotations.Api;
 import com.wordnik.swagger.annotations.ApiOperation;
 import lombok.NoArgsConstructor;
 import org.apache.log4j.Logger;
 import org.openlmis.core.domain.*;
-import org.openlmis.core.domain.StockAdjustmentReason;
 import org.openlmis.core.repository.FacilityRepository;
 import org.openlmis.core.repository.StockAdjustmentReasonRepository;
 import org.openlmis.core.service.*;
 import org.openlmis.core.web.OpenLmisResponse;
 import org.openlmis.core.web.controller.BaseController;
 import org.openlmis.stockmanagement.domain.*;
+import org.openlmis.stockmanagement.dto.StockCardChanges;
+import org.openlmis.stockmanagement.dto.StockCardSummary;
 import org.openlmis.stockmanagement.dto.StockEvent;
-import org.openlmis.stockmanagement.dto.StockEventType;
+import org.openlmis.stockmanagement.dto.StockOnHandAggregate;
+import org.openlmis.stockmanagement.metrics.MetricRegistry;
 import org.openlmis.stockmanagement.repository.LotRepository;
 import org.openlmis.stockmanagement.repository.StockCardRepository;
 import org.openlmis.stockmanagement.service.StockCardService;
+import org.openlmis.stockmanagement.service.StockEventIngestionService;
+import org.openlmis.stockmanagement.service.StockEventProcessingException;
+import org.openlmis.stockmanagement.service.StockEventQueueFullException;
+import org.openlmis.stockmanagement.service.StockEventService;
+import org.openlmis.stockmanagement.util.PageCursor;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Controller;
-import org.springframework.transaction.annotation.Transactional;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.*;
 
 import static com.google.common.collect.Iterables.any;
 import static org.openlmis.core.utils.RightUtil.with;
+import static org.openlmis.stockmanagement.metrics.RequestMetricsInterceptor.ENTRIES_RETURNED;
 import static org.springframework.web.bind.annotation.RequestMethod.GET;
 import static org.springframework.web.bind.annotation.RequestMethod.POST;
 
@@ -58,6 +74,22 @@ public class StockCardController extends BaseController
 {
     private static Logger logger = Logger.getLogger(StockCardController.class);
 
+    private static final int DEFAULT_PAGE_SIZE = 100;
+
+    private static final int MAX_PAGE_SIZE = 1000;
+
+    private static final int MAX_AGGREGATE_FACILITIES = 1000;
+
+    private static final String STOCK_EVENT_JOB_TOO_LARGE = "Too many stock events to queue at once";
+
+    private static final String INVALID_ORDER_BY = "orderBy must be occurred or recorded";
+
+    static final String NDJSON = "application/x-ndjson";
+
+    private static final String ACCEPT_NDJSON = "Accept=" + NDJSON;
+
+    static final int STREAM_PAGE_SIZE = 200;
+
     @Autowired
     private FacilityRepository facilityRepository;
 
@@ -85,6 +117,22 @@ public class StockCardController extends BaseController
     @Autowired
     private StockCardService service;
 
+    @Autowired
+    private StockEventService stockEventService;
+
+    @Autowired
+    private StockEventIngestionService ingestionService;
+
+    @Autowired
+    private MetricRegistry metrics;
+
+    @Autowired
+    @Qualifier("stockManagementObjectMapper")
+    private ObjectMapper objectMapper;
+
+    // writes stock cards one at a time, leaving the response stream open
+    private ObjectWriter streamWriter;
+
     StockCardController(MessageService messageService,
                         FacilityRepository facilityRepository,
                         ProductService productService,
@@ -94,7 +142,11 @@ public class StockCardController extends BaseController
                         ProgramProductService programProductService,
                         ProgramService programService,
                         RoleRightsService roleRightsService,
-                        StockCardService service) {
+                        StockCardService service,
+                        StockEventService stockEventService,
+                        StockEventIngestionService ingestionService,
+                        MetricRegistry metrics,
+                        ObjectMapper objectMapper) {
         this.messageService = Objects.requireNonNull(messageService);
         this.facilityRepository = Objects.requireNonNull(facilityRepository);
         this.productService = Objects.requireNonNull(productService);
@@ -105,6 +157,10 @@ public class StockCardController extends BaseController
         this.programService = Objects.requireNonNull(programService);
         this.roleRightsService = Objects.requireNonNull(roleRightsService);
         this.service = Objects.requireNonNull(service);
+        this.stockEventService = Objects.requireNonNull(stockEventService);
+        this.ingestionService = Objects.requireNonNull(ingestionService);
+        this.metrics = Objects.requireNonNull(metrics);
+        this.objectMapper = Objects.requireNonNull(objectMapper);
     }
 
     @RequestMapping(value = "facilities/{facilityId}/products/{productCode}/stockCard", method = GET, headers = ACCEPT_JSON)
@@ -122,11 +178,18 @@ public class StockCardController extends BaseController
                     "<ul>" +
                     "<li><strong>entries</strong> (Integer, optional, default = 1) - Number of stock card entries to " +
                     "get in the result.</li>" +
+                    "<li><strong>orderBy</strong> (String, optional, default = recorded) - Order of the stock " +
+                    "card entries, newest first: occurred, by the day they occurred, or recorded, by the time they " +
+                    "were recorded.</li>" +
+                    "<li><strong>asOf</strong> (Date, optional, yyyy-MM-dd) - Get the stock on hand at the end of this " +
+                    "day instead of the current one, leaving out stock card entries.</li>" +
                     "</ul>")
     public ResponseEntity getStockCard(@PathVariable Long facilityId,
                                        @PathVariable String productCode,
                                        @RequestParam(value = "entries", defaultValue = "1")Integer entries,
                                        @RequestParam(value = "includeEmptyLots", required = false, defaultValue = "false") boolean includeEmptyLots,
+                                       @RequestParam(value = "orderBy", required = false) String orderBy,
+                                       @RequestParam(value = "asOf", required = false) @DateTimeFormat(pattern = "yyyy-MM-dd") Date asOf,
                                        HttpServletRequest request)
     {
         // Check permissions
@@ -136,10 +199,18 @@ public class StockCardController extends BaseController
             return OpenLmisResponse.error(messageService.message("error.permission.stock.card.view"), HttpStatus.FORBIDDEN);
         }
 
-        StockCard stockCard = stockCardRepository.getStockCardByFacilityAndProduct(facilityId, productCode);
+        StockCardEntryOrder entryOrder = entryOrder(orderBy);
+        if (null == entryOrder) {
+            return OpenLmisResponse.error(INVALID_ORDER_BY, HttpStatus.BAD_REQUEST);
+        }
+
+        StockCard stockCard = stockCardRepository.getStockCardByFacilityAndProduct(facilityId, productCode,
+                entryLimit(entries), entryOrder);
         if (stockCard != null)
         {
+            if (null != asOf) service.applyBalancesAsOf(Collections.singletonList(stockCard), asOf);
             filterEntries(stockCard, entries, includeEmptyLots);
+            recordEntriesReturned(stockCard);
             return OpenLmisResponse.response(stockCard);
         }
         else {
@@ -163,10 +234,17 @@ public class StockCardController extends BaseController
                     "<ul>" +
                     "<li><strong>entries</strong> (Integer, optional, default = 1) - Number of stock card entries to " +
                     "get in the result.</li>" +
+                    "<li><strong>orderBy</strong> (String, optional, default = recorded) - Order of the stock " +
+                    "card entries, newest first: occurred, by the day they occurred, or recorded, by the time they " +
+                    "were recorded.</li>" +
+                    "<li><strong>asOf</strong> (Date, optional, yyyy-MM-dd) - Get the stock on hand at the end of this " +
+                    "day instead of the current one, leaving out stock card entries.</li>" +
                     "</ul>")
     public ResponseEntity getStockCardById(@PathVariable Long facilityId, @PathVariable Long stockCardId,
                                            @RequestParam(value = "entries", defaultValue = "1")Integer entries,
                                            @RequestParam(value = "includeEmptyLots", required = false, defaultValue = "false") boolean includeEmptyLots,
+                                           @RequestParam(value = "orderBy", required = false) String orderBy,
+                                           @RequestParam(value = "asOf", required = false) @DateTimeFormat(pattern = "yyyy-MM-dd") Date asOf,
                                            HttpServletRequest request)
     {
         Long userId = loggedInUserId(request);
@@ -177,9 +255,16 @@ public class StockCardController extends BaseController
             return OpenLmisResponse.error(messageService.message("error.permission.stock.card.view"), HttpStatus.FORBIDDEN);
         }
 
-        StockCard stockCard = service.getStockCardById(facilityId, stockCardId);
+        StockCardEntryOrder entryOrder = entryOrder(orderBy);
+        if (null == entryOrder) {
+            return OpenLmisResponse.error(INVALID_ORDER_BY, HttpStatus.BAD_REQUEST);
+        }
+
+        StockCard stockCard = service.getStockCardById(facilityId, stockCardId, entryLimit(entries), entryOrder);
         if (stockCard != null) {
+            if (null != asOf) service.applyBalancesAsOf(Collections.singletonList(stockCard), asOf);
             filterEntries(stockCard, entries, includeEmptyLots);
+            recordEntriesReturned(stockCard);
             return OpenLmisResponse.response(stockCard);
         }
         else {
@@ -204,34 +289,53 @@ public class StockCardController extends BaseController
                     "get in the result.</li>" +
                     "<li><strong>countOnly</strong> (Boolean, optional, default = false) - Get only the count of " +
                     "stock cards.</li>" +
+                    "<li><strong>pageSize</strong> (Integer, optional) - Get only this many stock cards, ordered by " +
+                    "id. The response then has a nextCursor when more stock cards may follow.</li>" +
+                    "<li><strong>after</strong> (String, optional) - nextCursor of the previous page, to get the " +
+                    "stock cards that follow it.</li>" +
+                    "<li><strong>orderBy</strong> (String, optional, default = recorded) - Order of the stock " +
+                    "card entries, newest first: occurred, by the day they occurred, or recorded, by the time they " +
+                    "were recorded.</li>" +
+                    "<li><strong>asOf</strong> (Date, optional, yyyy-MM-dd) - Get the stock on hand at the end of this " +
+                    "day instead of the current one, leaving out stock card entries.</li>" +
                     "</ul>")
     public ResponseEntity getStockCards(@PathVariable Long facilityId,
                                         @RequestParam(value = "entries", defaultValue = "1") Integer entries,
                                         @RequestParam(value = "countOnly", defaultValue = "false") Boolean countOnly,
                                         @RequestParam(value = "includeEmptyLots", required = false, defaultValue = "false") boolean includeEmptyLots,
+                                        @RequestParam(value = "pageSize", required = false) Integer pageSize,
+                                        @RequestParam(value = "after", required = false) String after,
+                                        @RequestParam(value = "orderBy", required = false) String orderBy,
+                                        @RequestParam(value = "asOf", required = false) @DateTimeFormat(pattern = "yyyy-MM-dd") Date asOf,
                                         HttpServletRequest request)
     {
         Long userId = loggedInUserId(request);
-        List<StockCard> stockCards = service.getStockCards(facilityId);
-
-        if (stockCards != null) {
-            // Filter stock cards based on permission, put into permitted stock cards
-            List<StockCard> permittedStockCards = new ArrayList<>();
-            for (StockCard stockCard : stockCards) {
-                List<Right> rights = roleRightsService.getRightsForUserFacilityAndProductCode(userId, facilityId, stockCard.getProduct().getCode());
-                if (any(rights, with("VIEW_STOCK_ON_HAND"))) {
-                    permittedStockCards.add(stockCard);
-                }
-            }
 
-            // If countOnly specified, then only return count of permitted stock cards
-            if (countOnly) {
-                return OpenLmisResponse.response("count", permittedStockCards.size());
-            }
+        // If countOnly specified, then only return count of permitted stock cards
+        if (countOnly) {
+            return OpenLmisResponse.response("count", service.countStockCards(facilityId, userId, "VIEW_STOCK_ON_HAND"));
+        }
+
+        StockCardEntryOrder entryOrder = entryOrder(orderBy);
+        if (null == entryOrder) {
+            return OpenLmisResponse.error(INVALID_ORDER_BY, HttpStatus.BAD_REQUEST);
+        }
+
+        if (null != pageSize || null != after) {
+            return getStockCardsPage(facilityId, userId, entries, includeEmptyLots, pageSize, after, entryOrder, asOf);
+        }
+
+        // Stock cards are filtered based on permission by the query itself
+        List<StockCard> permittedStockCards = service.getStockCards(facilityId, userId, "VIEW_STOCK_ON_HAND",
+                entryLimit(entries), entryOrder);
+
+        if (permittedStockCards != null) {
+            if (null != asOf) service.applyBalancesAsOf(permittedStockCards, asOf);
 
             // Filter the permitted stock cards based on other criteria
             for (StockCard stockCard : permittedStockCards) {
                 filterEntries(stockCard, entries, includeEmptyLots);
+                recordEntriesReturned(stockCard);
             }
 
             return OpenLmisResponse.response("stockCards", permittedStockCards);
@@ -241,6 +345,216 @@ public class StockCardController extends BaseController
         }
     }
 
+    @RequestMapping(value = "facilities/{facilityId}/stockCards", method = GET, headers = ACCEPT_NDJSON)
+    @ApiOperation(value = "Stream all stock cards for the specified facility.",
+            notes = "Streams all stock card information, by facility, as newline delimited JSON with one stock card " +
+                    "per line, ordered by id. Stock cards are read and written a page at a time, so any number of " +
+                    "stock cards can be exported." +
+                    "<p>Stock cards without view permissions are left out." +
+                    "<p>" +
+                    "<p>Path parameters (required):" +
+                    "<ul>" +
+                    "<li><strong>facilityId</strong> (Long) - facility for the stock cards.</li>" +
+                    "</ul>" +
+                    "<p>" +
+                    "<p>Request parameters:" +
+                    "<ul>" +
+                    "<li><strong>entries</strong> (Integer, optional, default = 1) - Number of stock card entries to " +
+                    "get in the result.</li>" +
+                    "<li><strong>orderBy</strong> (String, optional, default = recorded) - Order of the stock " +
+                    "card entries, newest first: occurred, by the day they occurred, or recorded, by the time they " +
+                    "were recorded.</li>" +
+                    "</ul>")
+    public void streamStockCards(@PathVariable Long facilityId,
+                                 @RequestParam(value = "entries", defaultValue = "1") Integer entries,
+                                 @RequestParam(value = "includeEmptyLots", required = false, defaultValue = "false") boolean includeEmptyLots,
+                                 @RequestParam(value = "orderBy", required = false) String orderBy,
+                                 HttpServletRequest request,
+                                 HttpServletResponse response) throws IOException
+    {
+        Long userId = loggedInUserId(request);
+
+        StockCardEntryOrder entryOrder = entryOrder(orderBy);
+        if (null == entryOrder) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, INVALID_ORDER_BY);
+            return;
+        }
+
+        response.setContentType(NDJSON);
+        response.setCharacterEncoding("UTF-8");
+        OutputStream out = response.getOutputStream();
+
+        // Only one page of stock cards is held in memory at a time
+        Long afterId = null;
+        List<StockCard> page;
+        do {
+            page = service.getStockCardsPage(facilityId, userId, "VIEW_STOCK_ON_HAND", afterId, STREAM_PAGE_SIZE,
+                    entryLimit(entries), entryOrder);
+            for (StockCard stockCard : page) {
+                filterEntries(stockCard, entries, includeEmptyLots);
+                recordEntriesReturned(stockCard);
+                streamWriter().writeValue(out, stockCard);
+                out.write('\n');
+                afterId = stockCard.getId();
+            }
+            out.flush();
+        } while (page.size() == STREAM_PAGE_SIZE);
+    }
+
+    @RequestMapping(value = "facilities/{facilityId}/stockCards/{stockCardId}/entries", method = GET, headers = ACCEPT_JSON)
+    @ApiOperation(value = "Get a page of the entries of the specified stock card.",
+            notes = "Gets stock card entries, newest first, by facility and stock card id." +
+                    "<p>If stock card does not exist, will return 404 Not Found." +
+                    "<p>If no view permissions are found for this stock card, will return 403 Forbidden." +
+                    "<p>" +
+                    "<p>Path parameters (required):" +
+                    "<ul>" +
+                    "<li><strong>facilityId</strong> (Long) - facility for the stock card.</li>" +
+                    "<li><strong>stockCardId</strong> (Long) - the specified stock card.</li>" +
+                    "</ul>" +
+                    "<p>" +
+                    "<p>Request parameters:" +
+                    "<ul>" +
+                    "<li><strong>pageSize</strong> (Integer, optional, default = 100) - Number of entries to get. " +
+                    "The response has a nextCursor when more entries may follow.</li>" +
+                    "<li><strong>after</strong> (String, optional) - nextCursor of the previous page, to get the " +
+                    "entries that follow it.</li>" +
+                    "<li><strong>orderBy</strong> (String, optional, default = recorded) - Order of the stock " +
+                    "card entries, newest first: occurred, by the day they occurred, or recorded, by the time they " +
+                    "were recorded.</li>" +
+                    "</ul>")
+    public ResponseEntity getStockCardEntries(@PathVariable Long facilityId, @PathVariable Long stockCardId,
+                                              @RequestParam(value = "pageSize", required = false) Integer pageSize,
+                                              @RequestParam(value = "after", required = false) String after,
+                                              @RequestParam(value = "orderBy", required = false) String orderBy,
+                                              HttpServletRequest request)
+    {
+        Long userId = loggedInUserId(request);
+        Product product = stockCardRepository.getProductByStockCardId(stockCardId);
+        if (null == product) {
+            return OpenLmisResponse.error("The specified stock card does not exist." , HttpStatus.NOT_FOUND);
+        }
+
+        List<Right> rights = roleRightsService.getRightsForUserFacilityAndProductCode(userId, facilityId, product.getCode());
+        if (!any(rights, with("VIEW_STOCK_ON_HAND"))) {
+            return OpenLmisResponse.error(messageService.message("error.permission.stock.card.view"), HttpStatus.FORBIDDEN);
+        }
+
+        int size = null == pageSize ? DEFAULT_PAGE_SIZE : pageSize;
+        if (size < 1 || size > MAX_PAGE_SIZE) {
+            return OpenLmisResponse.error("pageSize must be between 1 and " + MAX_PAGE_SIZE, HttpStatus.BAD_REQUEST);
+        }
+
+        StockCardEntryOrder entryOrder = entryOrder(orderBy);
+        if (null == entryOrder) {
+            return OpenLmisResponse.error(INVALID_ORDER_BY, HttpStatus.BAD_REQUEST);
+        }
+
+        Long beforeId;
+        try {
+            beforeId = PageCursor.decode(after);
+        } catch (IllegalArgumentException e) {
+            return OpenLmisResponse.error(e.getMessage(), HttpStatus.BAD_REQUEST);
+        }
+
+        List<StockCardEntry> stockCardEntries = service.getStockCardEntriesPage(facilityId, stockCardId, beforeId, size,
+                entryOrder);
+        metrics.recordValue(ENTRIES_RETURNED, stockCardEntries.size());
+        return pageResponse("entries", stockCardEntries, size,
+                stockCardEntries.isEmpty() ? null : stockCardEntries.get(stockCardEntries.size() - 1).getId());
+    }
+
+    @RequestMapping(value = "facilities/{facilityId}/stockCards/summary", method = GET, headers = ACCEPT_JSON)
+    @ApiOperation(value = "Get the stock on hand of all products at the specified facility.",
+            notes = "Gets the product code and stock on hand of each stock card of a facility, with the code, " +
+                    "expiration date and stock on hand of its lots, ordered by expiration date. Stock card " +
+                    "entries and other details are left out, so this is the lighter way to get the stock on hand " +
+                    "of a facility." +
+                    "<p>Stock cards without view permissions are left out." +
+                    "<p>" +
+                    "<p>Path parameters (required):" +
+                    "<ul>" +
+                    "<li><strong>facilityId</strong> (Long) - facility for the stock cards.</li>" +
+                    "</ul>" +
+                    "<p>" +
+                    "<p>Request parameters:" +
+                    "<ul>" +
+                    "<li><strong>includeEmptyLots</strong> (Boolean, optional, default = false) - Include the lots " +
+                    "without stock on hand.</li>" +
+                    "</ul>")
+    public ResponseEntity getStockCardSummaries(@PathVariable Long facilityId,
+                                                @RequestParam(value = "includeEmptyLots", required = false, defaultValue = "false") boolean includeEmptyLots,
+                                                HttpServletRequest request)
+    {
+        Long userId = loggedInUserId(request);
+
+        // Stock cards are filtered based on permission by the query itself
+        List<StockCardSummary> summaries = service.getStockCardSummaries(facilityId, userId, "VIEW_STOCK_ON_HAND",
+                includeEmptyLots);
+        return OpenLmisResponse.response("stockCards", summaries);
+    }
+
+    @RequestMapping(value = "facilities/stockCards/stockOnHand", method = GET, headers = ACCEPT_JSON)
+    @ApiOperation(value = "Get the stock on hand of products at many facilities.",
+            notes = "Gets the stock on hand of each product stocked at the given facilities: in total, at each " +
+                    "facility, and by lot across the facilities. All facilities are read with a single query." +
+                    "<p>Stock cards without view permissions at their facility are left out." +
+                    "<p>" +
+                    "<p>Request parameters:" +
+                    "<ul>" +
+                    "<li><strong>facilityIds</strong> (Long list, required) - facilities of the stock cards, at " +
+                    "most " + MAX_AGGREGATE_FACILITIES + ".</li>" +
+                    "<li><strong>productCodes</strong> (String list, optional) - Get only the stock on hand of " +
+                    "these products.</li>" +
+                    "</ul>")
+    public ResponseEntity getStockOnHandAggregates(@RequestParam(value = "facilityIds") Set<Long> facilityIds,
+                                                   @RequestParam(value = "productCodes", required = false) Set<String> productCodes,
+                                                   HttpServletRequest request)
+    {
+        if (facilityIds.isEmpty() || facilityIds.size() > MAX_AGGREGATE_FACILITIES) {
+            return OpenLmisResponse.error("facilityIds must have between 1 and " + MAX_AGGREGATE_FACILITIES +
+                    " facilities", HttpStatus.BAD_REQUEST);
+        }
+        if (null != productCodes && productCodes.isEmpty()) productCodes = null;
+
+        Long userId = loggedInUserId(request);
+
+        // Stock cards are filtered based on permission by the query itself
+        List<StockOnHandAggregate> aggregates = service.getStockOnHandAggregates(facilityIds, productCodes, userId,
+                "VIEW_STOCK_ON_HAND");
+        return OpenLmisResponse.response("products", aggregates);
+    }
+
+    @RequestMapping(value = "facilities/{facilityId}/stockCards/changes", method = GET, headers = ACCEPT_JSON)
+    @ApiOperation(value = "Get the stock data of the specified facility changed since a watermark.",
+            notes = "Gets the stock cards, lots on hand and stock card entries of a facility that changed after " +
+                    "the given watermark, and the watermark to pass on the next sync. Stock cards, lots on hand and " +
+                    "entries are returned without their other details." +
+                    "<p>Stock cards without view permissions, and their lots on hand and entries, are left out." +
+                    "<p>" +
+                    "<p>Path parameters (required):" +
+                    "<ul>" +
+                    "<li><strong>facilityId</strong> (Long) - facility for the stock cards.</li>" +
+                    "</ul>" +
+                    "<p>" +
+                    "<p>Request parameters:" +
+                    "<ul>" +
+                    "<li><strong>since</strong> (Long, optional) - watermark of the previous sync. Without it, all " +
+                    "stock data of the facility is returned.</li>" +
+                    "</ul>")
+    public ResponseEntity getStockCardChanges(@PathVariable Long facilityId,
+                                              @RequestParam(value = "since", required = false) Long since,
+                                              HttpServletRequest request)
+    {
+        if (null != since && since < 0) {
+            return OpenLmisResponse.error("since must not be negative", HttpStatus.BAD_REQUEST);
+        }
+
+        Long userId = loggedInUserId(request);
+        StockCardChanges changes = service.getChanges(facilityId, userId, "VIEW_STOCK_ON_HAND", since);
+        return OpenLmisResponse.response("changes", changes);
+    }
+
     @RequestMapping(value = "facilities/{facilityId}/stockCards", method = POST, headers = ACCEPT_JSON)
     @ApiOperation(value="Update stock cards at a facility.",
             notes = "Updates stock cards at a facility. This is done by providing a list of stock events." +
@@ -257,15 +571,20 @@ public class StockCardController extends BaseController
                     "<p>" +
                     "<p>Stock event properties" +
                     "<ul>" +
+                    "<li><strong>eventId</strong> (String, optional) - id given to the event by the client, unique " +
+                    "at the facility. An event with an id recorded before is skipped, so that requests can be " +
+                    "retried safely.</li>" +
                     "<li><strong>type</strong> (String, required) - type code of stock event (choices are ISSUE, " +
-                    "RECEIPT, ADJUSTMENT).</li>" +
+                    "RECEIPT, ADJUSTMENT, PHYSICAL_INVENTORY).</li>" +
                     "<li><strong>facilityId</strong> (Long, required for ISSUE/RECEIPT types) - facility id where" +
                     "stock is going to/coming from.</li>" +
                     "<li><strong>productCode</strong> (String, required) - product code of the stock being " +
                     "processed.</li>" +
                     "<li><strong>quantity</strong> (Long, required) - quantity of stock being processed. Specify as a " +
                     "positive number. For ISSUE, this amount is decremented, for RECEIPT, this amount is incremented, " +
-                    "for ADJUSTMENT, it depends on the adjustment reason.</li>" +
+                    "for ADJUSTMENT, it depends on the adjustment reason. For PHYSICAL_INVENTORY, this is the amount " +
+                    "counted, of the lot if one is given and of the product otherwise, and the stock card records " +
+                    "the difference to the stock on hand.</li>" +
                     "<li><strong>reasonName</strong> (String, required for ADJUSTMENT types) - reason code for the " +
                     "adjustment.</li>" +
                     "<li><strong>lotId</strong> (Long, optional) - lot id of a particular lot that will be processed. " +
@@ -314,100 +633,135 @@ public class StockCardController extends BaseController
                     "    }\n" +
                     "]\n" +
                     "</code></pre>")
-    @Transactional
     public ResponseEntity processStock(@PathVariable long facilityId,
                                        @RequestBody(required = true) List<StockEvent> events,
                                        HttpServletRequest request) {
 
-        // verify we have something to do and facility exists
+        // verify we have something to do
         if(null == events || 0 >= events.size()) return OpenLmisResponse.success(messageService.message("success.stock.event.none"));
-        if(null == facilityRepository.getById(facilityId))
-            return OpenLmisResponse.error(messageService.message("error.facility.unknown"), HttpStatus.BAD_REQUEST);
 
-        // convert events to entries
         Long userId = loggedInUserId(request);
-        List<StockCardEntry> entries = new ArrayList<>();
-        for(StockEvent event : events) {
-            logger.debug("Processing event: " + event);
-
-            // validate event
-            if(!event.isValid())
-                return OpenLmisResponse.error(messageService.message("error.stock.event.invalid"), HttpStatus.BAD_REQUEST);
-
-            // validate product
-            String productCode = event.getProductCode();
-            if(null == productService.getByCode(productCode))
-                return OpenLmisResponse.error(messageService.message("error.product.unknown"), HttpStatus.BAD_REQUEST);
-
-            // validate reason
-            StockAdjustmentReason reason = null;
-            if (StockEventType.ADJUSTMENT == event.getType()) {
-                reason = stockAdjustmentReasonRepository.getAdjustmentReasonByName(
-                        event.getReasonName());
-                if(null == reason)
-                    return OpenLmisResponse.error(messageService.message("error.stockadjustmentreason.unknown"),
-                            HttpStatus.BAD_REQUEST);
-            }
+        try {
+            stockEventService.processStockEvents(facilityId, userId, events);
+        } catch (StockEventProcessingException e) {
+            return OpenLmisResponse.error(messageService.message(e.getMessageKey()), e.getStatus());
+        }
 
-            // validate permissions
-            List<Right> rights = roleRightsService.getRightsForUserFacilityAndProductCode(userId, facilityId, productCode);
-            if (!any(rights, with("MANAGE_STOCK"))) {
-                return OpenLmisResponse.error(messageService.message("error.permission.stock.card.manage"), HttpStatus.FORBIDDEN);
-            }
+        return OpenLmisResponse.success(messageService.message("success.stock.adjusted"));
+    }
 
-            // get or create stock card
-            StockCard card = service.getOrCreateStockCard(facilityId, productCode);
-            if(null == card)
-                return OpenLmisResponse.error(messageService.message("error.stock.card.get"), HttpStatus.INTERNAL_SERVER_ERROR);
-
-            // get or create lot, if lot is being used
-            StringBuilder str = new StringBuilder();
-            Long lotId = event.getLotId();
-            Lot lotObj = event.getLot();
-            LotOnHand lotOnHand = service.getLotOnHand(lotId, lotObj, productCode, card, str);
-            if (!str.toString().equals("")) {
-                return OpenLmisResponse.error(messageService.message(str.toString()), HttpStatus.BAD_REQUEST);
-            }
+    @RequestMapping(value = "facilities/{facilityId}/stockCards/jobs", method = POST, headers = ACCEPT_JSON)
+    @ApiOperation(value="Queue stock events of a facility for processing.",
+            notes = "Queues stock events for asynchronous processing, taking the same list of stock events as " +
+                    "updating stock cards. The events are checked for being well formed and stored, and 202 Accepted " +
+                    "is returned with the job that will process them. Permissions are checked before the job is " +
+                    "queued, products and reasons when it is processed." +
+                    "<p>If the body is too large or has too many events, will return 413 Request Entity Too Large." +
+                    "<p>If the queue is full, will return 503 Service Unavailable with a Retry-After header." +
+                    "<p>Path parameters (required):" +
+                    "<ul>" +
+                    "<li><strong>facilityId</strong> (Long) - facility for the stock cards in which to update.</li>" +
+                    "</ul>")
+    public ResponseEntity submitStockEvents(@PathVariable long facilityId,
+                                            @RequestBody(required = true) String body,
+                                            HttpServletRequest request) {
+        if (ingestionService.isBodyTooLong(body)) {
+            return OpenLmisResponse.error(STOCK_EVENT_JOB_TOO_LARGE, HttpStatus.REQUEST_ENTITY_TOO_LARGE);
+        }
 
-            // create entry from event
-            long quantity = event.getPositiveOrNegativeQuantity(reason);
-
-            StockCardEntryType entryType = StockCardEntryType.ADJUSTMENT;
-            switch (event.getType()) {
-                case ISSUE: entryType = StockCardEntryType.DEBIT;
-                    break;
-                case RECEIPT: entryType = StockCardEntryType.CREDIT;
-                    break;
-                case ADJUSTMENT: entryType = StockCardEntryType.ADJUSTMENT;
-                    break;
-                default: break;
-            }
+        List<StockEvent> events;
+        try {
+            events = StockEventIngestionService.parseEvents(objectMapper, body);
+        } catch (IllegalArgumentException e) {
+            return OpenLmisResponse.error(messageService.message("error.stock.event.invalid"), HttpStatus.BAD_REQUEST);
+        }
+        if (events.isEmpty()) return OpenLmisResponse.success(messageService.message("success.stock.event.none"));
+        if (ingestionService.hasTooManyEvents(events.size())) {
+            return OpenLmisResponse.error(STOCK_EVENT_JOB_TOO_LARGE, HttpStatus.REQUEST_ENTITY_TOO_LARGE);
+        }
 
-            Date occurred = event.getOccurred();
-            String referenceNumber  = event.getReferenceNumber();
-
-            StockCardEntry entry = new StockCardEntry(card, entryType, quantity, occurred, referenceNumber);
-            entry.setAdjustmentReason(reason);
-            entry.setLotOnHand(lotOnHand);
-            Map<String, String> customProps = event.getCustomProps();
-            if (null != customProps) {
-                for (String k : customProps.keySet()) {
-                    entry.addKeyValue(k, customProps.get(k));
-                }
-            }
-            entry.setCreatedBy(userId);
-            entry.setModifiedBy(userId);
-            entries.add(entry);
+        Long userId = loggedInUserId(request);
+        try {
+            stockEventService.validateEnvelope(facilityId, userId, events);
+        } catch (StockEventProcessingException e) {
+            return OpenLmisResponse.error(messageService.message(e.getMessageKey()), e.getStatus());
         }
 
-        service.addStockCardEntries(entries);
-        return OpenLmisResponse.success(messageService.message("success.stock.adjusted"));
+        StockEventJob job;
+        try {
+            job = ingestionService.submit(facilityId, userId, body, events.size());
+        } catch (StockEventQueueFullException e) {
+            ResponseEntity<OpenLmisResponse> error = OpenLmisResponse.error(e.getMessage(),
+                    HttpStatus.SERVICE_UNAVAILABLE);
+            HttpHeaders headers = new HttpHeaders();
+            headers.set("Retry-After", String.valueOf(e.getRetryAfterSeconds()));
+            return new ResponseEntity<>(error.getBody(), headers, HttpStatus.SERVICE_UNAVAILABLE);
+        }
+
+        return new ResponseEntity<>(OpenLmisResponse.response("job", job).getBody(), HttpStatus.ACCEPTED);
     }
 
+    @RequestMapping(value = "facilities/{facilityId}/stockCards/jobs/{jobId}", method = GET, headers = ACCEPT_JSON)
+    @ApiOperation(value = "Get the status of a stock event job.",
+            notes = "Gets a job queued by the current user, by facility and job id. The status of the job is one of " +
+                    "QUEUED, PROCESSING, SUCCEEDED or FAILED, the latter with an error message." +
+                    "<p>If the facility does not have the job, or another user queued it, will return 404 Not Found." +
+                    "<p>" +
+                    "<p>Path parameters (required):" +
+                    "<ul>" +
+                    "<li><strong>facilityId</strong> (Long) - facility of the job.</li>" +
+                    "<li><strong>jobId</strong> (Long) - the job.</li>" +
+                    "</ul>")
+    public ResponseEntity getStockEventJob(@PathVariable Long facilityId, @PathVariable Long jobId,
+                                           HttpServletRequest request)
+    {
+        Long userId = loggedInUserId(request);
+        StockEventJob job = ingestionService.getJob(jobId);
+        if (null == job || !facilityId.equals(job.getFacilityId()) || !userId.equals(job.getUserId())) {
+            return OpenLmisResponse.error("The specified job does not exist.", HttpStatus.NOT_FOUND);
+        }
+
+        return OpenLmisResponse.response("job", job);
+    }
 
+    //Gets a page of the permitted stock cards of a facility, following the stock card the cursor points to
+    private ResponseEntity getStockCardsPage(Long facilityId, Long userId, Integer entries, boolean includeEmptyLots,
+                                             Integer pageSize, String after, StockCardEntryOrder entryOrder,
+                                             Date asOf)
+    {
+        int size = null == pageSize ? DEFAULT_PAGE_SIZE : pageSize;
+        if (size < 1 || size > MAX_PAGE_SIZE) {
+            return OpenLmisResponse.error("pageSize must be between 1 and " + MAX_PAGE_SIZE, HttpStatus.BAD_REQUEST);
+        }
+
+        Long afterId;
+        try {
+            afterId = PageCursor.decode(after);
+        } catch (IllegalArgumentException e) {
+            return OpenLmisResponse.error(e.getMessage(), HttpStatus.BAD_REQUEST);
+        }
+
+        List<StockCard> stockCards = service.getStockCardsPage(facilityId, userId, "VIEW_STOCK_ON_HAND", afterId, size,
+                entryLimit(entries), entryOrder);
+        if (null != asOf) service.applyBalancesAsOf(stockCards, asOf);
+        filterEntries(stockCards, entries, includeEmptyLots);
+        for (StockCard stockCard : stockCards) {
+            recordEntriesReturned(stockCard);
+        }
+        return pageResponse("stockCards", stockCards, size,
+                stockCards.isEmpty() ? null : stockCards.get(stockCards.size() - 1).getId());
+    }
+
+    //A full page may be followed by more items, so it carries a cursor pointing after its last item
+    private static ResponseEntity<OpenLmisResponse> pageResponse(String key, List<?> page, int pageSize, Long lastId)
+    {
+        ResponseEntity<OpenLmisResponse> response = OpenLmisResponse.response(key, page);
+        response.getBody().addData("nextCursor", page.size() < pageSize ? null : PageCursor.encode(lastId));
+        return response;
+    }
 
     //Calls filterEntries() for each specified stockCard
-    private void filterEntries(List<StockCard> stockCards, Integer entryCount, boolean includeEmptyLots)
+    void filterEntries(List<StockCard> stockCards, Integer entryCount, boolean includeEmptyLots)
     {
         for (StockCard stockCard : stockCards) {
             filterEntries(stockCard, entryCount, includeEmptyLots);
@@ -422,12 +776,42 @@ public class StockCardController extends BaseController
             removeEmptyLotsFromStockCard(stockCard);
     }
 
+    //Records the number of entries of a stock card returned to the client
+    private void recordEntriesReturned(StockCard stockCard) {
+        List<StockCardEntry> entries = stockCard.getEntries();
+        metrics.recordValue(ENTRIES_RETURNED, null == entries ? 0 : entries.size());
+    }
+
+    //Number of entries to load per stock card, matching what truncateStockCardEntries() keeps
+    private static Integer entryLimit(Integer entryCount) {
+        return entryCount < 0 ? 1 : entryCount;
+    }
+
+    //The converter's mapper without closing the stream it writes to, so that stock cards can follow each other
+    private ObjectWriter streamWriter() {
+        if (null == streamWriter) {
+            streamWriter = objectMapper.copy().configure(JsonGenerator.Feature.AUTO_CLOSE_TARGET, false).writer();
+        }
+        return streamWriter;
+    }
+
+    //The order of the orderBy request parameter, recorded when not given, or null if it names no order
+    private static StockCardEntryOrder entryOrder(String orderBy) {
+        if (null == orderBy) return StockCardEntryOrder.RECORDED;
+
+        for (StockCardEntryOrder order : StockCardEntryOrder.values()) {
+            if (order.name().equalsIgnoreCase(orderBy)) return order;
+        }
+        return null;
+    }
+
     //Filter stockCard.entries such that it contains only the first entryCount number of items
     private void truncateStockCardEntries(StockCard stockCard, Integer entryCount) {
         List<StockCardEntry> entries = stockCard.getEntries();
         if (entries != null) {
             if (entryCount < 0) {
-                stockCard.setEntries(entries.subList(0, 1));
+                // entries may be empty, e.g. when only the balance as of a date was asked for
+                stockCard.setEntries(entries.subList(0, Math.min(1, entries.size())));
             } else if (entryCount < entries.size()) {
                 stockCard.setEntries(entries.subList(0, entryCount));
             }
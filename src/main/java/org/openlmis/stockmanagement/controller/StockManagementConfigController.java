@@ -1,6 +1,7 @@
 package org.openlmis.stockmanagement.controller;
 
 
+import com.google.common.cache.CacheStats;
 import com.wordnik.swagger.annotations.Api;
 import com.wordnik.swagger.annotations.ApiOperation;
 import org.apache.commons.lang3.StringUtils;
@@ -8,15 +9,24 @@ import org.openlmis.core.domain.StockAdjustmentReason;
 import org.openlmis.core.service.StockAdjustmentReasonService;
 import org.openlmis.core.web.controller.BaseController;
 import org.openlmis.core.web.OpenLmisResponse;
+import org.openlmis.stockmanagement.metrics.InMemoryMetricRegistry;
+import org.openlmis.stockmanagement.metrics.MetricRegistry;
+import org.openlmis.stockmanagement.metrics.MetricStatistics;
+import org.openlmis.stockmanagement.repository.LotRepository;
+import org.openlmis.stockmanagement.service.ProductCache;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
+import org.springframework.security.access.prepost.PreAuthorize;
 import org.springframework.stereotype.Controller;
 import org.springframework.transaction.annotation.Transactional;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 
 import static org.springframework.web.bind.annotation.RequestMethod.GET;
 
@@ -28,6 +38,15 @@ public class StockManagementConfigController extends BaseController {
   @Autowired
   StockAdjustmentReasonService service;
 
+  @Autowired
+  LotRepository lotRepository;
+
+  @Autowired
+  ProductCache productCache;
+
+  @Autowired
+  MetricRegistry metrics;
+
   @Transactional
   @RequestMapping(value = "adjustmentReasons", method = GET, headers = ACCEPT_JSON)
   @ApiOperation(value = "Get information about all stock adjustment reasons from the system.",
@@ -59,4 +78,74 @@ public class StockManagementConfigController extends BaseController {
       return OpenLmisResponse.error("Adjustment reasons do not exist.", HttpStatus.NOT_FOUND);
     }
   }
+
+  @RequestMapping(value = "cacheStats", method = GET, headers = ACCEPT_JSON)
+  @PreAuthorize("@permissionEvaluator.hasPermission(principal,'MANAGE_SETTING')")
+  @ApiOperation(value = "Get hit and miss counts of the stock management reference data caches.",
+      notes = "Gets, for the lot cache and the product caches by code and by id, the counts of hits, misses and evictions since the " +
+              "application started." +
+              "<p>If no right to manage settings is found, will return 403 Forbidden.")
+  public ResponseEntity getCacheStats()
+  {
+    Map<String, Object> stats = new LinkedHashMap<>();
+    stats.put("lots", toMap(lotRepository.getLotCacheStats()));
+    stats.put("productsByCode", toMap(productCache.getByCodeStats()));
+    stats.put("productsById", toMap(productCache.getByIdStats()));
+    return OpenLmisResponse.response("cacheStats", stats);
+  }
+
+  @RequestMapping(value = "metrics", method = GET, headers = ACCEPT_JSON)
+  @PreAuthorize("@permissionEvaluator.hasPermission(principal,'MANAGE_SETTING')")
+  @ApiOperation(value = "Get the stock management metrics recorded since the application started.",
+      notes = "Gets the stock management timers, in nanoseconds, counters and value distributions, by name.  Timers " +
+              "and distributions have their count, total, mean, maximum and upper bounds of their 50th, 95th and " +
+              "99th percentiles." +
+              "<p>If no right to manage settings is found, will return 403 Forbidden." +
+              "<p>If metrics are not kept in memory, but shipped to a monitoring system, will return 404 Not Found.")
+  public ResponseEntity getMetrics()
+  {
+    if (!(metrics instanceof InMemoryMetricRegistry)) {
+      return OpenLmisResponse.error("Metrics are not kept in memory.", HttpStatus.NOT_FOUND);
+    }
+    InMemoryMetricRegistry registry = (InMemoryMetricRegistry) metrics;
+
+    Map<String, Object> timers = new TreeMap<>();
+    Map<String, Object> counters = new TreeMap<>();
+    Map<String, Object> distributions = new TreeMap<>();
+    for (String name : registry.getNames()) {
+      MetricStatistics timer = registry.getTimer(name);
+      if (null != timer) timers.put(name, toMap(timer));
+      long counter = registry.getCounter(name);
+      if (0 != counter) counters.put(name, counter);
+      MetricStatistics distribution = registry.getDistribution(name);
+      if (null != distribution) distributions.put(name, toMap(distribution));
+    }
+
+    Map<String, Object> snapshot = new LinkedHashMap<>();
+    snapshot.put("timers", timers);
+    snapshot.put("counters", counters);
+    snapshot.put("distributions", distributions);
+    return OpenLmisResponse.response("metrics", snapshot);
+  }
+
+  private static Map<String, Object> toMap(MetricStatistics statistics) {
+    Map<String, Object> map = new LinkedHashMap<>();
+    map.put("count", statistics.getCount());
+    map.put("total", statistics.getTotal());
+    map.put("mean", statistics.getMean());
+    map.put("max", statistics.getMax());
+    map.put("p50", statistics.getPercentile(50));
+    map.put("p95", statistics.getPercentile(95));
+    map.put("p99", statistics.getPercentile(99));
+    return map;
+  }
+
+  private static Map<String, Object> toMap(CacheStats cacheStats) {
+    Map<String, Object> map = new LinkedHashMap<>();
+    map.put("hitCount", cacheStats.hitCount());
+    map.put("missCount", cacheStats.missCount());
+    map.put("hitRate", cacheStats.hitRate());
+    map.put("evictionCount", cacheStats.evictionCount());
+    return map;
+  }
 }
@@ -0,0 +1,16 @@
+package org.openlmis.stockmanagement.domain;
+
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * The balance of a stock card, and of one of its lots on hand if any, as read in bulk.
+ */
+@Data
+@NoArgsConstructor
+public class StockCardBalanceRow {
+    private Long stockCardId;
+    private Long totalQuantityOnHand;
+    private Long lotOnHandId;
+    private Long lotQuantityOnHand;
+}
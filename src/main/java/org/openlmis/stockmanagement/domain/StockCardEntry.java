@@ -37,6 +37,10 @@ public class StockCardEntry extends BaseModel {
   @JsonIgnore
   private List<StockCardEntryKV> keyValues;
 
+  // id the client gave the stock event recorded by this entry, not persisted with the entry
+  @JsonIgnore
+  private String eventId;
+
   public StockCardEntry(StockCard card, StockCardEntryType type, long quantity, Date occurred, String referenceNumber) {
     this.stockCard = Objects.requireNonNull(card);
     this.type = Objects.requireNonNull(type);
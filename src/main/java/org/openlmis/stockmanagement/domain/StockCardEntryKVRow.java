@@ -0,0 +1,18 @@
+package org.openlmis.stockmanagement.domain;
+
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+import lombok.NoArgsConstructor;
+
+/**
+ * A stock card entry key/value as read in bulk, carrying the ids of the entry, stock card and lot on hand it
+ * belongs to so that it can be attached to each of them.
+ */
+@Data
+@NoArgsConstructor
+@EqualsAndHashCode(callSuper=true)
+public class StockCardEntryKVRow extends StockCardEntryKV {
+    private Long stockCardEntryId;
+    private Long stockCardId;
+    private Long lotOnHandId;
+}
@@ -0,0 +1,11 @@
+package org.openlmis.stockmanagement.domain;
+
+/**
+ * Orders in which the entries of a stock card are returned, newest first.
+ */
+public enum StockCardEntryOrder {
+  // by the day the entry is effective: the day it occurred, or the day it was created if it has no occurred date
+  OCCURRED,
+  // by the time the entry was created
+  RECORDED
+}
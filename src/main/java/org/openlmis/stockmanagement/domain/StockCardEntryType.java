@@ -3,5 +3,7 @@ package org.openlmis.stockmanagement.domain;
 public enum StockCardEntryType {
   DEBIT,
   CREDIT,
-  ADJUSTMENT
+  ADJUSTMENT,
+  // quantity is the counted quantity until the entry is added, and the difference to the balance counted after
+  PHYSICAL_COUNT
 }
@@ -0,0 +1,21 @@
+package org.openlmis.stockmanagement.domain;
+
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.Date;
+
+/**
+ * The product code and balance of a stock card, and the code, expiration date and balance of one of its lots on hand
+ * if any, as read in bulk.
+ */
+@Data
+@NoArgsConstructor
+public class StockCardSummaryRow {
+    private Long stockCardId;
+    private String productCode;
+    private Long totalQuantityOnHand;
+    private String lotCode;
+    private Date lotExpirationDate;
+    private Long lotQuantityOnHand;
+}
@@ -0,0 +1,49 @@
+package org.openlmis.stockmanagement.domain;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+import lombok.NoArgsConstructor;
+import org.openlmis.core.domain.BaseModel;
+
+import java.util.Date;
+import java.util.Objects;
+
+/**
+ * Stock events of a facility submitted for asynchronous processing, and how far their processing got.
+ */
+@Data
+@NoArgsConstructor
+@EqualsAndHashCode(callSuper=false)
+@JsonIgnoreProperties(ignoreUnknown=true)
+public class StockEventJob extends BaseModel {
+
+  private Long facilityId;
+
+  private Long userId;
+
+  private StockEventJobStatus status;
+
+  // the stock events as submitted, a JSON array
+  @JsonIgnore
+  private String events;
+
+  private Integer eventCount;
+
+  private String errorMessage;
+
+  private Date startedDate;
+
+  private Date completedDate;
+
+  public StockEventJob(Long facilityId, Long userId, String events, int eventCount) {
+    this.facilityId = Objects.requireNonNull(facilityId);
+    this.userId = userId;
+    this.events = Objects.requireNonNull(events);
+    this.eventCount = eventCount;
+    this.status = StockEventJobStatus.QUEUED;
+    setCreatedBy(userId);
+    setModifiedBy(userId);
+  }
+}
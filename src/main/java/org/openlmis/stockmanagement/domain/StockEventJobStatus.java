@@ -0,0 +1,8 @@
+package org.openlmis.stockmanagement.domain;
+
+public enum StockEventJobStatus {
+  QUEUED,
+  PROCESSING,
+  SUCCEEDED,
+  FAILED
+}
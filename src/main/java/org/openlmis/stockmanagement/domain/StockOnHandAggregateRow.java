@@ -0,0 +1,26 @@
+package org.openlmis.stockmanagement.domain;
+
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.Date;
+
+/**
+ * The stock on hand of a product at a facility, of a product at many facilities, or of a lot of a product at many
+ * facilities, as read by a single grouped query.  The level tells which one it is: FACILITY, PRODUCT or LOT.
+ */
+@Data
+@NoArgsConstructor
+public class StockOnHandAggregateRow {
+    public static final String FACILITY = "FACILITY";
+    public static final String PRODUCT = "PRODUCT";
+    public static final String LOT = "LOT";
+
+    private String productCode;
+    private String level;
+    private Long facilityId;
+    private String lotCode;
+    private Date lotExpirationDate;
+    private Long totalQuantityOnHand;
+    private Long lotQuantityOnHand;
+}
@@ -0,0 +1,33 @@
+/*
+ * This program is part of the OpenLMIS logistics management information system platform software.
+ * Copyright © 2013 VillageReach
+ *
+ * This program is free software: you can redistribute it and/or modify it under the terms of the GNU Affero General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Affero General Public License for more details.
+ * You should have received a copy of the GNU Affero General Public License along with this program.  If not, see http://www.gnu.org/licenses.  For additional information contact info@OpenLMIS.org. 
+ */
+
+package org.openlmis.stockmanagement.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import org.openlmis.stockmanagement.domain.LotOnHand;
+import org.openlmis.stockmanagement.domain.StockCard;
+import org.openlmis.stockmanagement.domain.StockCardEntry;
+
+import java.util.List;
+
+/**
+ * The stock cards, lots on hand and entries of a facility changed since a watermark, without their other details.
+ * Passing the new watermark on the next sync gets the changes that follow these.
+ */
+@Data
+@AllArgsConstructor
+public class StockCardChanges {
+
+  private long watermark;
+  private List<StockCard> stockCards;
+  private List<LotOnHand> lotsOnHand;
+  private List<StockCardEntry> entries;
+}
@@ -27,6 +27,8 @@ import java.util.Map;
 @JsonIgnoreProperties(ignoreUnknown=true)
 public class StockEvent {
 
+  // optional id given by the client, identifying the event among all events of the facility
+  private String eventId;
   private StockEventType type;
   private Long facilityId;
   private String productCode;
@@ -42,6 +44,7 @@ public class StockEvent {
   private Map<String, String> customProps;
 
   public StockEvent() {
+    eventId = null;
     facilityId = null;
     productCode = null;
     occurred = null;
@@ -68,7 +71,7 @@ public class StockEvent {
    * @return true if valid, false otherwise
    */
   public boolean isValid() {
-    return isValidAdjustment() || isValidIssue() || isValidReceipt();
+    return isValidAdjustment() || isValidIssue() || isValidReceipt() || isValidPhysicalInventory();
   }
 
   private boolean isValidProductAndQuantity() {
@@ -95,6 +98,17 @@ public class StockEvent {
             hasFacility();
   }
 
+  public boolean isValidPhysicalInventory() {
+    // Quantity is the quantity counted, not a change
+    return isValidProductAndQuantity() &&
+            StockEventType.PHYSICAL_INVENTORY == type &&
+            quantity >= 0;
+  }
+
+  public boolean hasEventId() {
+    return !StringUtils.isBlank(eventId);
+  }
+
   public boolean hasLot() {
     //TODO
     return true;
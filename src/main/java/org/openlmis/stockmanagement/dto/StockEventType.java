@@ -3,5 +3,6 @@ package org.openlmis.stockmanagement.dto;
 public enum StockEventType {
     ISSUE,
     RECEIPT,
-    ADJUSTMENT
+    ADJUSTMENT,
+    PHYSICAL_INVENTORY
 }
@@ -0,0 +1,85 @@
+package org.openlmis.stockmanagement.metrics;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps metrics in memory, from the start of the application.  This is the default registry, declared as the
+ * metricRegistry bean of the stock management context, and the one tests record to.  Deployments that ship metrics to
+ * a monitoring system replace it by declaring their own metricRegistry bean.
+ */
+public class InMemoryMetricRegistry implements MetricRegistry {
+
+  private final ConcurrentMap<String, MetricStatistics> timers = new ConcurrentHashMap<>();
+
+  private final ConcurrentMap<String, AtomicLong> counters = new ConcurrentHashMap<>();
+
+  private final ConcurrentMap<String, MetricStatistics> distributions = new ConcurrentHashMap<>();
+
+  @Override
+  public void recordTime(String name, long nanos) {
+    statistics(timers, name).record(nanos);
+  }
+
+  @Override
+  public void increment(String name, long amount) {
+    AtomicLong counter = counters.get(name);
+    if (null == counter) {
+      AtomicLong created = new AtomicLong();
+      counter = counters.putIfAbsent(name, created);
+      if (null == counter) counter = created;
+    }
+    counter.addAndGet(amount);
+  }
+
+  @Override
+  public void recordValue(String name, long value) {
+    statistics(distributions, name).record(value);
+  }
+
+  /**
+   * @return the timings of the named timer, in nanoseconds, or null if it was never recorded.
+   */
+  public MetricStatistics getTimer(String name) {
+    return timers.get(name);
+  }
+
+  /**
+   * @return the value of the named counter, 0 if it was never incremented.
+   */
+  public long getCounter(String name) {
+    AtomicLong counter = counters.get(name);
+    return null == counter ? 0 : counter.get();
+  }
+
+  /**
+   * @return the values of the named distribution, or null if none was recorded.
+   */
+  public MetricStatistics getDistribution(String name) {
+    return distributions.get(name);
+  }
+
+  /**
+   * @return the names of all metrics recorded, sorted.
+   */
+  public Set<String> getNames() {
+    Set<String> names = new TreeSet<>(timers.keySet());
+    names.addAll(counters.keySet());
+    names.addAll(distributions.keySet());
+    return Collections.unmodifiableSet(names);
+  }
+
+  private static MetricStatistics statistics(ConcurrentMap<String, MetricStatistics> metrics, String name) {
+    MetricStatistics statistics = metrics.get(name);
+    if (null == statistics) {
+      MetricStatistics created = new MetricStatistics();
+      statistics = metrics.putIfAbsent(name, created);
+      if (null == statistics) statistics = created;
+    }
+    return statistics;
+  }
+}
@@ -0,0 +1,34 @@
+package org.openlmis.stockmanagement.metrics;
+
+import org.apache.ibatis.plugin.Interceptor;
+import org.apache.ibatis.session.SqlSessionFactory;
+import org.springframework.beans.BeansException;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+
+import java.util.Objects;
+
+/**
+ * Adds a MyBatis interceptor to the session factory that the mappers of all modules share, as the factory is set up
+ * outside of this module.  Declared in applicationContext-stock-management.xml.
+ */
+public class MapperInterceptorRegistrar implements BeanPostProcessor {
+
+  private final Interceptor interceptor;
+
+  public MapperInterceptorRegistrar(Interceptor interceptor) {
+    this.interceptor = Objects.requireNonNull(interceptor);
+  }
+
+  @Override
+  public Object postProcessBeforeInitialization(Object bean, String beanName) throws BeansException {
+    return bean;
+  }
+
+  @Override
+  public Object postProcessAfterInitialization(Object bean, String beanName) throws BeansException {
+    if (bean instanceof SqlSessionFactory) {
+      ((SqlSessionFactory) bean).getConfiguration().addInterceptor(interceptor);
+    }
+    return bean;
+  }
+}
@@ -0,0 +1,206 @@
+package org.openlmis.stockmanagement.metrics;
+
+import org.apache.ibatis.executor.statement.StatementHandler;
+import org.apache.ibatis.mapping.BoundSql;
+import org.apache.ibatis.mapping.MappedStatement;
+import org.apache.ibatis.mapping.ParameterMapping;
+import org.apache.ibatis.plugin.*;
+import org.apache.ibatis.reflection.MetaObject;
+import org.apache.ibatis.reflection.SystemMetaObject;
+import org.apache.ibatis.session.ResultHandler;
+import org.apache.log4j.Logger;
+import org.openlmis.stockmanagement.repository.mapper.LotMapper;
+import org.openlmis.stockmanagement.repository.mapper.StockCardMapper;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import java.sql.Statement;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Profiles the SQL statements run by StockCardMapper and LotMapper, by mapper method: the number of statements, their
+ * latency and the rows they read or write.  Statements are profiled where they are executed, so the nested selects of
+ * result maps are profiled as well, and the latency of a statement leaves out the nested selects it triggers.  The
+ * statements run are also counted by thread, so that a request can tell which statements it ran how many times.
+ * <p>
+ * Statements slower than the threshold, nested selects included, are logged with their SQL and the names of their
+ * bound parameters, leaving out the values.
+ */
+@Intercepts({
+    @Signature(type = StatementHandler.class, method = "query", args = {Statement.class, ResultHandler.class}),
+    @Signature(type = StatementHandler.class, method = "update", args = {Statement.class})
+})
+public class MapperStatementProfiler implements Interceptor {
+
+  public static final String STATEMENTS = "stockmanagement.sql.statements.";
+
+  public static final String LATENCY = "stockmanagement.sql.latency.";
+
+  public static final String ROWS = "stockmanagement.sql.rows.";
+
+  private static final String FOREACH_PARAMETER = "__frch_";
+
+  private static final String[] MAPPERS = {StockCardMapper.class.getName(), LotMapper.class.getName()};
+
+  private static final ThreadLocal<ThreadStatements> THREAD_STATEMENTS = new ThreadLocal<ThreadStatements>() {
+    @Override
+    protected ThreadStatements initialValue() {
+      return new ThreadStatements();
+    }
+  };
+
+  private static Logger logger = Logger.getLogger(MapperStatementProfiler.class);
+
+  private final MetricRegistry metrics;
+
+  private long slowStatementNanos = TimeUnit.MILLISECONDS.toNanos(500);
+
+  @Autowired
+  public MapperStatementProfiler(MetricRegistry metrics) {
+    this.metrics = Objects.requireNonNull(metrics);
+  }
+
+  /**
+   * Statements running for longer than this are logged.
+   */
+  public void setSlowStatementMillis(long slowStatementMillis) {
+    this.slowStatementNanos = TimeUnit.MILLISECONDS.toNanos(slowStatementMillis);
+  }
+
+  /**
+   * @return the number of mapper statements the current thread has run so far.  The difference between two calls is
+   * the number of statements run in between.
+   */
+  public static long getThreadStatementCount() {
+    return THREAD_STATEMENTS.get().count;
+  }
+
+  /**
+   * @return the number of times the current thread ran each mapper statement since the last call to
+   * {@link #clearThreadInvocations()}, by statement name.
+   */
+  public static Map<String, Long> getThreadInvocations() {
+    Map<String, Long> invocations = new TreeMap<>();
+    for (Map.Entry<String, long[]> statement : THREAD_STATEMENTS.get().invocations.entrySet()) {
+      invocations.put(statement.getKey(), statement.getValue()[0]);
+    }
+    return invocations;
+  }
+
+  public static void clearThreadInvocations() {
+    THREAD_STATEMENTS.get().invocations.clear();
+  }
+
+  @Override
+  public Object intercept(Invocation invocation) throws Throwable {
+    String name = statementName(mappedStatement(invocation.getTarget()).getId());
+    if (null == name) return invocation.proceed();
+
+    ThreadStatements statements = THREAD_STATEMENTS.get();
+    statements.invoked(name);
+    long nestedNanosBefore = statements.nestedNanos;
+    long start = System.nanoTime();
+    Object result = null;
+    try {
+      result = invocation.proceed();
+      return result;
+    } finally {
+      long nanos = System.nanoTime() - start;
+      long nestedNanos = statements.nestedNanos - nestedNanosBefore;
+      statements.nestedNanos = nestedNanosBefore + nanos;
+
+      long rows = rowCount(result);
+      metrics.increment(STATEMENTS + name, 1);
+      metrics.recordTime(LATENCY + name, nanos - nestedNanos);
+      if (rows >= 0) metrics.recordValue(ROWS + name, rows);
+      if (nanos >= slowStatementNanos) {
+        BoundSql boundSql = ((StatementHandler) invocation.getTarget()).getBoundSql();
+        logger.warn(String.format("Slow statement %s: %d ms, %d ms of them in nested selects, %d rows: %s %s", name,
+            TimeUnit.NANOSECONDS.toMillis(nanos), TimeUnit.NANOSECONDS.toMillis(nestedNanos), rows,
+            boundSql.getSql().replaceAll("\\s+", " ").trim(), redactedParameters(boundSql)));
+      }
+    }
+  }
+
+  @Override
+  public Object plugin(Object target) {
+    return Plugin.wrap(target, this);
+  }
+
+  @Override
+  public void setProperties(Properties properties) {
+  }
+
+  /**
+   * @return the statement id without its package, like StockCardMapper.getEntries, for the statements of the stock
+   * management mappers, or null for other statements.
+   */
+  static String statementName(String statementId) {
+    for (String mapper : MAPPERS) {
+      if (statementId.startsWith(mapper + ".")) {
+        return statementId.substring(mapper.lastIndexOf('.') + 1);
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @return the names of the bound parameters, in order, with their values replaced by ?.  The items of a foreach
+   * are named once, with their number.
+   */
+  static String redactedParameters(BoundSql boundSql) {
+    Map<String, Integer> parameters = new LinkedHashMap<>();
+    for (ParameterMapping parameter : boundSql.getParameterMappings()) {
+      String name = parameter.getProperty();
+      if (name.startsWith(FOREACH_PARAMETER)) {
+        name = name.substring(FOREACH_PARAMETER.length(), name.lastIndexOf('_')) + "[]";
+      }
+      Integer count = parameters.get(name);
+      parameters.put(name, null == count ? 1 : count + 1);
+    }
+
+    StringBuilder redacted = new StringBuilder("[");
+    for (Map.Entry<String, Integer> parameter : parameters.entrySet()) {
+      if (redacted.length() > 1) redacted.append(", ");
+      redacted.append(parameter.getKey()).append("=?");
+      if (parameter.getValue() > 1) redacted.append(" x").append(parameter.getValue());
+    }
+    return redacted.append("]").toString();
+  }
+
+  // queries return the rows they read, updates the number of rows they wrote
+  private static long rowCount(Object result) {
+    if (result instanceof Collection) return ((Collection) result).size();
+    if (result instanceof Number) return ((Number) result).longValue();
+    return -1;
+  }
+
+  // statement handlers are routing handlers, whose delegate holds the mapped statement, possibly wrapped by plugins
+  static MappedStatement mappedStatement(Object statementHandler) {
+    MetaObject handler = SystemMetaObject.forObject(statementHandler);
+    while (handler.hasGetter("h")) {
+      handler = SystemMetaObject.forObject(handler.getValue("h.target"));
+    }
+    return (MappedStatement) handler.getValue("delegate.mappedStatement");
+  }
+
+  private static class ThreadStatements {
+
+    private long count;
+
+    // total time of the statements run so far, from which a statement tells the time of its nested selects
+    private long nestedNanos;
+
+    private final Map<String, long[]> invocations = new HashMap<>();
+
+    private void invoked(String name) {
+      count++;
+      long[] invocationCount = invocations.get(name);
+      if (null == invocationCount) {
+        invocationCount = new long[1];
+        invocations.put(name, invocationCount);
+      }
+      invocationCount[0]++;
+    }
+  }
+}
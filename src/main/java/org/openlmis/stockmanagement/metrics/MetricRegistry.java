@@ -0,0 +1,24 @@
+package org.openlmis.stockmanagement.metrics;
+
+/**
+ * Where stock management records its timers, counters and value distributions.  Metrics are identified by dotted
+ * names, and are created on first use.  Implementations must be thread safe, and cheap enough to call on every
+ * request.
+ */
+public interface MetricRegistry {
+
+  /**
+   * Records one timing of the named timer.
+   */
+  void recordTime(String name, long nanos);
+
+  /**
+   * Adds to the named counter.
+   */
+  void increment(String name, long amount);
+
+  /**
+   * Records one value of the named distribution, such as the size of a request.
+   */
+  void recordValue(String name, long value);
+}
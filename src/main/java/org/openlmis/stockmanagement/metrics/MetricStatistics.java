@@ -0,0 +1,66 @@
+package org.openlmis.stockmanagement.metrics;
+
+/**
+ * Count, total and maximum of the values recorded for a timer or distribution, along with a histogram of the values.
+ * The histogram has a bucket per power of two, so that recording stays cheap and percentiles are known to within a
+ * factor of two.
+ */
+public class MetricStatistics {
+
+  private long count;
+
+  private long total;
+
+  private long max;
+
+  // bucket 0 counts the values up to 0, and bucket i the values from 2^(i-1) up to 2^i - 1
+  private final long[] buckets = new long[Long.SIZE];
+
+  synchronized void record(long value) {
+    count++;
+    total += value;
+    if (value > max) max = value;
+    buckets[bucket(value)]++;
+  }
+
+  public synchronized long getCount() {
+    return count;
+  }
+
+  public synchronized long getTotal() {
+    return total;
+  }
+
+  public synchronized long getMax() {
+    return max;
+  }
+
+  public synchronized double getMean() {
+    return 0 == count ? 0 : (double) total / count;
+  }
+
+  /**
+   * @return the number of values of each bucket of the histogram, the values of bucket i being less than 2^i.
+   */
+  public synchronized long[] getBuckets() {
+    return buckets.clone();
+  }
+
+  /**
+   * @return an upper bound of the given percentile of the values, at most twice the actual percentile, or 0 if no
+   * value was recorded.
+   */
+  public synchronized long getPercentile(double percentile) {
+    long rank = (long) Math.ceil(percentile / 100 * count);
+    long seen = 0;
+    for (int i = 0; i < buckets.length; i++) {
+      seen += buckets[i];
+      if (seen >= rank && seen > 0) return Math.min(max, 0 == i ? 0 : (1L << i) - 1);
+    }
+    return max;
+  }
+
+  private static int bucket(long value) {
+    return value <= 0 ? 0 : Long.SIZE - Long.numberOfLeadingZeros(value);
+  }
+}
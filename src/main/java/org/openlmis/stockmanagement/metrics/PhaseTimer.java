@@ -0,0 +1,48 @@
+package org.openlmis.stockmanagement.metrics;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Times the phases of an operation that runs one phase at a time.  A phase may be entered several times, and its
+ * times add up, so that each phase is recorded once per operation.  Not thread safe; an operation has its own timer.
+ */
+public class PhaseTimer {
+
+  private final Map<String, Long> nanosByPhase = new LinkedHashMap<>();
+
+  private String phase;
+
+  private long phaseStart;
+
+  /**
+   * Ends the current phase, if any, and starts the given one.
+   */
+  public void start(String phase) {
+    stop();
+    this.phase = phase;
+    this.phaseStart = System.nanoTime();
+  }
+
+  /**
+   * Ends the current phase, if any.
+   */
+  public void stop() {
+    if (null == phase) return;
+
+    long nanos = System.nanoTime() - phaseStart;
+    Long before = nanosByPhase.get(phase);
+    nanosByPhase.put(phase, null == before ? nanos : before + nanos);
+    phase = null;
+  }
+
+  /**
+   * Ends the current phase, and records the time of each phase entered as a timer named prefix + phase.
+   */
+  public void record(MetricRegistry registry, String prefix) {
+    stop();
+    for (Map.Entry<String, Long> phaseNanos : nanosByPhase.entrySet()) {
+      registry.recordTime(prefix + phaseNanos.getKey(), phaseNanos.getValue());
+    }
+  }
+}
@@ -0,0 +1,75 @@
+package org.openlmis.stockmanagement.metrics;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.method.HandlerMethod;
+import org.springframework.web.servlet.handler.HandlerInterceptorAdapter;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.util.Map;
+
+/**
+ * Times the requests to the stock management endpoints, and counts the mapper statements each of them runs, by
+ * handler method, in total and by statement.  Statements run by other threads for a request, such as queued stock
+ * event jobs, are not counted.
+ */
+public class RequestMetricsInterceptor extends HandlerInterceptorAdapter {
+
+  public static final String REQUESTS = "stockmanagement.requests.";
+
+  public static final String REQUEST_STATEMENTS = "stockmanagement.requests.sql.statements.";
+
+  /**
+   * Distributions of the number of times a request runs a statement, named with the handler method and the statement,
+   * like stockmanagement.requests.sql.invocations.getStockCards.LotMapper.getLotsOnHand.
+   */
+  public static final String REQUEST_INVOCATIONS = "stockmanagement.requests.sql.invocations.";
+
+  /**
+   * Distribution of the number of entries of each stock card, or page of entries, the stock card endpoints return.
+   */
+  public static final String ENTRIES_RETURNED = "stockmanagement.stockcards.entries.returned";
+
+  private static final String STOCK_MANAGEMENT_PACKAGE = "org.openlmis.stockmanagement.";
+
+  private static final String START_NANOS = RequestMetricsInterceptor.class.getName() + ".startNanos";
+
+  private static final String START_STATEMENTS = RequestMetricsInterceptor.class.getName() + ".startStatements";
+
+  @Autowired
+  private MetricRegistry metrics;
+
+  public RequestMetricsInterceptor() {
+  }
+
+  RequestMetricsInterceptor(MetricRegistry metrics) {
+    this.metrics = metrics;
+  }
+
+  @Override
+  public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) {
+    request.setAttribute(START_NANOS, System.nanoTime());
+    request.setAttribute(START_STATEMENTS, MapperStatementProfiler.getThreadStatementCount());
+    MapperStatementProfiler.clearThreadInvocations();
+    return true;
+  }
+
+  @Override
+  public void afterCompletion(HttpServletRequest request, HttpServletResponse response, Object handler,
+                              Exception ex) {
+    Long startNanos = (Long) request.getAttribute(START_NANOS);
+    Long startStatements = (Long) request.getAttribute(START_STATEMENTS);
+    if (null == startNanos || null == startStatements || !(handler instanceof HandlerMethod)) return;
+
+    // other modules map endpoints under the same paths
+    HandlerMethod handlerMethod = (HandlerMethod) handler;
+    if (!handlerMethod.getBeanType().getName().startsWith(STOCK_MANAGEMENT_PACKAGE)) return;
+
+    String name = handlerMethod.getMethod().getName();
+    metrics.recordTime(REQUESTS + name, System.nanoTime() - startNanos);
+    metrics.recordValue(REQUEST_STATEMENTS + name, MapperStatementProfiler.getThreadStatementCount() - startStatements);
+    for (Map.Entry<String, Long> invocations : MapperStatementProfiler.getThreadInvocations().entrySet()) {
+      metrics.recordValue(REQUEST_INVOCATIONS + name + "." + invocations.getKey(), invocations.getValue());
+    }
+  }
+}
@@ -1,13 +1,20 @@
 package org.openlmis.stockmanagement.repository;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
 import lombok.NoArgsConstructor;
 import org.openlmis.stockmanagement.domain.Lot;
 import org.openlmis.stockmanagement.domain.LotOnHand;
 import org.openlmis.stockmanagement.repository.mapper.LotMapper;
+import org.openlmis.stockmanagement.service.ProductCache;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
 import java.util.Objects;
+import java.util.concurrent.TimeUnit;
 
 @Component
 @NoArgsConstructor
@@ -16,33 +23,126 @@ public class LotRepository {
   @Autowired
   LotMapper mapper;
 
-  LotRepository(LotMapper mapper) {
+  @Autowired
+  ProductCache productCache;
+
+  @Value("${stockmanagement.cache.lots.maximumSize:10000}")
+  private long lotCacheMaximumSize = 10000;
+
+  @Value("${stockmanagement.cache.expireAfterWriteSeconds:600}")
+  private long cacheExpireAfterWriteSeconds = 600;
+
+  // lots by id, shared by all requests, so cached lots must not be modified
+  private Cache<Long, Lot> lots;
+
+  LotRepository(LotMapper mapper, ProductCache productCache) {
     this.mapper = Objects.requireNonNull(mapper);
+    this.productCache = Objects.requireNonNull(productCache);
+    initLotCache();
+  }
+
+  @PostConstruct
+  void initLotCache() {
+    lots = CacheBuilder.newBuilder()
+        .maximumSize(lotCacheMaximumSize)
+        .expireAfterWrite(cacheExpireAfterWriteSeconds, TimeUnit.SECONDS)
+        .recordStats()
+        .build();
   }
 
   public LotOnHand getLotOnHandByStockCardAndLot(Long stockCardId, Long lotId) {
-    return mapper.getLotOnHandByStockCardAndLot(stockCardId, lotId);
+    return withCachedLot(mapper.getLotOnHandByStockCardAndLot(stockCardId, lotId));
   }
 
   public LotOnHand getLotOnHandByStockCardAndLotObject(Long stockCardId, Lot lot) {
-    return mapper.getLotOnHandByStockCardAndLotObject(stockCardId, lot);
+    return withCachedLot(mapper.getLotOnHandByStockCardAndLotObject(stockCardId, lot));
+  }
+
+  /**
+   * Gets a lot, with its product, through a size-bounded cache whose entries expire some time after being loaded.  The
+   * product of a lot loaded into the cache comes from the product cache.
+   * @param id the id of the lot
+   * @return the lot, or null if it does not exist.
+   */
+  public Lot getLotById(Long id) {
+    Lot lot = lots.getIfPresent(id);
+    if (null == lot) {
+      lot = mapper.getByIdWithoutProduct(id);
+      if (null != lot) {
+        lot.setProduct(productCache.getById(lot.getProduct().getId()));
+        lots.put(id, lot);
+      }
+    }
+
+    return lot;
   }
 
+  /**
+   * Updates a lot, evicting it from the lot cache.
+   */
+  public void updateLot(Lot lot) {
+    Objects.requireNonNull(lot);
+    mapper.update(lot);
+    lots.invalidate(lot.getId());
+  }
+
+  public CacheStats getLotCacheStats() {
+    return lots.stats();
+  }
+
+  /**
+   * Gets the lot with the same identity as the given lot, creating it if it does not exist.  If another transaction
+   * creates the same lot concurrently, the lot it created is returned.
+   * @param lot the lot to get or create
+   * @return the persisted lot.
+   */
   public Lot getOrCreateLot(Lot lot) {
     Lot l = mapper.getByObject(lot);
     if (null == l) {
-      mapper.insert(lot);
-      l = lot;
+      Long id = mapper.insertIfAbsent(lot);
+      if (null != id) {
+        lot.setId(id);
+        l = lot;
+      } else {
+        l = mapper.getByObject(lot);
+      }
     }
 
     return l;
   }
 
-  public void saveLotOnHand(LotOnHand lotOnHand) {
-    if (null == lotOnHand.getId()) {
-      mapper.insertLotOnHand(lotOnHand);
-    } else {
-      mapper.updateLotOnHand(lotOnHand);
+  private LotOnHand withCachedLot(LotOnHand lotOnHand) {
+    if (null != lotOnHand && null != lotOnHand.getLot()) {
+      lotOnHand.setLot(getLotById(lotOnHand.getLot().getId()));
     }
+
+    return lotOnHand;
+  }
+
+  /**
+   * Persists a new lot on hand, unless its stock card already has a lot on hand for the lot, which may have been
+   * created by a concurrent transaction.
+   * @param lotOnHand the new lot on hand
+   * @return the given lot on hand once persisted, or the existing one.
+   */
+  public LotOnHand getOrCreateLotOnHand(LotOnHand lotOnHand) {
+    Long id = mapper.insertLotOnHandIfAbsent(lotOnHand);
+    if (null != id) {
+      lotOnHand.setId(id);
+      return lotOnHand;
+    }
+
+    return getLotOnHandByStockCardAndLot(lotOnHand.getStockCard().getId(), lotOnHand.getLot().getId());
+  }
+
+  /**
+   * Atomically adds a quantity to the lot on hand's quantity, and refreshes the given lot on hand with the result.
+   * @param lotOnHand the persisted lot on hand
+   * @param quantity the quantity to add, negative to subtract
+   * @param modifiedBy the id of the user making the change
+   */
+  public void addToQuantityOnHand(LotOnHand lotOnHand, long quantity, Long modifiedBy) {
+    Objects.requireNonNull(lotOnHand);
+    lotOnHand.setQuantityOnHand(mapper.addToQuantityOnHand(lotOnHand.getId(), quantity, modifiedBy));
   }
 }
@@ -1,19 +1,22 @@
 package org.openlmis.stockmanagement.repository;
 
+import com.google.common.collect.Lists;
 import lombok.NoArgsConstructor;
 import org.openlmis.core.domain.Facility;
 import org.openlmis.core.domain.Product;
 import org.openlmis.core.repository.FacilityRepository;
-import org.openlmis.core.repository.ProductRepository;
-import org.openlmis.stockmanagement.domain.StockCard;
-import org.openlmis.stockmanagement.domain.StockCardEntry;
-import org.openlmis.stockmanagement.domain.StockCardEntryKV;
+import org.openlmis.stockmanagement.domain.*;
+import org.openlmis.stockmanagement.dto.FacilityStockOnHand;
+import org.openlmis.stockmanagement.dto.LotSummary;
+import org.openlmis.stockmanagement.dto.StockCardChanges;
+import org.openlmis.stockmanagement.dto.StockCardSummary;
+import org.openlmis.stockmanagement.dto.StockOnHandAggregate;
 import org.openlmis.stockmanagement.repository.mapper.StockCardMapper;
+import org.openlmis.stockmanagement.service.ProductCache;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
-import java.util.List;
-import java.util.Objects;
+import java.util.*;
 
 @Component
 @NoArgsConstructor
@@ -23,50 +26,267 @@ public class StockCardRepository {
   private FacilityRepository facilityRepository;
 
   @Autowired
-  private ProductRepository productRepository;
+  private ProductCache productCache;
 
   @Autowired
   StockCardMapper mapper;
 
+  // keeps multi-row inserts well below the bind parameter limit of a single statement
+  private static final int ENTRY_BATCH_SIZE = 500;
+  private static final int KEY_VALUE_BATCH_SIZE = 1000;
+  private static final int EVENT_ID_BATCH_SIZE = 1000;
+
+  // number of stock cards or entries whose changes are read with one statement
+  private static final int CHANGE_BATCH_SIZE = 1000;
+
+  // number of stock card or entry ids bound to one statement reading by id
+  private static final int ID_BATCH_SIZE = 1000;
+
+  // number of newest custom properties upserted with one statement
+  private static final int LATEST_KEY_VALUE_BATCH_SIZE = 1000;
+
   /**
-   * Will get or create a stock card for the given facility and product.  If the facility or product do not exist,
-   * an exception will be thrown.
+   * Will get or create the stock cards for the given facility and products, finding the existing ones with a single
+   * query.  Stock cards created by concurrent transactions are picked up rather than duplicated.  If the facility or a
+   * product do not exist, an exception will be thrown.
    *
    * @param facilityId the id of the facility
-   * @param productCode  the code of the product
-   * @return the persisted stock card.
+   * @param productCodes the codes of the products
+   * @return the persisted stock cards by product code, without their entries, lots on hand or key/values.
    */
-  public StockCard getOrCreateStockCard(long facilityId, String productCode) {
-    StockCard card = mapper.getByFacilityAndProduct(facilityId, productCode);
-    if (null == card) {
-      Facility facility = facilityRepository.getById(facilityId);
-      Product product = productRepository.getByCode(productCode);
-      Objects.requireNonNull(facility);
-      Objects.requireNonNull(product);
-      card = StockCard.createZeroedStockCard(facility, product);
-      mapper.insert(card);
+  public Map<String, StockCard> getOrCreateStockCards(long facilityId, Collection<String> productCodes) {
+    Map<String, StockCard> cards = new HashMap<>();
+    if (productCodes.isEmpty()) return cards;
+
+    List<StockCard> existing = mapper.getByFacilityAndProductCodesWithoutDetails(facilityId,
+        new ArrayList<>(productCodes));
+    for (StockCard card : existing) {
+      cards.put(card.getProduct().getCode(), card);
     }
 
-    Objects.requireNonNull(card);
-    return card;
+    Facility facility = null;
+    List<String> createdConcurrently = new ArrayList<>();
+    for (String productCode : productCodes) {
+      if (cards.containsKey(productCode)) continue;
+
+      if (null == facility) facility = Objects.requireNonNull(facilityRepository.getById(facilityId));
+      Product product = Objects.requireNonNull(productCache.getByCode(productCode));
+      StockCard card = StockCard.createZeroedStockCard(facility, product);
+      Long id = mapper.insertIfAbsent(card);
+      if (null != id) {
+        card.setId(id);
+        cards.put(productCode, card);
+      } else {
+        createdConcurrently.add(productCode);
+      }
+    }
+
+    if (!createdConcurrently.isEmpty()) {
+      for (StockCard card : mapper.getByFacilityAndProductCodesWithoutDetails(facilityId, createdConcurrently)) {
+        cards.put(card.getProduct().getCode(), card);
+      }
+    }
+
+    return cards;
   }
 
   /**
-   * Gets a stock card by facility id and product id
+   * Gets a stock card by facility id and product code, with only the newest entries.
    * @param facilityId the id of the facility
    * @param productCode the code of the product
+   * @param entryLimit the maximum number of entries to load, or null for all of them
+   * @param orderBy the order of the newest entries loaded
    * @return the unique stock card, or null if stock card, facility, or product do not exist.
    */
-  public StockCard getStockCardByFacilityAndProduct(long facilityId, String productCode) {
-    return mapper.getByFacilityAndProduct(facilityId, productCode);
+  public StockCard getStockCardByFacilityAndProduct(long facilityId, String productCode, Integer entryLimit,
+                                                    StockCardEntryOrder orderBy) {
+    return loadDetails(facilityId, mapper.getByFacilityAndProductWithoutDetails(facilityId, productCode), entryLimit,
+        orderBy);
+  }
+
+  public StockCard getStockCardById(Long facilityId, Long id, Integer entryLimit, StockCardEntryOrder orderBy) {
+    return loadDetails(facilityId, mapper.getByFacilityAndIdWithoutDetails(facilityId, id), entryLimit, orderBy);
+  }
+
+  /**
+   * Gets the stock cards of a facility whose product the user has the given right for, with their product, entries,
+   * lots on hand and key/values.  Stock cards the user may not see are filtered out in the database, and never loaded.
+   * The whole graph is loaded with a fixed number of queries, regardless of how many stock cards the facility has.
+   * @param facilityId the id of the facility
+   * @param userId the id of the user, or null to get all stock cards of the facility
+   * @param rightName the right the user needs for a stock card's product
+   * @param entryLimit the maximum number of entries to load per stock card, or null for all of them
+   * @param orderBy the order of the newest entries loaded
+   * @return the permitted stock cards of the facility, ordered by id.
+   */
+  public List<StockCard> getStockCards(Long facilityId, Long userId, String rightName, Integer entryLimit,
+                                       StockCardEntryOrder orderBy) {
+    return loadDetails(mapper.getAllByFacilityWithoutDetails(facilityId, userId, rightName), entryLimit, orderBy);
+  }
+
+  /**
+   * Gets a page of the stock cards of a facility whose product the user has the given right for, with their product,
+   * entries, lots on hand and key/values.
+   * @param facilityId the id of the facility
+   * @param userId the id of the user, or null to get all stock cards of the facility
+   * @param rightName the right the user needs for a stock card's product
+   * @param afterId the id of the last stock card of the previous page, or null for the first page
+   * @param limit the maximum number of stock cards to get
+   * @param entryLimit the maximum number of entries to load per stock card, or null for all of them
+   * @param orderBy the order of the newest entries loaded
+   * @return the stock cards with an id greater than afterId, ordered by id.
+   */
+  public List<StockCard> getStockCardsPage(Long facilityId, Long userId, String rightName, Long afterId, int limit,
+                                           Integer entryLimit, StockCardEntryOrder orderBy) {
+    return loadDetails(mapper.getPageByFacilityWithoutDetails(facilityId, userId, rightName, afterId, limit),
+        entryLimit, orderBy);
+  }
+
+  /**
+   * Gets a page of the entries of a facility's stock card, with their key/values.
+   * @param facilityId the id of the facility
+   * @param stockCardId the id of the stock card
+   * @param beforeId the id of the last entry of the previous page, or null for the first page
+   * @param limit the maximum number of entries to get
+   * @param orderBy the order of the entries
+   * @return the entries that follow the beforeId entry, newest first in the given order.
+   */
+  public List<StockCardEntry> getStockCardEntriesPage(Long facilityId, Long stockCardId, Long beforeId, int limit,
+                                                      StockCardEntryOrder orderBy) {
+    List<StockCardEntry> entries = mapper.getEntriesPage(facilityId, stockCardId, beforeId, limit, orderBy);
+    if (entries.isEmpty()) return entries;
+
+    Map<Long, StockCardEntry> entriesById = new HashMap<>();
+    for (StockCardEntry entry : entries) {
+      entry.setKeyValues(new ArrayList<StockCardEntryKV>());
+      entriesById.put(entry.getId(), entry);
+    }
+    for (StockCardEntryKVRow kv : mapper.getKeyValuesForEntries(new ArrayList<>(entriesById.keySet()))) {
+      entriesById.get(kv.getStockCardEntryId()).getKeyValues().add(kv);
+    }
+
+    return entries;
+  }
+
+  /**
+   * Gets the stock cards of a facility whose product the user has the given right for, and their lots on hand and
+   * entries, changed since a watermark.  Changes to lots on hand and entries also change their stock card, so only
+   * the rows of changed stock cards are read, through indexes on the change transaction ids.
+   * @param facilityId the id of the facility
+   * @param userId the id of the user, or null to get the changes of all stock cards of the facility
+   * @param rightName the right the user needs for a stock card's product
+   * @param since the watermark of the previous changes, or null to get all stock data of the facility
+   * @return the changes, with the watermark to get the changes that follow them.
+   */
+  public StockCardChanges getChanges(Long facilityId, Long userId, String rightName, Long since) {
+    // read first, so that all changes below the watermark are visible to the queries that follow
+    long watermark = mapper.getChangeWatermark();
+    if (null != since && since > watermark) watermark = since;
+
+    List<StockCard> cards = mapper.getChangedStockCards(facilityId, userId, rightName, since, watermark);
+    List<LotOnHand> lotsOnHand = new ArrayList<>();
+    List<StockCardEntry> entries = new ArrayList<>();
+    List<Long> stockCardIds = new ArrayList<>(cards.size());
+    for (StockCard card : cards) {
+      stockCardIds.add(card.getId());
+    }
+    for (List<Long> batch : Lists.partition(stockCardIds, CHANGE_BATCH_SIZE)) {
+      lotsOnHand.addAll(mapper.getChangedLotsOnHand(batch, since, watermark));
+      entries.addAll(mapper.getChangedEntries(batch, since, watermark));
+    }
+
+    Map<Long, StockCardEntry> entriesById = new HashMap<>();
+    for (StockCardEntry entry : entries) {
+      entry.setKeyValues(new ArrayList<StockCardEntryKV>());
+      entriesById.put(entry.getId(), entry);
+    }
+    for (List<Long> batch : Lists.partition(new ArrayList<>(entriesById.keySet()), CHANGE_BATCH_SIZE)) {
+      for (StockCardEntryKVRow kv : mapper.getKeyValuesForEntries(batch)) {
+        entriesById.get(kv.getStockCardEntryId()).getKeyValues().add(kv);
+      }
+    }
+
+    return new StockCardChanges(watermark, cards, lotsOnHand, entries);
   }
 
-  public StockCard getStockCardById(Long facilityId, Long id) {
-    return mapper.getByFacilityAndId(facilityId, id);
+  /**
+   * Gets, with a single query, the stock on hand of all stock cards of a facility, in total and by lot.
+   * @param facilityId the id of the facility
+   * @param userId the id of the user, or null to get the summaries of all stock cards of the facility
+   * @param rightName the right the user needs for a stock card's product
+   * @param includeEmptyLots whether to include the lots without stock on hand
+   * @return the summaries, ordered by stock card id, with their lots ordered by expiration date.
+   */
+  public List<StockCardSummary> getStockCardSummaries(Long facilityId, Long userId, String rightName,
+                                                      boolean includeEmptyLots) {
+    List<StockCardSummary> summaries = new ArrayList<>();
+    StockCardSummary summary = null;
+    Long summaryStockCardId = null;
+    for (StockCardSummaryRow row : mapper.getStockCardSummaries(facilityId, userId, rightName, includeEmptyLots)) {
+      // rows of the same stock card follow each other
+      if (!row.getStockCardId().equals(summaryStockCardId)) {
+        summary = new StockCardSummary(row.getProductCode(), row.getTotalQuantityOnHand(),
+            new ArrayList<LotSummary>());
+        summaryStockCardId = row.getStockCardId();
+        summaries.add(summary);
+      }
+      if (null != row.getLotQuantityOnHand()) {
+        summary.getLots().add(new LotSummary(row.getLotCode(), row.getLotExpirationDate(),
+            row.getLotQuantityOnHand()));
+      }
+    }
+    return summaries;
+  }
+
+  /**
+   * Gets, with a single grouped query, the stock on hand of products at many facilities.
+   * @param facilityIds the ids of the facilities
+   * @param productCodes the codes of the products, or null to get all products of the facilities
+   * @param userId the id of the user, or null to get the stock of all stock cards of the facilities
+   * @param rightName the right the user needs for a stock card's product at its facility
+   * @return the stock on hand by product, ordered by product code, with the facilities ordered by id and the lots
+   * ordered by expiration date.
+   */
+  public List<StockOnHandAggregate> getStockOnHandAggregates(Collection<Long> facilityIds,
+                                                             Collection<String> productCodes,
+                                                             Long userId, String rightName) {
+    Map<String, StockOnHandAggregate> aggregates = new LinkedHashMap<>();
+    for (StockOnHandAggregateRow row : mapper.getStockOnHandAggregates(facilityIds, productCodes, userId,
+        rightName)) {
+      StockOnHandAggregate aggregate = aggregates.get(row.getProductCode());
+      if (null == aggregate) {
+        aggregate = new StockOnHandAggregate(row.getProductCode(), 0L, new ArrayList<FacilityStockOnHand>(),
+            new ArrayList<LotSummary>());
+        aggregates.put(row.getProductCode(), aggregate);
+      }
+
+      switch (row.getLevel()) {
+        case StockOnHandAggregateRow.PRODUCT:
+          aggregate.setStockOnHand(row.getTotalQuantityOnHand());
+          break;
+        case StockOnHandAggregateRow.FACILITY:
+          aggregate.getFacilities().add(new FacilityStockOnHand(row.getFacilityId(), row.getTotalQuantityOnHand()));
+          break;
+        case StockOnHandAggregateRow.LOT:
+          aggregate.getLots().add(new LotSummary(row.getLotCode(), row.getLotExpirationDate(),
+              row.getLotQuantityOnHand()));
+          break;
+        default:
+          throw new IllegalStateException("Unknown stock on hand level " + row.getLevel());
+      }
+    }
+    return new ArrayList<>(aggregates.values());
   }
 
-  public List<StockCard> getStockCards(Long facilityId) {
-    return mapper.getAllByFacility(facilityId);
+  public int countStockCards(Long facilityId, Long userId, String rightName) {
+    return mapper.countByFacility(facilityId, userId, rightName);
+  }
+
+  /**
+   * Gets, with a single query, the codes of all products the user has the given right for at a facility.
+   */
+  public Set<String> getProductCodesWithRight(Long userId, Long facilityId, String rightName) {
+    return new HashSet<>(mapper.getProductCodesWithRight(userId, facilityId, rightName));
   }
 
   public void persistStockCardEntry(StockCardEntry entry) {
@@ -77,14 +297,224 @@ public class StockCardRepository {
     for (StockCardEntryKV item : entry.getKeyValues()) {
       mapper.insertEntryKeyValue(entry, item.getKeyColumn(), item.getValueColumn());
     }
+    updateLatestKeyValues(Collections.singletonList(entry));
+  }
+
+  /**
+   * Persists new stock card entries and their key/values with multi-row inserts.  Entry ids are allocated from the
+   * sequence up front, in ascending order so that entries are recorded in the given order.  Each batch of entries
+   * costs two statements, and each batch of key/values one, followed by the upserts of the newest custom properties
+   * of the stock cards and lots on hand.
+   * @param entries the entries to persist, in the order they should be recorded
+   */
+  public void persistStockCardEntries(List<StockCardEntry> entries) {
+    for (StockCardEntry entry : entries) {
+      if (entry.hasId())
+        throw new IllegalArgumentException("Already persisted stock card entries can not be saved " +
+            "as persisted entry is immutable");
+    }
+
+    for (List<StockCardEntry> batch : Lists.partition(entries, ENTRY_BATCH_SIZE)) {
+      List<Long> ids = new ArrayList<>(mapper.getNextEntryIds(batch.size()));
+      Collections.sort(ids);
+      for (int i = 0; i < batch.size(); i++) {
+        batch.get(i).setId(ids.get(i));
+      }
+      mapper.insertEntries(batch);
+    }
+
+    // key/values are batched by their own count, as an entry may carry any number of them
+    List<StockCardEntry> batch = new ArrayList<>();
+    int keyValueCount = 0;
+    for (StockCardEntry entry : entries) {
+      if (entry.getKeyValues().isEmpty()) continue;
+      batch.add(entry);
+      keyValueCount += entry.getKeyValues().size();
+      if (keyValueCount >= KEY_VALUE_BATCH_SIZE) {
+        mapper.insertEntriesKeyValues(batch);
+        batch = new ArrayList<>();
+        keyValueCount = 0;
+      }
+    }
+    if (!batch.isEmpty()) mapper.insertEntriesKeyValues(batch);
+
+    updateLatestKeyValues(entries);
+  }
+
+  /**
+   * Records the ids of stock events about to be recorded at a facility, with one statement per batch of ids.  Run in
+   * the transaction recording the events, so that the ids are released if it rolls back, and so that a concurrent
+   * retry of the same events waits for it.
+   * @param facilityId the id of the facility
+   * @param eventIds the event ids, each at most once
+   * @return the event ids that were not recorded before.
+   */
+  public Set<String> claimEventIds(Long facilityId, List<String> eventIds) {
+    Set<String> claimed = new HashSet<>();
+    for (List<String> batch : Lists.partition(eventIds, EVENT_ID_BATCH_SIZE)) {
+      claimed.addAll(mapper.insertEventIds(facilityId, batch));
+    }
+    return claimed;
   }
 
-  public void updateStockCard(StockCard card) {
+  /**
+   * Brings the balance snapshots of the stock cards and lots on hand of persisted entries up to date, with four
+   * statements per batch of entries.  Must be called after the stock cards of the entries were updated in the same
+   * transaction, so that concurrent batches touching the same stock cards take turns.
+   * @param entries the persisted entries
+   */
+  public void updateBalanceSnapshots(List<StockCardEntry> entries) {
+    List<Long> entryIds = new ArrayList<>();
+    for (StockCardEntry entry : entries) {
+      entryIds.add(Objects.requireNonNull(entry.getId()));
+    }
+
+    for (List<Long> batch : Lists.partition(entryIds, ENTRY_BATCH_SIZE)) {
+      mapper.insertMissingStockCardSnapshots(batch);
+      mapper.addToStockCardSnapshots(batch);
+      mapper.insertMissingLotOnHandSnapshots(batch);
+      mapper.addToLotOnHandSnapshots(batch);
+    }
+  }
+
+  /**
+   * Gets the balances of stock cards and their lots on hand at the end of a day.
+   * @param stockCardIds the ids of the stock cards
+   * @param asOf the day
+   * @return a row per lot on hand, and a row without lot on hand for each stock card without lots on hand.
+   */
+  public List<StockCardBalanceRow> getBalancesAsOf(List<Long> stockCardIds, Date asOf) {
+    List<StockCardBalanceRow> balances = new ArrayList<>();
+    for (List<Long> batch : Lists.partition(stockCardIds, ID_BATCH_SIZE)) {
+      balances.addAll(mapper.getBalancesAsOf(batch, asOf));
+    }
+    return balances;
+  }
+
+  /**
+   * Gets the balances of stock cards and of the given lots on hand of them, and locks the stock cards until the end of
+   * the transaction.
+   * @param stockCardIds the ids of the stock cards
+   * @param lotOnHandIds the ids of lots on hand of the stock cards, may be empty
+   * @return a row per lot on hand, and a row without lot on hand for each stock card none of whose lots was asked for.
+   */
+  public List<StockCardBalanceRow> getBalancesForUpdate(List<Long> stockCardIds, List<Long> lotOnHandIds) {
+    if (stockCardIds.isEmpty()) return Collections.emptyList();
+    return mapper.getBalancesForUpdate(stockCardIds, lotOnHandIds);
+  }
+
+  /**
+   * Atomically adds a quantity to the stock card's total quantity on hand, and refreshes the given stock card with
+   * the resulting total.
+   * @param card the persisted stock card
+   * @param quantity the quantity to add, negative to subtract
+   * @param modifiedBy the id of the user making the change
+   */
+  public void addToTotalQuantityOnHand(StockCard card, long quantity, Long modifiedBy) {
     Objects.requireNonNull(card);
-    mapper.update(card);
+    card.setTotalQuantityOnHand(mapper.addToTotalQuantityOnHand(card.getId(), quantity, modifiedBy));
   }
 
   public Product getProductByStockCardId(Long stockCardId) {
     return mapper.getProductByStockCardId(stockCardId);
   }
+
+  private StockCard loadDetails(Long facilityId, StockCard card, Integer entryLimit, StockCardEntryOrder orderBy) {
+    if (null == card) return null;
+
+    card.setFacility(facilityRepository.getById(facilityId));
+    loadDetails(Collections.singletonList(card), entryLimit, orderBy);
+    return card;
+  }
+
+  private List<StockCard> loadDetails(List<StockCard> cards, Integer entryLimit, StockCardEntryOrder orderBy) {
+    if (cards.isEmpty()) return cards;
+
+    Map<Long, StockCard> cardsById = new LinkedHashMap<>();
+    for (StockCard card : cards) {
+      cardsById.put(card.getId(), card);
+    }
+    List<Long> stockCardIds = new ArrayList<>(cardsById.keySet());
+
+    Map<Long, Product> productsById = new HashMap<>();
+    for (Product product : mapper.getProductsForStockCards(stockCardIds)) {
+      productsById.put(product.getId(), product);
+    }
+
+    for (StockCard card : cards) {
+      card.setProduct(productsById.get(card.getProduct().getId()));
+      card.setEntries(new ArrayList<StockCardEntry>());
+      card.setLotsOnHand(new ArrayList<LotOnHand>());
+      card.setKeyValues(new ArrayList<StockCardEntryKV>());
+    }
+
+    Map<Long, StockCardEntry> entriesById = new HashMap<>();
+    for (StockCardEntry entry : mapper.getEntriesForStockCards(stockCardIds, entryLimit, orderBy)) {
+      StockCard card = cardsById.get(entry.getStockCard().getId());
+      entry.setStockCard(card);
+      entry.setKeyValues(new ArrayList<StockCardEntryKV>());
+      card.getEntries().add(entry);
+      entriesById.put(entry.getId(), entry);
+    }
+
+    Map<Long, LotOnHand> lotsOnHandById = new HashMap<>();
+    for (LotOnHand lotOnHand : mapper.getLotsOnHandForStockCards(stockCardIds)) {
+      StockCard card = cardsById.get(lotOnHand.getStockCard().getId());
+      Lot lot = lotOnHand.getLot();
+      if (null != lot.getProduct()) lot.setProduct(productsById.get(lot.getProduct().getId()));
+      lotOnHand.setStockCard(card);
+      lotOnHand.setKeyValues(new ArrayList<StockCardEntryKV>());
+      card.getLotsOnHand().add(lotOnHand);
+      lotsOnHandById.put(lotOnHand.getId(), lotOnHand);
+    }
+
+    // custom properties of cards and lots come from the newest values only, entries get all of their own key/values
+    for (StockCardEntryKVRow kv : mapper.getLatestKeyValuesForStockCards(stockCardIds)) {
+      cardsById.get(kv.getStockCardId()).getKeyValues().add(kv);
+    }
+
+    for (StockCardEntryKVRow kv : mapper.getLatestKeyValuesForLotsOnHand(stockCardIds)) {
+      lotsOnHandById.get(kv.getLotOnHandId()).getKeyValues().add(kv);
+    }
+
+    for (List<Long> entryIds : Lists.partition(new ArrayList<>(entriesById.keySet()), ID_BATCH_SIZE)) {
+      for (StockCardEntryKVRow kv : mapper.getKeyValuesForEntries(entryIds)) {
+        entriesById.get(kv.getStockCardEntryId()).getKeyValues().add(kv);
+      }
+    }
+
+    return cards;
+  }
+
+  /**
+   * Records the key/values of new entries as the newest custom properties of their stock cards and lots on hand.
+   * Within the given entries, a later key/value wins over an earlier one with the same key.
+   */
+  private void updateLatestKeyValues(List<StockCardEntry> entries) {
+    Map<String, StockCardEntryKVRow> cardKeyValues = new LinkedHashMap<>();
+    Map<String, StockCardEntryKVRow> lotOnHandKeyValues = new LinkedHashMap<>();
+    for (StockCardEntry entry : entries) {
+      LotOnHand lotOnHand = entry.getLotOnHand();
+      Long lotOnHandId = null == lotOnHand ? null : lotOnHand.getId();
+      for (StockCardEntryKV kv : entry.getKeyValues()) {
+        String key = kv.getKeyColumn().toLowerCase();
+        StockCardEntryKVRow row = new StockCardEntryKVRow();
+        row.setStockCardId(entry.getStockCard().getId());
+        row.setLotOnHandId(lotOnHandId);
+        row.setKeyColumn(key);
+        row.setValueColumn(kv.getValueColumn());
+        cardKeyValues.put(row.getStockCardId() + ":" + key, row);
+        if (null != lotOnHandId) lotOnHandKeyValues.put(lotOnHandId + ":" + key, row);
+      }
+    }
+
+    for (List<StockCardEntryKVRow> batch : Lists.partition(new ArrayList<>(cardKeyValues.values()),
+        LATEST_KEY_VALUE_BATCH_SIZE)) {
+      mapper.upsertStockCardKeyValuesLatest(batch);
+    }
+    for (List<StockCardEntryKVRow> batch : Lists.partition(new ArrayList<>(lotOnHandKeyValues.values()),
+        LATEST_KEY_VALUE_BATCH_SIZE)) {
+      mapper.upsertLotOnHandKeyValuesLatest(batch);
+    }
+  }
 }
@@ -0,0 +1,58 @@
+package org.openlmis.stockmanagement.repository;
+
+import lombok.NoArgsConstructor;
+import org.openlmis.stockmanagement.domain.StockEventJob;
+import org.openlmis.stockmanagement.repository.mapper.StockEventJobMapper;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+import java.util.Objects;
+
+@Component
+@NoArgsConstructor
+public class StockEventJobRepository {
+
+  @Autowired
+  StockEventJobMapper mapper;
+
+  StockEventJobRepository(StockEventJobMapper mapper) {
+    this.mapper = Objects.requireNonNull(mapper);
+  }
+
+  public void insert(StockEventJob job) {
+    mapper.insert(job);
+  }
+
+  public StockEventJob getById(Long id) {
+    return mapper.getById(id);
+  }
+
+  /**
+   * Moves a queued job to processing.
+   * @return the job, or null if it was not queued, e.g. because another worker already claimed it.
+   */
+  public StockEventJob claim(Long id) {
+    return mapper.claim(id);
+  }
+
+  public void markSucceeded(Long id) {
+    mapper.markSucceeded(id);
+  }
+
+  public void markFailed(Long id, String errorMessage) {
+    mapper.markFailed(id, errorMessage);
+  }
+
+  /**
+   * Fails the jobs processing for longer than the timeout.
+   * @return the number of jobs failed.
+   */
+  public int failStaleProcessing(int timeoutMinutes, String errorMessage) {
+    return mapper.failStaleProcessing(timeoutMinutes, errorMessage);
+  }
+
+  public List<Long> getQueuedIds() {
+    return mapper.getQueuedIds();
+  }
+}
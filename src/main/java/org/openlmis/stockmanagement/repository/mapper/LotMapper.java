@@ -20,6 +20,18 @@ public interface LotMapper {
   })
   Lot getById(@Param("id")Long id);
 
+  /**
+   * Gets a lot with only the id of its product, for callers that look the product up themselves.
+   */
+  @Select("SELECT *" +
+      " FROM lots" +
+      " WHERE id = #{id}")
+  @Results({
+      @Result(property = "product.id", column = "productId"),
+      @Result(property = "lotCode", column = "lotnumber")
+  })
+  Lot getByIdWithoutProduct(@Param("id")Long id);
+
   @Select("SELECT *" +
       " FROM lots" +
       " WHERE LOWER(lotnumber) = LOWER(#{lotCode})" +
@@ -38,13 +50,12 @@ public interface LotMapper {
       " WHERE stockcardid = #{stockCardId}" +
       "   AND lotid = #{lotId}")
   @Results({
-      @Result(
-          property = "lot", column = "lotId", javaType = Lot.class,
-          one = @One(select = "getById"))
+      @Result(property = "id", column = "id"),
+      @Result(property = "lot.id", column = "lotId")
   })
   LotOnHand getLotOnHandByStockCardAndLot(@Param("stockCardId")Long stockCardId, @Param("lotId")Long lotId);
 
-  @Select("SELECT *" +
+  @Select("SELECT loh.*" +
       " FROM lots_on_hand loh" +
       "   JOIN lots l ON l.id = loh.lotid" +
       " WHERE loh.stockcardid = #{stockCardId}" +
@@ -52,9 +63,8 @@ public interface LotMapper {
       "   AND LOWER(l.manufacturername) = LOWER(#{lot.manufacturerName})" +
       "   AND l.expirationdate = #{lot.expirationDate}")
   @Results({
-      @Result(
-          property = "lot", column = "lotId", javaType = Lot.class,
-          one = @One(select = "getById"))
+      @Result(property = "id", column = "id"),
+      @Result(property = "lot.id", column = "lotId")
   })
   LotOnHand getLotOnHandByStockCardAndLotObject(@Param("stockCardId")Long stockCardId, @Param("lot")Lot lot);
 
@@ -67,6 +77,25 @@ public interface LotMapper {
   @Options(useGeneratedKeys = true)
   void insert(Lot lot);
 
+  /**
+   * Inserts a lot unless a lot with the same identity, its code and manufacturer ignoring case and its expiration date,
+   * already exists.
+   * @return the id of the inserted lot, or null if the lot already existed.
+   */
+  @Select("INSERT into lots " +
+      " (productId, lotNumber, manufacturerName, manufactureDate, expirationDate" +
+      ", createdBy, createdDate, modifiedBy, modifiedDate) " +
+      "values " +
+      " (#{product.id}, #{lotCode}, #{manufacturerName}, #{manufactureDate}, #{expirationDate}" +
+      ", #{createdBy}, NOW(), #{modifiedBy}, NOW())" +
+      " ON CONFLICT ((LOWER(lotnumber)), (LOWER(manufacturername)), expirationdate) DO NOTHING" +
+      " RETURNING id")
+  @Options(flushCache = true)
+  Long insertIfAbsent(Lot lot);
+
+  /**
+   * Lots are cached by LotRepository, so update them through LotRepository.updateLot(), which evicts the cached lot.
+   */
   @Update("UPDATE lots " +
       "SET lotNumber = #{lotCode}" +
       ", manufacturerName = #{manufacturerName}" +
@@ -77,20 +106,33 @@ public interface LotMapper {
       "WHERE id = #{id}")
   int update(Lot lot);
 
-  @Insert("INSERT into lots_on_hand " +
+  /**
+   * Inserts a lot on hand unless the stock card already has a lot on hand for the lot.
+   * @return the id of the inserted lot on hand, or null if the lot on hand already existed.
+   */
+  @Select("INSERT into lots_on_hand " +
       " (stockCardId, lotId, quantityOnHand, effectiveDate" +
       ", createdBy, createdDate, modifiedBy, modifiedDate) " +
       "values " +
       " (#{stockCard.id}, #{lot.id}, #{quantityOnHand}, #{effectiveDate}" +
-      ", #{createdBy}, NOW(), #{modifiedBy}, NOW())")
-  @Options(useGeneratedKeys = true)
-  void insertLotOnHand(LotOnHand lotOnHand);
+      ", #{createdBy}, NOW(), #{modifiedBy}, NOW())" +
+      " ON CONFLICT (stockcardid, lotid) DO NOTHING" +
+      " RETURNING id")
+  @Options(flushCache = true)
+  Long insertLotOnHandIfAbsent(LotOnHand lotOnHand);
 
-  @Update("UPDATE lots_on_hand " +
-      "SET quantityOnHand = #{quantityOnHand}" +
-          ", effectiveDate = NOW()" +
-          ", modifiedBy = #{modifiedBy}" +
-          ", modifiedDate = NOW()" +
-      "WHERE id = #{id}")
-  int updateLotOnHand(LotOnHand lotOnHand);
+  /**
+   * Adds a quantity to the lot on hand's quantity in the database, so that concurrent updates of the same lot on hand
+   * can't overwrite each other.
+   * @return the new quantity on hand
+   */
+  @Select("UPDATE lots_on_hand" +
+      " SET quantityOnHand = quantityOnHand + #{quantity}" +
+      ", effectiveDate = NOW()" +
+      ", modifiedBy = #{modifiedBy}" +
+      ", modifiedDate = NOW()" +
+      " WHERE id = #{id}" +
+      " RETURNING quantityOnHand")
+  @Options(flushCache = true)
+  Long addToQuantityOnHand(@Param("id")Long id, @Param("quantity")long quantity, @Param("modifiedBy")Long modifiedBy);
 }
@@ -6,30 +6,194 @@ import org.openlmis.core.domain.Product;
 import org.openlmis.stockmanagement.domain.*;
 import org.springframework.stereotype.Repository;
 
+import java.util.Collection;
 import java.util.Date;
 import java.util.List;
 
 @Repository
 public interface StockCardMapper {
 
+  String STOCK_CARD_IDS = "<foreach item='stockCardId' collection='stockCardIds' open='(' separator=',' close=')'>" +
+      "#{stockCardId}" +
+      "</foreach>";
+
+  String ENTRY_IDS = "<foreach item='entryId' collection='entryIds' open='(' separator=',' close=')'>" +
+      "#{entryId}" +
+      "</foreach>";
+
+  /**
+   * The day an entry is effective: the day it occurred, or the day it was created if it has no occurred date.
+   */
+  String EFFECTIVE_DATE = "COALESCE(sce.occurred, sce.createddate::date)";
+
+  String EFFECTIVE_MONTH = "date_trunc('month', " + EFFECTIVE_DATE + ")::date";
+
+  /**
+   * Sort key of the entries of a stock card in the StockCardEntryOrder given as the orderBy parameter.  Both keys end
+   * with the id, and match the indexes on stock_card_entries, so entries are read newest first in index order.
+   */
+  String ENTRY_KEY = "<choose>" +
+      "<when test='orderBy == @org.openlmis.stockmanagement.domain.StockCardEntryOrder@OCCURRED'>" +
+      EFFECTIVE_DATE + ", sce.id" +
+      "</when>" +
+      "<otherwise>sce.createddate, sce.id</otherwise>" +
+      "</choose>";
+
+  String ENTRY_ORDER = "<choose>" +
+      "<when test='orderBy == @org.openlmis.stockmanagement.domain.StockCardEntryOrder@OCCURRED'>" +
+      EFFECTIVE_DATE + " DESC, sce.id DESC" +
+      "</when>" +
+      "<otherwise>sce.createddate DESC, sce.id DESC</otherwise>" +
+      "</choose>";
+
+  /**
+   * Program products for which a user has a right at the facility rf.facilityid, with the semantics of core's
+   * RoleRightsService.getRightsForUserFacilityAndProductCode: a role for the program of the program product, either
+   * without supervisory node when the facility is the user's home facility, or on the supervisory node of the
+   * requisition group that has the facility as member and a schedule for the program, or on any of that node's
+   * parents.  Uses the userId and rightName parameters; the query must define rf.
+   */
+  String PROGRAM_PRODUCTS_WITH_RIGHT = " program_products pp" +
+      "   JOIN role_assignments ra ON ra.programid = pp.programid" +
+      "   JOIN role_rights rr ON rr.roleid = ra.roleid" +
+      "   JOIN users u ON u.id = ra.userid" +
+      " WHERE ra.userid = #{userId}" +
+      "   AND rr.rightname = #{rightName}" +
+      "   AND ((ra.supervisorynodeid IS NULL AND u.facilityid = rf.facilityid)" +
+      "     OR ra.supervisorynodeid IN (WITH RECURSIVE supervisingnodes(id, parentid) AS (" +
+      "         SELECT sn.id, sn.parentid" +
+      "         FROM supervisory_nodes sn" +
+      "           JOIN requisition_groups rg ON rg.supervisorynodeid = sn.id" +
+      "           JOIN requisition_group_members rgm ON rgm.requisitiongroupid = rg.id" +
+      "           JOIN requisition_group_program_schedules rgps ON rgps.requisitiongroupid = rg.id" +
+      "         WHERE rgm.facilityid = rf.facilityid" +
+      "           AND rgps.programid = pp.programid" +
+      "         UNION" +
+      "         SELECT parent.id, parent.parentid" +
+      "         FROM supervisory_nodes parent" +
+      "           JOIN supervisingnodes child ON child.parentid = parent.id)" +
+      "       SELECT id FROM supervisingnodes))";
+
+  /**
+   * Ids of the products a user has a right for at a facility, as PROGRAM_PRODUCTS_WITH_RIGHT.  Uses the userId,
+   * facilityId and rightName parameters.
+   */
+  String PRODUCT_IDS_WITH_RIGHT = "SELECT pp.productid" +
+      " FROM (SELECT CAST(#{facilityId} AS BIGINT) AS facilityid) rf," + PROGRAM_PRODUCTS_WITH_RIGHT;
+
+  /**
+   * Whether a user has a right for the product of the stock card sc at its facility, as PROGRAM_PRODUCTS_WITH_RIGHT,
+   * so that the rights for the stock cards of many facilities are resolved by the query that reads them.  Uses the
+   * userId and rightName parameters.
+   */
+  String STOCK_CARD_WITH_RIGHT = "EXISTS (SELECT 1" +
+      " FROM (SELECT sc.facilityid) rf," + PROGRAM_PRODUCTS_WITH_RIGHT +
+      "   AND pp.productid = sc.productid)";
+
+  /*
+   * The queries below load the stock card graph with a fixed number of set-based statements, no matter how many
+   * stock cards, entries or lots are involved.  StockCardRepository stitches the results together.
+   */
+
+  /**
+   * Gets the stock cards of a facility.  If userId is given, only the stock cards whose product the user has the
+   * rightName right for are returned.
+   */
+  @Select("<script>" +
+      "SELECT *" +
+      " FROM stock_cards" +
+      " WHERE facilityid = #{facilityId}" +
+      "<if test='userId != null'> AND productid IN (" + PRODUCT_IDS_WITH_RIGHT + ")</if>" +
+      " ORDER BY id" +
+      "</script>")
+  @Results({
+      @Result(property = "id", column = "id"),
+      @Result(property = "facility.id", column = "facilityId"),
+      @Result(property = "product.id", column = "productId")
+  })
+  List<StockCard> getAllByFacilityWithoutDetails(@Param("facilityId")Long facilityId,
+                                                 @Param("userId")Long userId,
+                                                 @Param("rightName")String rightName);
+
+  /**
+   * Gets a page of the stock cards of a facility, ordered by id.  Pages are read with a keyset on the id, so reading
+   * a late page costs the same as reading the first one.
+   */
+  @Select("<script>" +
+      "SELECT *" +
+      " FROM stock_cards" +
+      " WHERE facilityid = #{facilityId}" +
+      "<if test='afterId != null'> AND id &gt; #{afterId}</if>" +
+      "<if test='userId != null'> AND productid IN (" + PRODUCT_IDS_WITH_RIGHT + ")</if>" +
+      " ORDER BY id" +
+      " LIMIT #{limit}" +
+      "</script>")
+  @Results({
+      @Result(property = "id", column = "id"),
+      @Result(property = "facility.id", column = "facilityId"),
+      @Result(property = "product.id", column = "productId")
+  })
+  List<StockCard> getPageByFacilityWithoutDetails(@Param("facilityId")Long facilityId,
+                                                  @Param("userId")Long userId,
+                                                  @Param("rightName")String rightName,
+                                                  @Param("afterId")Long afterId,
+                                                  @Param("limit")int limit);
+
+  @Select("<script>" +
+      "SELECT COUNT(*)" +
+      " FROM stock_cards" +
+      " WHERE facilityid = #{facilityId}" +
+      "<if test='userId != null'> AND productid IN (" + PRODUCT_IDS_WITH_RIGHT + ")</if>" +
+      "</script>")
+  int countByFacility(@Param("facilityId")Long facilityId,
+                      @Param("userId")Long userId,
+                      @Param("rightName")String rightName);
+
+  @Select("SELECT p.code" +
+      " FROM products p" +
+      " WHERE p.id IN (" + PRODUCT_IDS_WITH_RIGHT + ")")
+  List<String> getProductCodesWithRight(@Param("userId")Long userId,
+                                        @Param("facilityId")Long facilityId,
+                                        @Param("rightName")String rightName);
+
+  @Select("<script>" +
+      "SELECT p.*" +
+      ", pf.id AS form_id, pf.code AS form_code, pf.displayorder AS form_displayorder" +
+      ", du.id AS dosageunit_id, du.code AS dosageunit_code, du.displayorder AS dosageunit_displayorder" +
+      ", pg.id AS productgroup_id, pg.code AS productgroup_code, pg.name AS productgroup_name" +
+      " FROM products p" +
+      "   LEFT JOIN product_forms pf ON pf.id = p.formid" +
+      "   LEFT JOIN dosage_units du ON du.id = p.dosageunitid" +
+      "   LEFT JOIN product_groups pg ON pg.id = p.productgroupid" +
+      " WHERE p.id IN (SELECT productid FROM stock_cards WHERE id IN " + STOCK_CARD_IDS +
+      "   UNION SELECT l.productid FROM lots l JOIN lots_on_hand loh ON loh.lotid = l.id" +
+      "   WHERE loh.stockcardid IN " + STOCK_CARD_IDS + ")" +
+      "</script>")
+  @Results({
+      @Result(property = "id", column = "id"),
+      @Result(property = "form.id", column = "form_id"),
+      @Result(property = "form.code", column = "form_code"),
+      @Result(property = "form.displayOrder", column = "form_displayorder"),
+      @Result(property = "dosageUnit.id", column = "dosageunit_id"),
+      @Result(property = "dosageUnit.code", column = "dosageunit_code"),
+      @Result(property = "dosageUnit.displayOrder", column = "dosageunit_displayorder"),
+      @Result(property = "productGroup.id", column = "productgroup_id"),
+      @Result(property = "productGroup.code", column = "productgroup_code"),
+      @Result(property = "productGroup.name", column = "productgroup_name")
+  })
+  List<Product> getProductsForStockCards(@Param("stockCardIds")List<Long> stockCardIds);
+
   @Select("SELECT *" +
       " FROM stock_cards" +
       " WHERE facilityid = #{facilityId}" +
       "   AND productid = (SELECT id FROM products WHERE code = #{productCode})")
   @Results({
       @Result(property = "id", column = "id"),
-      @Result(property = "facility", column = "facilityId", javaType = Facility.class,
-          one = @One(select = "org.openlmis.core.repository.mapper.FacilityMapper.getById")),
-      @Result(property = "product", column = "productId", javaType = Product.class,
-          one = @One(select = "org.openlmis.core.repository.mapper.ProductMapper.getById")),
-      @Result(property = "keyValues", column = "id", javaType = List.class,
-          one = @One(select = "getStockCardKeyValues")),
-      @Result(property = "entries", column = "id", javaType = List.class,
-          many = @Many(select = "getEntries")),
-      @Result(property = "lotsOnHand", column = "id", javaType = List.class,
-      many = @Many(select = "getLotsOnHand"))
+      @Result(property = "facility.id", column = "facilityId"),
+      @Result(property = "product.id", column = "productId")
   })
-  StockCard getByFacilityAndProduct(@Param("facilityId")Long facilityId, @Param("productCode")String productCode);
+  StockCard getByFacilityAndProductWithoutDetails(@Param("facilityId")Long facilityId,
+                                                  @Param("productCode")String productCode);
 
   @Select("SELECT *" +
       " FROM stock_cards" +
@@ -37,47 +201,161 @@ public interface StockCardMapper {
       "   AND id = #{id}")
   @Results({
       @Result(property = "id", column = "id"),
-      @Result(property = "facility", column = "facilityId", javaType = Facility.class,
-          one = @One(select = "org.openlmis.core.repository.mapper.FacilityMapper.getById")),
-      @Result(property = "product", column = "productId", javaType = Product.class,
-          one = @One(select = "org.openlmis.core.repository.mapper.ProductMapper.getById")),
-      @Result(property = "keyValues", column = "id", javaType = List.class,
-          one = @One(select = "getStockCardKeyValues")),
-      @Result(property = "entries", column = "id", javaType = List.class,
-          many = @Many(select = "getEntries")),
-      @Result(property = "lotsOnHand", column = "id", javaType = List.class,
-          many = @Many(select = "getLotsOnHand"))
+      @Result(property = "facility.id", column = "facilityId"),
+      @Result(property = "product.id", column = "productId")
   })
-  StockCard getByFacilityAndId(@Param("facilityId")Long facilityId, @Param("id")Long id);
+  StockCard getByFacilityAndIdWithoutDetails(@Param("facilityId")Long facilityId, @Param("id")Long id);
 
-  @Select("SELECT *" +
-      " FROM stock_cards" +
-      " WHERE facilityid = #{facilityId}")
+  @Select("<script>" +
+      "SELECT sc.*" +
+      ", p.code AS productcode" +
+      " FROM stock_cards sc" +
+      "   JOIN products p ON p.id = sc.productid" +
+      " WHERE sc.facilityid = #{facilityId}" +
+      "   AND p.code IN " +
+      "<foreach item='productCode' collection='productCodes' open='(' separator=',' close=')'>" +
+      "#{productCode}" +
+      "</foreach>" +
+      "</script>")
   @Results({
       @Result(property = "id", column = "id"),
-      @Result(property = "product", column = "productId", javaType = Product.class,
-          one = @One(select = "org.openlmis.core.repository.mapper.ProductMapper.getById")),
-      @Result(property = "keyValues", column = "id", javaType = List.class,
-          one = @One(select = "getStockCardKeyValues")),
-      @Result(property = "entries", column = "id", javaType = List.class,
-          many = @Many(select = "getEntries")),
-      @Result(property = "lotsOnHand", column = "id", javaType = List.class,
-          many = @Many(select = "getLotsOnHand"))
+      @Result(property = "facility.id", column = "facilityId"),
+      @Result(property = "product.id", column = "productId"),
+      @Result(property = "product.code", column = "productCode")
+  })
+  List<StockCard> getByFacilityAndProductCodesWithoutDetails(@Param("facilityId")Long facilityId,
+                                                             @Param("productCodes")List<String> productCodes);
+
+  /**
+   * Gets the entries of the given stock cards, newest first in the given order.  If entryLimit is given, only that
+   * many of the newest entries are read per stock card, from the top of its index, so older history is never read.
+   */
+  @Select("<script>" +
+      "SELECT e.*" +
+      " FROM stock_cards sc" +
+      "   CROSS JOIN LATERAL (SELECT sce.*" +
+      "                       , ROW_NUMBER() OVER (ORDER BY " + ENTRY_ORDER + ") AS entryrank" +
+      "                       FROM stock_card_entries sce" +
+      "                       WHERE sce.stockcardid = sc.id" +
+      "                       ORDER BY " + ENTRY_ORDER +
+      "<if test='entryLimit != null'> LIMIT #{entryLimit}</if>) e" +
+      " WHERE sc.id IN " + STOCK_CARD_IDS +
+      " ORDER BY e.stockcardid, e.entryrank" +
+      "</script>")
+  @Results({
+      @Result(property = "id", column = "id"),
+      @Result(property = "stockCard.id", column = "stockCardId")
+  })
+  List<StockCardEntry> getEntriesForStockCards(@Param("stockCardIds")List<Long> stockCardIds,
+                                               @Param("entryLimit")Integer entryLimit,
+                                               @Param("orderBy")StockCardEntryOrder orderBy);
+
+  /**
+   * Gets a page of the entries of a facility's stock card, newest first in the given order.  Pages are read with a
+   * keyset on the sort key of the last entry of the previous page, whose id is beforeId.
+   */
+  @Select("<script>" +
+      "SELECT sce.*" +
+      " FROM stock_card_entries sce" +
+      "   JOIN stock_cards sc ON sc.id = sce.stockcardid" +
+      " WHERE sce.stockcardid = #{stockCardId}" +
+      "   AND sc.facilityid = #{facilityId}" +
+      "<if test='beforeId != null'>" +
+      "   AND (" + ENTRY_KEY + ") &lt; (SELECT " + ENTRY_KEY +
+      "                               FROM stock_card_entries sce" +
+      "                               WHERE sce.id = #{beforeId})" +
+      "</if>" +
+      " ORDER BY " + ENTRY_ORDER +
+      " LIMIT #{limit}" +
+      "</script>")
+  @Results({
+      @Result(property = "id", column = "id"),
+      @Result(property = "stockCard.id", column = "stockCardId")
+  })
+  List<StockCardEntry> getEntriesPage(@Param("facilityId")Long facilityId,
+                                      @Param("stockCardId")Long stockCardId,
+                                      @Param("beforeId")Long beforeId,
+                                      @Param("limit")int limit,
+                                      @Param("orderBy")StockCardEntryOrder orderBy);
+
+  @Select("<script>" +
+      "SELECT scekv.stockcardentryid" +
+      ", scekv.keycolumn" +
+      ", scekv.valuecolumn" +
+      ", scekv.modifieddate AS synceddate" +
+      " FROM stock_card_entry_key_values scekv" +
+      " WHERE scekv.stockcardentryid IN " +
+      "<foreach item='entryId' collection='entryIds' open='(' separator=',' close=')'>" +
+      "#{entryId}" +
+      "</foreach>" +
+      "</script>")
+  List<StockCardEntryKVRow> getKeyValuesForEntries(@Param("entryIds")List<Long> entryIds);
+
+  @Select("<script>" +
+      "SELECT stockcardid" +
+      ", keycolumn" +
+      ", valuecolumn" +
+      ", synceddate" +
+      " FROM stock_card_key_values_latest" +
+      " WHERE stockcardid IN " + STOCK_CARD_IDS +
+      "</script>")
+  List<StockCardEntryKVRow> getLatestKeyValuesForStockCards(@Param("stockCardIds")List<Long> stockCardIds);
+
+  @Select("<script>" +
+      "SELECT lohkv.lotonhandid" +
+      ", loh.stockcardid" +
+      ", lohkv.keycolumn" +
+      ", lohkv.valuecolumn" +
+      ", lohkv.synceddate" +
+      " FROM lots_on_hand loh" +
+      "   JOIN lot_on_hand_key_values_latest lohkv ON lohkv.lotonhandid = loh.id" +
+      " WHERE loh.stockcardid IN " + STOCK_CARD_IDS +
+      "</script>")
+  List<StockCardEntryKVRow> getLatestKeyValuesForLotsOnHand(@Param("stockCardIds")List<Long> stockCardIds);
+
+  @Select("<script>" +
+      "SELECT loh.*" +
+      ", l.id AS lot_id" +
+      ", l.productid AS lot_productid" +
+      ", l.lotnumber AS lot_lotnumber" +
+      ", l.manufacturername AS lot_manufacturername" +
+      ", l.manufacturedate AS lot_manufacturedate" +
+      ", l.expirationdate AS lot_expirationdate" +
+      ", l.createdby AS lot_createdby" +
+      ", l.createddate AS lot_createddate" +
+      ", l.modifiedby AS lot_modifiedby" +
+      ", l.modifieddate AS lot_modifieddate" +
+      " FROM lots_on_hand loh" +
+      "   JOIN lots l ON l.id = loh.lotid" +
+      " WHERE loh.stockcardid IN " + STOCK_CARD_IDS +
+      "</script>")
+  @Results({
+      @Result(property = "id", column = "id"),
+      @Result(property = "stockCard.id", column = "stockCardId"),
+      @Result(property = "lot.id", column = "lot_id"),
+      @Result(property = "lot.product.id", column = "lot_productid"),
+      @Result(property = "lot.lotCode", column = "lot_lotnumber"),
+      @Result(property = "lot.manufacturerName", column = "lot_manufacturername"),
+      @Result(property = "lot.manufactureDate", column = "lot_manufacturedate"),
+      @Result(property = "lot.expirationDate", column = "lot_expirationdate"),
+      @Result(property = "lot.createdBy", column = "lot_createdby"),
+      @Result(property = "lot.createdDate", column = "lot_createddate"),
+      @Result(property = "lot.modifiedBy", column = "lot_modifiedby"),
+      @Result(property = "lot.modifiedDate", column = "lot_modifieddate")
   })
-  List<StockCard> getAllByFacility(@Param("facilityId")Long facilityId);
+  List<LotOnHand> getLotsOnHandForStockCards(@Param("stockCardIds")List<Long> stockCardIds);
 
-  @Select("SELECT scekv.keycolumn" +
-          ", scekv.valuecolumn" +
-          ", scekv.modifieddate AS synceddate" +
-          " FROM stock_card_entries sce" +
-          "   JOIN stock_card_entry_key_values scekv ON scekv.stockcardentryid = sce.id" +
+  @Select("SELECT keycolumn" +
+          ", valuecolumn" +
+          ", synceddate" +
+          " FROM stock_card_key_values_latest" +
           " WHERE stockcardid = #{stockCardId}")
   List<StockCardEntryKV> getStockCardKeyValues(@Param("stockCardId")Long stockCardId);
 
   @Select("SELECT *" +
       " FROM stock_card_entries" +
       " WHERE stockcardid = #{stockCardId}" +
-      " ORDER BY createddate DESC")
+      " ORDER BY createddate DESC, id DESC")
   @Results({
       @Result(property = "keyValues", column = "id", javaType = List.class,
           many = @Many(select = "getEntryKeyValues"))
@@ -104,11 +382,10 @@ public interface StockCardMapper {
   })
   List<LotOnHand> getLotsOnHand(@Param("stockCardId")Long stockCardId);
 
-  @Select("SELECT scekv.keycolumn" +
-          ", scekv.valuecolumn" +
-          ", scekv.modifieddate AS synceddate" +
-          " FROM stock_card_entries sce" +
-          "   JOIN stock_card_entry_key_values scekv ON scekv.stockcardentryid = sce.id" +
+  @Select("SELECT keycolumn" +
+          ", valuecolumn" +
+          ", synceddate" +
+          " FROM lot_on_hand_key_values_latest" +
           " WHERE lotonhandid = #{lotOnHandId}")
   List<StockCardEntryKV> getLotOnHandKeyValues(@Param("lotOnHandId")Long lotOnHandId);
 
@@ -139,6 +416,33 @@ public interface StockCardMapper {
   @Options(useGeneratedKeys = true)
   int insert(StockCard card);
 
+  /**
+   * Inserts a stock card unless the facility already has a stock card for the product.
+   * @return the id of the inserted stock card, or null if the stock card already existed.
+   */
+  @Select("INSERT INTO stock_cards (facilityId" +
+      ", productId" +
+      ", totalQuantityOnHand" +
+      ", effectiveDate" +
+      ", notes" +
+      ", createdBy" +
+      ", createdDate" +
+      ", modifiedBy" +
+      ", modifiedDate" +
+      ") VALUES ( #{facility.id}" +
+      ", #{product.id}" +
+      ", #{totalQuantityOnHand}" +
+      ", NOW()" +
+      ", #{notes}" +
+      ", #{createdBy}" +
+      ", NOW()" +
+      ", #{modifiedBy}" +
+      ", NOW() )" +
+      " ON CONFLICT (facilityid, productid) DO NOTHING" +
+      " RETURNING id")
+  @Options(flushCache = true)
+  Long insertIfAbsent(StockCard card);
+
   //TODO:  add movement id, reference number
   @Insert("INSERT INTO stock_card_entries (stockcardid" +
       ", lotonhandid" +
@@ -183,13 +487,458 @@ public interface StockCardMapper {
       ", NOW())")
   int insertEntryKeyValue(@Param("entry")StockCardEntry entry, @Param("key")String key, @Param("value")String value);
 
-  @Update("UPDATE stock_cards " +
-      "SET totalQuantityOnHand = #{totalQuantityOnHand}" +
-          ", effectiveDate = NOW()" +
-          ", modifiedBy = #{modifiedBy}" +
-          ", modifiedDate = NOW()" +
-      "WHERE id = #{id}")
-  int update(StockCard card);
+  /**
+   * Allocates ids for new stock card entries from the sequence.
+   * @return the allocated ids, in ascending order
+   */
+  @Select("SELECT NEXTVAL('stock_card_entries_id_seq') FROM generate_series(1, #{count}) ORDER BY 1")
+  @Options(flushCache = true)
+  List<Long> getNextEntryIds(@Param("count")int count);
+
+  @Insert("<script>" +
+      "INSERT INTO stock_card_entries (id" +
+      ", stockcardid" +
+      ", lotonhandid" +
+      ", type" +
+      ", quantity" +
+      ", notes" +
+      ", adjustmentType" +
+      ", createdBy" +
+      ", createdDate" +
+      ", modifiedBy" +
+      ", modifiedDate" +
+      ", occurred" +
+      ", referenceNumber)" +
+      " VALUES " +
+      "<foreach item='entry' collection='entries' separator=','>" +
+      "( #{entry.id}" +
+      ", #{entry.stockCard.id}" +
+      ", #{entry.lotOnHand.id}" +
+      ", #{entry.type}" +
+      ", #{entry.quantity}" +
+      ", #{entry.notes}" +
+      ", #{entry.adjustmentReason.name}" +
+      ", #{entry.createdBy}" +
+      ", NOW()" +
+      ", #{entry.modifiedBy}" +
+      ", NOW()" +
+      ", #{entry.occurred}" +
+      ", #{entry.referenceNumber})" +
+      "</foreach>" +
+      "</script>")
+  int insertEntries(@Param("entries")List<StockCardEntry> entries);
+
+  @Insert("<script>" +
+      "INSERT INTO stock_card_entry_key_values (stockcardentryid" +
+      ", keycolumn" +
+      ", valuecolumn" +
+      ", createdBy" +
+      ", createdDate" +
+      ", modifiedBy" +
+      ", modifiedDate)" +
+      " VALUES " +
+      "<foreach item='entry' collection='entries' separator=','>" +
+      "<foreach item='kv' collection='entry.keyValues' separator=','>" +
+      "(#{entry.id}" +
+      ", #{kv.keyColumn}" +
+      ", #{kv.valueColumn}" +
+      ", #{entry.createdBy}" +
+      ", NOW()" +
+      ", #{entry.modifiedBy}" +
+      ", NOW())" +
+      "</foreach>" +
+      "</foreach>" +
+      "</script>")
+  int insertEntriesKeyValues(@Param("entries")List<StockCardEntry> entries);
+
+  /**
+   * Records event ids of a facility, skipping those already recorded.
+   * @return the event ids that were not recorded before.
+   */
+  @Select("<script>" +
+      "INSERT INTO stock_event_ids (facilityid, eventid, createddate)" +
+      " VALUES " +
+      "<foreach item='eventId' collection='eventIds' separator=','>" +
+      "(#{facilityId}, #{eventId}, NOW())" +
+      "</foreach>" +
+      " ON CONFLICT (facilityid, eventid) DO NOTHING" +
+      " RETURNING eventid" +
+      "</script>")
+  @Options(flushCache = true)
+  List<String> insertEventIds(@Param("facilityId")Long facilityId, @Param("eventIds")List<String> eventIds);
+
+  /**
+   * Records the given key/values as the newest values of their stock card's custom properties.  A key may appear only
+   * once per stock card in a call.
+   */
+  @Insert("<script>" +
+      "INSERT INTO stock_card_key_values_latest (stockcardid" +
+      ", keycolumn" +
+      ", valuecolumn" +
+      ", synceddate)" +
+      " VALUES " +
+      "<foreach item='kv' collection='keyValues' separator=','>" +
+      "(#{kv.stockCardId}" +
+      ", LOWER(#{kv.keyColumn})" +
+      ", #{kv.valueColumn}" +
+      ", NOW())" +
+      "</foreach>" +
+      " ON CONFLICT (stockcardid, keycolumn) DO UPDATE" +
+      " SET valuecolumn = EXCLUDED.valuecolumn" +
+      ", synceddate = EXCLUDED.synceddate" +
+      " WHERE stock_card_key_values_latest.synceddate &lt;= EXCLUDED.synceddate" +
+      "</script>")
+  int upsertStockCardKeyValuesLatest(@Param("keyValues")List<StockCardEntryKVRow> keyValues);
+
+  /**
+   * Records the given key/values as the newest values of their lot on hand's custom properties.  A key may appear only
+   * once per lot on hand in a call.
+   */
+  @Insert("<script>" +
+      "INSERT INTO lot_on_hand_key_values_latest (lotonhandid" +
+      ", keycolumn" +
+      ", valuecolumn" +
+      ", synceddate)" +
+      " VALUES " +
+      "<foreach item='kv' collection='keyValues' separator=','>" +
+      "(#{kv.lotOnHandId}" +
+      ", LOWER(#{kv.keyColumn})" +
+      ", #{kv.valueColumn}" +
+      ", NOW())" +
+      "</foreach>" +
+      " ON CONFLICT (lotonhandid, keycolumn) DO UPDATE" +
+      " SET valuecolumn = EXCLUDED.valuecolumn" +
+      ", synceddate = EXCLUDED.synceddate" +
+      " WHERE lot_on_hand_key_values_latest.synceddate &lt;= EXCLUDED.synceddate" +
+      "</script>")
+  int upsertLotOnHandKeyValuesLatest(@Param("keyValues")List<StockCardEntryKVRow> keyValues);
+
+  /**
+   * Adds a snapshot row, holding the balance before the given entries, for each month of a stock card that the entries
+   * are effective in and that has none yet.  addToStockCardSnapshots() then adds the entries.
+   */
+  @Insert("<script>" +
+      "INSERT INTO stock_card_balance_snapshots (stockcardid, periodstart, quantity)" +
+      " SELECT m.stockcardid" +
+      ", m.periodstart" +
+      ", COALESCE((SELECT s.quantity" +
+      "            FROM stock_card_balance_snapshots s" +
+      "            WHERE s.stockcardid = m.stockcardid" +
+      "              AND s.periodstart &lt; m.periodstart" +
+      "            ORDER BY s.periodstart DESC" +
+      "            LIMIT 1), 0)" +
+      " FROM (SELECT DISTINCT sce.stockcardid, " + EFFECTIVE_MONTH + " AS periodstart" +
+      "       FROM stock_card_entries sce" +
+      "       WHERE sce.id IN " + ENTRY_IDS + ") m" +
+      " ON CONFLICT (stockcardid, periodstart) DO NOTHING" +
+      "</script>")
+  int insertMissingStockCardSnapshots(@Param("entryIds")List<Long> entryIds);
+
+  /**
+   * Adds the quantities of the given entries to the snapshots of their stock cards, from the month each entry is
+   * effective in on.
+   */
+  @Update("<script>" +
+      "UPDATE stock_card_balance_snapshots s" +
+      " SET quantity = s.quantity + d.quantity" +
+      " FROM (SELECT s2.stockcardid, s2.periodstart, SUM(m.quantity) AS quantity" +
+      "       FROM (SELECT sce.stockcardid, " + EFFECTIVE_MONTH + " AS periodstart, SUM(sce.quantity) AS quantity" +
+      "             FROM stock_card_entries sce" +
+      "             WHERE sce.id IN " + ENTRY_IDS +
+      "             GROUP BY sce.stockcardid, " + EFFECTIVE_MONTH + ") m" +
+      "         JOIN stock_card_balance_snapshots s2 ON s2.stockcardid = m.stockcardid" +
+      "           AND s2.periodstart &gt;= m.periodstart" +
+      "       GROUP BY s2.stockcardid, s2.periodstart) d" +
+      " WHERE s.stockcardid = d.stockcardid" +
+      "   AND s.periodstart = d.periodstart" +
+      "</script>")
+  int addToStockCardSnapshots(@Param("entryIds")List<Long> entryIds);
+
+  @Insert("<script>" +
+      "INSERT INTO lot_on_hand_balance_snapshots (lotonhandid, periodstart, quantity)" +
+      " SELECT m.lotonhandid" +
+      ", m.periodstart" +
+      ", COALESCE((SELECT s.quantity" +
+      "            FROM lot_on_hand_balance_snapshots s" +
+      "            WHERE s.lotonhandid = m.lotonhandid" +
+      "              AND s.periodstart &lt; m.periodstart" +
+      "            ORDER BY s.periodstart DESC" +
+      "            LIMIT 1), 0)" +
+      " FROM (SELECT DISTINCT sce.lotonhandid, " + EFFECTIVE_MONTH + " AS periodstart" +
+      "       FROM stock_card_entries sce" +
+      "       WHERE sce.id IN " + ENTRY_IDS +
+      "         AND sce.lotonhandid IS NOT NULL) m" +
+      " ON CONFLICT (lotonhandid, periodstart) DO NOTHING" +
+      "</script>")
+  int insertMissingLotOnHandSnapshots(@Param("entryIds")List<Long> entryIds);
+
+  @Update("<script>" +
+      "UPDATE lot_on_hand_balance_snapshots s" +
+      " SET quantity = s.quantity + d.quantity" +
+      " FROM (SELECT s2.lotonhandid, s2.periodstart, SUM(m.quantity) AS quantity" +
+      "       FROM (SELECT sce.lotonhandid, " + EFFECTIVE_MONTH + " AS periodstart, SUM(sce.quantity) AS quantity" +
+      "             FROM stock_card_entries sce" +
+      "             WHERE sce.id IN " + ENTRY_IDS +
+      "               AND sce.lotonhandid IS NOT NULL" +
+      "             GROUP BY sce.lotonhandid, " + EFFECTIVE_MONTH + ") m" +
+      "         JOIN lot_on_hand_balance_snapshots s2 ON s2.lotonhandid = m.lotonhandid" +
+      "           AND s2.periodstart &gt;= m.periodstart" +
+      "       GROUP BY s2.lotonhandid, s2.periodstart) d" +
+      " WHERE s.lotonhandid = d.lotonhandid" +
+      "   AND s.periodstart = d.periodstart" +
+      "</script>")
+  int addToLotOnHandSnapshots(@Param("entryIds")List<Long> entryIds);
+
+  /**
+   * Gets the balances of stock cards and of their lots on hand at the end of a day, from the latest snapshot before
+   * the month of the day and the entries of that month up to the day.
+   * @return a row per lot on hand, and a row without lot on hand for each stock card without lots on hand.
+   */
+  @Select("<script>" +
+      "SELECT sc.id AS stockcardid" +
+      ", COALESCE((SELECT s.quantity" +
+      "            FROM stock_card_balance_snapshots s" +
+      "            WHERE s.stockcardid = sc.id" +
+      "              AND s.periodstart &lt; date_trunc('month', #{asOf}::date)::date" +
+      "            ORDER BY s.periodstart DESC" +
+      "            LIMIT 1), 0)" +
+      "  + COALESCE((SELECT SUM(sce.quantity)" +
+      "              FROM stock_card_entries sce" +
+      "              WHERE sce.stockcardid = sc.id" +
+      "                AND " + EFFECTIVE_DATE + " &gt;= date_trunc('month', #{asOf}::date)::date" +
+      "                AND " + EFFECTIVE_DATE + " &lt;= #{asOf}::date), 0) AS totalquantityonhand" +
+      ", loh.id AS lotonhandid" +
+      ", CASE WHEN loh.id IS NOT NULL THEN" +
+      "    COALESCE((SELECT s.quantity" +
+      "              FROM lot_on_hand_balance_snapshots s" +
+      "              WHERE s.lotonhandid = loh.id" +
+      "                AND s.periodstart &lt; date_trunc('month', #{asOf}::date)::date" +
+      "              ORDER BY s.periodstart DESC" +
+      "              LIMIT 1), 0)" +
+      "    + COALESCE((SELECT SUM(sce.quantity)" +
+      "                FROM stock_card_entries sce" +
+      "                WHERE sce.lotonhandid = loh.id" +
+      "                  AND " + EFFECTIVE_DATE + " &gt;= date_trunc('month', #{asOf}::date)::date" +
+      "                  AND " + EFFECTIVE_DATE + " &lt;= #{asOf}::date), 0)" +
+      "  END AS lotquantityonhand" +
+      " FROM stock_cards sc" +
+      "   LEFT JOIN lots_on_hand loh ON loh.stockcardid = sc.id" +
+      " WHERE sc.id IN " + STOCK_CARD_IDS +
+      "</script>")
+  List<StockCardBalanceRow> getBalancesAsOf(@Param("stockCardIds")List<Long> stockCardIds, @Param("asOf")Date asOf);
+
+  /**
+   * Gets the balances of stock cards, and of the given lots on hand of them, locking the stock cards until the end of
+   * the transaction.  Every change to a lot on hand also changes its stock card, so neither balance can change until
+   * then.  Stock cards are locked in id order, like stock cards updated by a batch of entries.
+   */
+  @Select("<script>" +
+      "SELECT sc.id AS stockcardid" +
+      ", sc.totalquantityonhand" +
+      ", loh.id AS lotonhandid" +
+      ", loh.quantityonhand AS lotquantityonhand" +
+      " FROM stock_cards sc" +
+      "   LEFT JOIN lots_on_hand loh ON loh.stockcardid = sc.id" +
+      "<choose>" +
+      "<when test='lotOnHandIds.isEmpty()'>" +
+      "     AND FALSE" +
+      "</when>" +
+      "<otherwise>" +
+      "     AND loh.id IN " +
+      "<foreach item='lotOnHandId' collection='lotOnHandIds' open='(' separator=',' close=')'>" +
+      "#{lotOnHandId}" +
+      "</foreach>" +
+      "</otherwise>" +
+      "</choose>" +
+      " WHERE sc.id IN " + STOCK_CARD_IDS +
+      " ORDER BY sc.id" +
+      " FOR UPDATE OF sc" +
+      "</script>")
+  @Options(flushCache = true)
+  List<StockCardBalanceRow> getBalancesForUpdate(@Param("stockCardIds")List<Long> stockCardIds,
+                                                 @Param("lotOnHandIds")List<Long> lotOnHandIds);
+
+  /**
+   * Adds a quantity to the stock card's total quantity on hand in the database, so that concurrent updates of the same
+   * stock card can't overwrite each other.
+   * @return the new total quantity on hand
+   */
+  @Select("UPDATE stock_cards" +
+      " SET totalQuantityOnHand = totalQuantityOnHand + #{quantity}" +
+      ", effectiveDate = NOW()" +
+      ", modifiedBy = #{modifiedBy}" +
+      ", modifiedDate = NOW()" +
+      " WHERE id = #{id}" +
+      " RETURNING totalQuantityOnHand")
+  @Options(flushCache = true)
+  Long addToTotalQuantityOnHand(@Param("id")Long id, @Param("quantity")long quantity,
+                                @Param("modifiedBy")Long modifiedBy);
+
+  /**
+   * Gets the change watermark: the oldest transaction id that may still be running.  All changes by transactions with
+   * a lower id are committed or rolled back, and visible to statements that start afterwards.
+   */
+  @Select("SELECT txid_snapshot_xmin(txid_current_snapshot())")
+  long getChangeWatermark();
+
+  /**
+   * Gets the stock cards of a facility changed by transactions with ids from since, or from the start if it is null,
+   * up to until, exclusive.  If userId is given, only the stock cards whose product the user has the rightName right
+   * for are returned.
+   */
+  @Select("<script>" +
+      "SELECT sc.*" +
+      ", p.code AS productcode" +
+      " FROM stock_cards sc" +
+      "   JOIN products p ON p.id = sc.productid" +
+      " WHERE sc.facilityid = #{facilityId}" +
+      "   AND sc.changetxid &lt; #{until}" +
+      "<if test='since != null'> AND sc.changetxid &gt;= #{since}</if>" +
+      "<if test='userId != null'> AND sc.productid IN (" + PRODUCT_IDS_WITH_RIGHT + ")</if>" +
+      " ORDER BY sc.id" +
+      "</script>")
+  @Results({
+      @Result(property = "id", column = "id"),
+      @Result(property = "facility.id", column = "facilityId"),
+      @Result(property = "product.id", column = "productId"),
+      @Result(property = "product.code", column = "productCode")
+  })
+  List<StockCard> getChangedStockCards(@Param("facilityId")Long facilityId,
+                                       @Param("userId")Long userId,
+                                       @Param("rightName")String rightName,
+                                       @Param("since")Long since,
+                                       @Param("until")long until);
+
+  @Select("<script>" +
+      "SELECT loh.*" +
+      ", l.id AS lot_id" +
+      ", l.productid AS lot_productid" +
+      ", l.lotnumber AS lot_lotnumber" +
+      ", l.manufacturername AS lot_manufacturername" +
+      ", l.manufacturedate AS lot_manufacturedate" +
+      ", l.expirationdate AS lot_expirationdate" +
+      ", l.createdby AS lot_createdby" +
+      ", l.createddate AS lot_createddate" +
+      ", l.modifiedby AS lot_modifiedby" +
+      ", l.modifieddate AS lot_modifieddate" +
+      " FROM lots_on_hand loh" +
+      "   JOIN lots l ON l.id = loh.lotid" +
+      " WHERE loh.stockcardid IN " + STOCK_CARD_IDS +
+      "   AND loh.changetxid &lt; #{until}" +
+      "<if test='since != null'> AND loh.changetxid &gt;= #{since}</if>" +
+      " ORDER BY loh.stockcardid, loh.id" +
+      "</script>")
+  @Results({
+      @Result(property = "id", column = "id"),
+      @Result(property = "stockCard.id", column = "stockCardId"),
+      @Result(property = "lot.id", column = "lot_id"),
+      @Result(property = "lot.product.id", column = "lot_productid"),
+      @Result(property = "lot.lotCode", column = "lot_lotnumber"),
+      @Result(property = "lot.manufacturerName", column = "lot_manufacturername"),
+      @Result(property = "lot.manufactureDate", column = "lot_manufacturedate"),
+      @Result(property = "lot.expirationDate", column = "lot_expirationdate"),
+      @Result(property = "lot.createdBy", column = "lot_createdby"),
+      @Result(property = "lot.createdDate", column = "lot_createddate"),
+      @Result(property = "lot.modifiedBy", column = "lot_modifiedby"),
+      @Result(property = "lot.modifiedDate", column = "lot_modifieddate")
+  })
+  List<LotOnHand> getChangedLotsOnHand(@Param("stockCardIds")List<Long> stockCardIds,
+                                       @Param("since")Long since,
+                                       @Param("until")long until);
+
+  @Select("<script>" +
+      "SELECT sce.*" +
+      " FROM stock_card_entries sce" +
+      " WHERE sce.stockcardid IN " + STOCK_CARD_IDS +
+      "   AND sce.changetxid &lt; #{until}" +
+      "<if test='since != null'> AND sce.changetxid &gt;= #{since}</if>" +
+      " ORDER BY sce.stockcardid, sce.id" +
+      "</script>")
+  @Results({
+      @Result(property = "id", column = "id"),
+      @Result(property = "stockCard.id", column = "stockCardId")
+  })
+  List<StockCardEntry> getChangedEntries(@Param("stockCardIds")List<Long> stockCardIds,
+                                         @Param("since")Long since,
+                                         @Param("until")long until);
+
+  /**
+   * Gets the product code and balance of the stock cards of a facility, with the code, expiration date and balance of
+   * their lots on hand, as a row per lot on hand, or a row without lot for stock cards without lots on hand.  Rows are
+   * ordered by stock card id, then by lot expiration date.  Reads no entries nor any other details, so its cost is
+   * the same whatever the history of the stock cards.  If userId is given, only the stock cards whose product the user
+   * has the rightName right for are returned.
+   */
+  @Select("<script>" +
+      "SELECT sc.id AS stockcardid" +
+      ", p.code AS productcode" +
+      ", sc.totalquantityonhand" +
+      ", l.lotnumber AS lotcode" +
+      ", l.expirationdate AS lotexpirationdate" +
+      ", loh.quantityonhand AS lotquantityonhand" +
+      " FROM stock_cards sc" +
+      "   JOIN products p ON p.id = sc.productid" +
+      "   LEFT JOIN lots_on_hand loh ON loh.stockcardid = sc.id" +
+      "<if test='!includeEmptyLots'> AND loh.quantityonhand &gt; 0</if>" +
+      "   LEFT JOIN lots l ON l.id = loh.lotid" +
+      " WHERE sc.facilityid = #{facilityId}" +
+      "<if test='userId != null'> AND sc.productid IN (" + PRODUCT_IDS_WITH_RIGHT + ")</if>" +
+      " ORDER BY sc.id, l.expirationdate, loh.id" +
+      "</script>")
+  List<StockCardSummaryRow> getStockCardSummaries(@Param("facilityId")Long facilityId,
+                                                  @Param("userId")Long userId,
+                                                  @Param("rightName")String rightName,
+                                                  @Param("includeEmptyLots")boolean includeEmptyLots);
+
+  /**
+   * Gets the stock on hand of the stock cards of many facilities, with a single grouped query, as rows of three
+   * levels: the stock on hand of a product at a facility (FACILITY), of a product at all the facilities (PRODUCT), and
+   * of a lot of a product at all the facilities (LOT).  If productCodes is given, only the stock cards of these
+   * products are read.  If userId is given, only the stock cards whose product the user has the rightName right for
+   * at their facility are read.  The balance of a stock card is counted once, on the row of its first lot on hand.
+   */
+  @Select("<script>" +
+      "SELECT sb.productcode" +
+      ", CASE WHEN GROUPING(sb.facilityid) = 0 THEN 'FACILITY' WHEN GROUPING(sb.lotid) = 0 THEN 'LOT'" +
+      "   ELSE 'PRODUCT' END AS level" +
+      ", sb.facilityid" +
+      ", sb.lotcode" +
+      ", sb.lotexpirationdate" +
+      ", SUM(sb.cardquantityonhand) AS totalquantityonhand" +
+      ", SUM(sb.lotquantityonhand) AS lotquantityonhand" +
+      " FROM (SELECT p.code AS productcode" +
+      "     , sc.facilityid" +
+      "     , loh.lotid" +
+      "     , l.lotnumber AS lotcode" +
+      "     , l.expirationdate AS lotexpirationdate" +
+      "     , CASE WHEN ROW_NUMBER() OVER (PARTITION BY sc.id ORDER BY loh.id) = 1" +
+      "         THEN sc.totalquantityonhand ELSE 0 END AS cardquantityonhand" +
+      "     , loh.quantityonhand AS lotquantityonhand" +
+      "   FROM stock_cards sc" +
+      "     JOIN products p ON p.id = sc.productid" +
+      "     LEFT JOIN lots_on_hand loh ON loh.stockcardid = sc.id" +
+      "     LEFT JOIN lots l ON l.id = loh.lotid" +
+      "   WHERE sc.facilityid IN " +
+      "<foreach item='facilityId' collection='facilityIds' open='(' separator=',' close=')'>" +
+      "#{facilityId}" +
+      "</foreach>" +
+      "<if test='productCodes != null'>" +
+      "     AND p.code IN " +
+      "<foreach item='productCode' collection='productCodes' open='(' separator=',' close=')'>" +
+      "#{productCode}" +
+      "</foreach>" +
+      "</if>" +
+      "<if test='userId != null'> AND " + STOCK_CARD_WITH_RIGHT + "</if>" +
+      "   ) sb" +
+      " GROUP BY GROUPING SETS ((sb.productcode, sb.facilityid), (sb.productcode)," +
+      "   (sb.productcode, sb.lotid, sb.lotcode, sb.lotexpirationdate))" +
+      " HAVING GROUPING(sb.lotid) = 1 OR sb.lotid IS NOT NULL" +
+      " ORDER BY sb.productcode, sb.facilityid NULLS FIRST, sb.lotexpirationdate, sb.lotcode" +
+      "</script>")
+  List<StockOnHandAggregateRow> getStockOnHandAggregates(@Param("facilityIds")Collection<Long> facilityIds,
+                                                         @Param("productCodes")Collection<String> productCodes,
+                                                         @Param("userId")Long userId,
+                                                         @Param("rightName")String rightName);
 
   @Select("SELECT modifieddate FROM stock_cards " +
       "WHERE facilityid = #{facilityId} " +
@@ -0,0 +1,64 @@
+package org.openlmis.stockmanagement.repository.mapper;
+
+import org.apache.ibatis.annotations.*;
+import org.openlmis.stockmanagement.domain.StockEventJob;
+import org.springframework.stereotype.Repository;
+
+import java.util.List;
+
+@Repository
+public interface StockEventJobMapper {
+
+  @Insert("INSERT into stock_event_jobs " +
+      " (facilityId, userId, status, events, eventCount" +
+      ", createdBy, createdDate, modifiedBy, modifiedDate) " +
+      "values " +
+      " (#{facilityId}, #{userId}, #{status}, #{events}, #{eventCount}" +
+      ", #{createdBy}, NOW(), #{modifiedBy}, NOW())")
+  @Options(useGeneratedKeys = true)
+  void insert(StockEventJob job);
+
+  @Select("SELECT *" +
+      " FROM stock_event_jobs" +
+      " WHERE id = #{id}")
+  StockEventJob getById(@Param("id") Long id);
+
+  /**
+   * Moves a queued job to processing, so that only one worker processes it.
+   * @return the job, or null if it was not queued.
+   */
+  @Select("UPDATE stock_event_jobs" +
+      " SET status = 'PROCESSING', startedDate = NOW(), modifiedDate = NOW()" +
+      " WHERE id = #{id}" +
+      "   AND status = 'QUEUED'" +
+      " RETURNING *")
+  @Options(flushCache = true)
+  StockEventJob claim(@Param("id") Long id);
+
+  @Update("UPDATE stock_event_jobs" +
+      " SET status = 'SUCCEEDED', completedDate = NOW(), modifiedDate = NOW()" +
+      " WHERE id = #{id}")
+  void markSucceeded(@Param("id") Long id);
+
+  @Update("UPDATE stock_event_jobs" +
+      " SET status = 'FAILED', errorMessage = #{errorMessage}, completedDate = NOW(), modifiedDate = NOW()" +
+      " WHERE id = #{id}")
+  void markFailed(@Param("id") Long id, @Param("errorMessage") String errorMessage);
+
+  /**
+   * Fails the jobs that have been processing since before the timeout, e.g. because the server stopped while
+   * processing them.  They are not queued again, since their events may have been applied already.
+   * @return the number of jobs failed.
+   */
+  @Update("UPDATE stock_event_jobs" +
+      " SET status = 'FAILED', errorMessage = #{errorMessage}, completedDate = NOW(), modifiedDate = NOW()" +
+      " WHERE status = 'PROCESSING'" +
+      "   AND startedDate < NOW() - #{timeoutMinutes} * INTERVAL '1 minute'")
+  int failStaleProcessing(@Param("timeoutMinutes") int timeoutMinutes, @Param("errorMessage") String errorMessage);
+
+  @Select("SELECT id" +
+      " FROM stock_event_jobs" +
+      " WHERE status = 'QUEUED'" +
+      " ORDER BY id")
+  List<Long> getQueuedIds();
+}
@@ -0,0 +1,79 @@
+package org.openlmis.stockmanagement.service;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import org.openlmis.core.domain.Product;
+import org.openlmis.core.service.ProductService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Read-through cache of the products used by stock management, by code and by id.  The cache is size-bounded and
+ * entries expire some time after being loaded, as products are maintained outside of this module.  Cached products
+ * are shared by all requests, so they must not be modified.
+ */
+@Component
+public class ProductCache {
+
+  private final ProductService productService;
+
+  private final Cache<String, Product> productsByCode;
+
+  private final Cache<Long, Product> productsById;
+
+  @Autowired
+  public ProductCache(ProductService productService,
+                      @Value("${stockmanagement.cache.products.maximumSize:10000}") long maximumSize,
+                      @Value("${stockmanagement.cache.expireAfterWriteSeconds:600}") long expireAfterWriteSeconds) {
+    this.productService = Objects.requireNonNull(productService);
+    this.productsByCode = CacheBuilder.newBuilder()
+        .maximumSize(maximumSize)
+        .expireAfterWrite(expireAfterWriteSeconds, TimeUnit.SECONDS)
+        .recordStats()
+        .build();
+    this.productsById = CacheBuilder.newBuilder()
+        .maximumSize(maximumSize)
+        .expireAfterWrite(expireAfterWriteSeconds, TimeUnit.SECONDS)
+        .recordStats()
+        .build();
+  }
+
+  /**
+   * @return the product, or null if no product has the code.
+   */
+  public Product getByCode(String code) {
+    Product product = productsByCode.getIfPresent(code);
+    if (null == product) {
+      product = productService.getByCode(code);
+      if (null != product) productsByCode.put(code, product);
+    }
+
+    return product;
+  }
+
+  /**
+   * @return the product, or null if no product has the id.
+   */
+  public Product getById(Long id) {
+    Product product = productsById.getIfPresent(id);
+    if (null == product) {
+      product = productService.getById(id);
+      if (null != product) productsById.put(id, product);
+    }
+
+    return product;
+  }
+
+  public CacheStats getByCodeStats() {
+    return productsByCode.stats();
+  }
+
+  public CacheStats getByIdStats() {
+    return productsById.stats();
+  }
+}
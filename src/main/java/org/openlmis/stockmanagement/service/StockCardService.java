@@ -10,20 +10,31 @@
 
 package org.openlmis.stockmanagement.service;
 
+import com.google.common.collect.Lists;
 import lombok.NoArgsConstructor;
-import org.openlmis.core.repository.ProductRepository;
 import org.openlmis.core.service.*;
-import org.openlmis.stockmanagement.domain.Lot;
-import org.openlmis.stockmanagement.domain.LotOnHand;
-import org.openlmis.stockmanagement.domain.StockCard;
-import org.openlmis.stockmanagement.domain.StockCardEntry;
+import org.openlmis.stockmanagement.domain.*;
+import org.openlmis.stockmanagement.dto.StockCardChanges;
+import org.openlmis.stockmanagement.dto.StockCardSummary;
+import org.openlmis.stockmanagement.dto.StockOnHandAggregate;
 import org.openlmis.stockmanagement.repository.LotRepository;
 import org.openlmis.stockmanagement.repository.StockCardRepository;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionStatus;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import java.util.*;
+import java.util.concurrent.*;
 
 
 /**
@@ -38,7 +49,7 @@ public class StockCardService {
   FacilityService facilityService;
 
   @Autowired
-  ProductRepository productRepository;
+  ProductCache productCache;
 
   @Autowired
   LotRepository lotRepository;
@@ -46,23 +57,63 @@ public class StockCardService {
   @Autowired
   StockCardRepository repository;
 
+  @Autowired
+  @Qualifier("openLmisTransactionManager")
+  PlatformTransactionManager transactionManager;
+
+  // number of stock cards whose entries are added at the same time, each using a connection of its own
+  @Value("${stockmanagement.apply.parallelism:1}")
+  private int applyParallelism = 1;
+
+  private ExecutorService applyExecutor;
+
+  // keeps the balance query of a physical count well below the bind parameter limit of a single statement
+  private static final int BALANCE_BATCH_SIZE = 1000;
+
   StockCardService(FacilityService facilityService,
-                   ProductRepository productRepository,
+                   ProductCache productCache,
                    LotRepository lotRepository,
                    StockCardRepository repository) {
     this.facilityService = Objects.requireNonNull(facilityService);
-    this.productRepository = Objects.requireNonNull(productRepository);
+    this.productCache = Objects.requireNonNull(productCache);
     this.lotRepository = Objects.requireNonNull(lotRepository);
     this.repository = Objects.requireNonNull(repository);
   }
 
+  StockCardService(FacilityService facilityService,
+                   ProductCache productCache,
+                   LotRepository lotRepository,
+                   StockCardRepository repository,
+                   PlatformTransactionManager transactionManager,
+                   int applyParallelism) {
+    this(facilityService, productCache, lotRepository, repository);
+    this.transactionManager = Objects.requireNonNull(transactionManager);
+    this.applyParallelism = applyParallelism;
+    initApplyExecutor();
+  }
+
+  @PostConstruct
+  void initApplyExecutor() {
+    if (applyParallelism > 1) {
+      applyExecutor = Executors.newFixedThreadPool(applyParallelism);
+    }
+  }
+
+  @PreDestroy
+  void shutdownApplyExecutor() {
+    if (null != applyExecutor) applyExecutor.shutdown();
+  }
+
+  public int getApplyParallelism() {
+    return applyParallelism;
+  }
+
   @Transactional
   public LotOnHand getOrCreateLotOnHand(Lot lot, StockCard stockCard) {
     LotOnHand lotOnHand = lotRepository.getLotOnHandByStockCardAndLotObject(stockCard.getId(), lot);
     if (null == lotOnHand) {
       Lot l = lotRepository.getOrCreateLot(lot);
-      lotOnHand = LotOnHand.createZeroedLotOnHand(l, stockCard);
-      lotRepository.saveLotOnHand(lotOnHand);
+      lotOnHand = lotRepository.getOrCreateLotOnHand(LotOnHand.createZeroedLotOnHand(l, stockCard));
     }
 
     Objects.requireNonNull(lotOnHand);
@@ -79,7 +130,7 @@ public class StockCardService {
       }
     } else if (null != lotObj) { // Lot specified by object
       if (null == lotObj.getProduct()) {
-        lotObj.setProduct(productRepository.getByCode(productCode));
+        lotObj.setProduct(productCache.getByCode(productCode));
       }
       if (!lotObj.isValid()) {
         str.append("error.lot.invalid");
@@ -92,35 +143,301 @@ public class StockCardService {
     return lotOnHand;
   }
 
-  public StockCard getOrCreateStockCard(Long facilityId, String productCode) {
-    return repository.getOrCreateStockCard(facilityId, productCode);
+  public Map<String, StockCard> getOrCreateStockCards(Long facilityId, Collection<String> productCodes) {
+    return repository.getOrCreateStockCards(facilityId, productCodes);
   }
 
-  public StockCard getStockCardById(Long facilityId, Long stockCardId) {
-    return repository.getStockCardById(facilityId, stockCardId);
+  public StockCard getStockCardById(Long facilityId, Long stockCardId, Integer entryLimit,
+                                    StockCardEntryOrder orderBy) {
+    return repository.getStockCardById(facilityId, stockCardId, entryLimit, orderBy);
   }
 
-  public List<StockCard> getStockCards(Long facilityId) {
-    return repository.getStockCards(facilityId);
+  public List<StockCard> getStockCards(Long facilityId, Long userId, String rightName, Integer entryLimit,
+                                       StockCardEntryOrder orderBy) {
+    return repository.getStockCards(facilityId, userId, rightName, entryLimit, orderBy);
   }
 
-  @Transactional
-  public void addStockCardEntry(StockCardEntry entry) {
-    StockCard card = entry.getStockCard();
+  public List<StockCard> getStockCardsPage(Long facilityId, Long userId, String rightName, Long afterId, int limit,
+                                           Integer entryLimit, StockCardEntryOrder orderBy) {
+    return repository.getStockCardsPage(facilityId, userId, rightName, afterId, limit, entryLimit, orderBy);
+  }
 
-    card.addToTotalQuantityOnHand(entry.getQuantity());
-    repository.persistStockCardEntry(entry);
-    repository.updateStockCard(card);
+  public List<StockCardEntry> getStockCardEntriesPage(Long facilityId, Long stockCardId, Long beforeId, int limit,
+                                                      StockCardEntryOrder orderBy) {
+    return repository.getStockCardEntriesPage(facilityId, stockCardId, beforeId, limit, orderBy);
+  }
 
-    LotOnHand lotOnHand = entry.getLotOnHand();
-    if (null != lotOnHand) {
-      lotOnHand.addToQuantityOnHand(entry.getQuantity());
-      lotRepository.saveLotOnHand(lotOnHand);
-    }
+  public StockCardChanges getChanges(Long facilityId, Long userId, String rightName, Long since) {
+    return repository.getChanges(facilityId, userId, rightName, since);
+  }
+
+  public List<StockCardSummary> getStockCardSummaries(Long facilityId, Long userId, String rightName,
+                                                      boolean includeEmptyLots) {
+    return repository.getStockCardSummaries(facilityId, userId, rightName, includeEmptyLots);
+  }
+
+  public List<StockOnHandAggregate> getStockOnHandAggregates(Collection<Long> facilityIds,
+                                                             Collection<String> productCodes,
+                                                             Long userId, String rightName) {
+    return repository.getStockOnHandAggregates(facilityIds, productCodes, userId, rightName);
   }
 
+  public int countStockCards(Long facilityId, Long userId, String rightName) {
+    return repository.countStockCards(facilityId, userId, rightName);
+  }
+
+  public Set<String> getProductCodesWithRight(Long userId, Long facilityId, String rightName) {
+    return repository.getProductCodesWithRight(userId, facilityId, rightName);
+  }
+
+  public Set<String> claimEventIds(Long facilityId, List<String> eventIds) {
+    return repository.claimEventIds(facilityId, eventIds);
+  }
+
+  /**
+   * Adds a batch of entries.  Entries are inserted with multi-row inserts, and each stock card and lot on hand touched
+   * by the batch is updated once, in the database, with the sum of its entries' quantities.  Physical count entries
+   * are first turned into differences to the balances they count.
+   * @param entries the entries to add, in the order they occurred
+   */
   @Transactional
   public void addStockCardEntries(List<StockCardEntry> entries) {
-    for(StockCardEntry entry : entries) addStockCardEntry(entry);
+    for (StockCardEntry entry : entries) {
+      LotOnHand lotOnHand = entry.getLotOnHand();
+      if (null != lotOnHand && null == lotOnHand.getId()) {
+        entry.setLotOnHand(lotRepository.getOrCreateLotOnHand(lotOnHand));
+      }
+    }
+
+    reconcileCounts(entries);
+
+    // entries for the same card or lot may hold different instances of it, so collapse them by id.  Rows are
+    // updated in id order so that concurrent batches lock them in the same order and can't deadlock.
+    Map<Long, StockCard> cards = new TreeMap<>();
+    Map<Long, Long> cardQuantities = new HashMap<>();
+    Map<Long, LotOnHand> lotsOnHand = new TreeMap<>();
+    Map<Long, Long> lotOnHandQuantities = new HashMap<>();
+    for (StockCardEntry entry : entries) {
+      StockCard card = entry.getStockCard();
+      if (!cards.containsKey(card.getId())) {
+        cards.put(card.getId(), card);
+        cardQuantities.put(card.getId(), 0L);
+      }
+      cardQuantities.put(card.getId(), cardQuantities.get(card.getId()) + entry.getQuantity());
+
+      LotOnHand lotOnHand = entry.getLotOnHand();
+      if (null != lotOnHand) {
+        if (!lotsOnHand.containsKey(lotOnHand.getId())) {
+          lotsOnHand.put(lotOnHand.getId(), lotOnHand);
+          lotOnHandQuantities.put(lotOnHand.getId(), 0L);
+        }
+        lotOnHandQuantities.put(lotOnHand.getId(), lotOnHandQuantities.get(lotOnHand.getId()) + entry.getQuantity());
+      }
+    }
+
+    repository.persistStockCardEntries(entries);
+
+    Long modifiedBy = entries.isEmpty() ? null : entries.get(entries.size() - 1).getModifiedBy();
+    for (StockCard card : cards.values()) {
+      repository.addToTotalQuantityOnHand(card, cardQuantities.get(card.getId()), modifiedBy);
+    }
+
+    for (LotOnHand lotOnHand : lotsOnHand.values()) {
+      lotRepository.addToQuantityOnHand(lotOnHand, lotOnHandQuantities.get(lotOnHand.getId()), modifiedBy);
+    }
+
+    // stock cards are locked by now, so snapshots of the same stock card are updated by one batch at a time
+    repository.updateBalanceSnapshots(entries);
+  }
+
+  /**
+   * Sets the quantities on hand of stock cards and of their lots on hand to those at the end of a day, read from the
+   * monthly balance snapshots, and leaves out the entries of the stock cards.
+   * @param stockCards the stock cards
+   * @param asOf the day
+   */
+  public void applyBalancesAsOf(List<StockCard> stockCards, Date asOf) {
+    if (stockCards.isEmpty()) return;
+
+    List<Long> stockCardIds = new ArrayList<>();
+    for (StockCard stockCard : stockCards) {
+      stockCardIds.add(stockCard.getId());
+    }
+
+    Map<Long, Long> cardBalances = new HashMap<>();
+    Map<Long, Long> lotOnHandBalances = new HashMap<>();
+    for (StockCardBalanceRow row : repository.getBalancesAsOf(stockCardIds, asOf)) {
+      cardBalances.put(row.getStockCardId(), zeroIfNull(row.getTotalQuantityOnHand()));
+      if (null != row.getLotOnHandId()) {
+        lotOnHandBalances.put(row.getLotOnHandId(), zeroIfNull(row.getLotQuantityOnHand()));
+      }
+    }
+
+    for (StockCard stockCard : stockCards) {
+      stockCard.setTotalQuantityOnHand(zeroIfNull(cardBalances.get(stockCard.getId())));
+      stockCard.setEntries(new ArrayList<StockCardEntry>());
+      if (null != stockCard.getLotsOnHand()) {
+        for (LotOnHand lotOnHand : stockCard.getLotsOnHand()) {
+          lotOnHand.setQuantityOnHand(zeroIfNull(lotOnHandBalances.get(lotOnHand.getId())));
+        }
+      }
+    }
+  }
+
+  /**
+   * Turns the counted quantities of physical count entries into differences to the balances they count.  The balances
+   * of all counted stock cards and lots on hand are read with one locking query per batch of stock cards.  Entries are
+   * reconciled in order, as if added one after another, so a count sees the entries before it in the batch.
+   */
+  private void reconcileCounts(List<StockCardEntry> entries) {
+    Map<Long, Set<Long>> lotOnHandIdsByCard = new TreeMap<>();
+    for (StockCardEntry entry : entries) {
+      if (StockCardEntryType.PHYSICAL_COUNT != entry.getType()) continue;
+
+      Long cardId = entry.getStockCard().getId();
+      if (!lotOnHandIdsByCard.containsKey(cardId)) {
+        lotOnHandIdsByCard.put(cardId, new TreeSet<Long>());
+      }
+      if (null != entry.getLotOnHand()) {
+        lotOnHandIdsByCard.get(cardId).add(entry.getLotOnHand().getId());
+      }
+    }
+    if (lotOnHandIdsByCard.isEmpty()) return;
+
+    Map<Long, Long> cardBalances = new HashMap<>();
+    Map<Long, Long> lotOnHandBalances = new HashMap<>();
+    for (List<Long> cardIds : Lists.partition(new ArrayList<>(lotOnHandIdsByCard.keySet()), BALANCE_BATCH_SIZE)) {
+      List<Long> lotOnHandIds = new ArrayList<>();
+      for (Long cardId : cardIds) {
+        lotOnHandIds.addAll(lotOnHandIdsByCard.get(cardId));
+      }
+
+      for (StockCardBalanceRow row : repository.getBalancesForUpdate(cardIds, lotOnHandIds)) {
+        cardBalances.put(row.getStockCardId(), zeroIfNull(row.getTotalQuantityOnHand()));
+        if (null != row.getLotOnHandId()) {
+          lotOnHandBalances.put(row.getLotOnHandId(), zeroIfNull(row.getLotQuantityOnHand()));
+        }
+      }
+    }
+
+    for (StockCardEntry entry : entries) {
+      Long cardId = entry.getStockCard().getId();
+      Long lotOnHandId = null == entry.getLotOnHand() ? null : entry.getLotOnHand().getId();
+      if (StockCardEntryType.PHYSICAL_COUNT == entry.getType()) {
+        long balance = null == lotOnHandId ? zeroIfNull(cardBalances.get(cardId))
+            : zeroIfNull(lotOnHandBalances.get(lotOnHandId));
+        entry.setQuantity(entry.getQuantity() - balance);
+      }
+
+      // every entry moves the balances that later counts are reconciled with
+      if (cardBalances.containsKey(cardId)) {
+        cardBalances.put(cardId, cardBalances.get(cardId) + entry.getQuantity());
+      }
+      if (null != lotOnHandId && lotOnHandBalances.containsKey(lotOnHandId)) {
+        lotOnHandBalances.put(lotOnHandId, lotOnHandBalances.get(lotOnHandId) + entry.getQuantity());
+      }
+    }
+  }
+
+  private static long zeroIfNull(Long quantity) {
+    return null == quantity ? 0L : quantity;
+  }
+
+  /**
+   * Adds a batch of entries of a facility one stock card at a time.  The entries are partitioned by stock card, each
+   * partition keeping the order of its entries, and each partition is added by addStockCardEntries() in a transaction
+   * of its own.  With stockmanagement.apply.parallelism above one, that many partitions are added at the same time,
+   * each on its own connection, so the connection pool must be larger than that.
+   *
+   * <p>Each stock card ends up as if the entries had been added one after another, but the batch is not atomic: if
+   * a partition fails, other partitions may have been added.  Entries with an event id are skipped if the id was
+   * recorded before, and the ids are recorded in the transaction of their partition, so that a retry of the batch
+   * adds only what failed.
+   * @param facilityId the facility of the entries
+   * @param entries the entries to add, in the order they occurred
+   * @throws IllegalStateException if called within a transaction, as the partitions would not see its changes.
+   */
+  public void addStockCardEntriesByCard(final Long facilityId, List<StockCardEntry> entries) {
+    if (TransactionSynchronizationManager.isActualTransactionActive()) {
+      throw new IllegalStateException("Entries can not be added by card within a transaction");
+    }
+
+    Map<Long, List<StockCardEntry>> partitions = new LinkedHashMap<>();
+    for (StockCardEntry entry : entries) {
+      Long cardId = entry.getStockCard().getId();
+      List<StockCardEntry> partition = partitions.get(cardId);
+      if (null == partition) {
+        partition = new ArrayList<>();
+        partitions.put(cardId, partition);
+      }
+      partition.add(entry);
+    }
+
+    final TransactionTemplate template = new TransactionTemplate(transactionManager);
+    template.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+    List<Callable<Void>> tasks = new ArrayList<>();
+    for (final List<StockCardEntry> partition : partitions.values()) {
+      tasks.add(new Callable<Void>() {
+        @Override
+        public Void call() {
+          template.execute(new TransactionCallbackWithoutResult() {
+            @Override
+            protected void doInTransactionWithoutResult(TransactionStatus status) {
+              addStockCardEntriesOfCard(facilityId, partition);
+            }
+          });
+          return null;
+        }
+      });
+    }
+
+    if (null == applyExecutor || tasks.size() == 1) {
+      for (Callable<Void> task : tasks) {
+        try {
+          task.call();
+        } catch (RuntimeException e) {
+          throw e;
+        } catch (Exception e) {
+          throw new IllegalStateException(e);
+        }
+      }
+      return;
+    }
+
+    RuntimeException failure = null;
+    try {
+      for (Future<Void> future : applyExecutor.invokeAll(tasks)) {
+        try {
+          future.get();
+        } catch (ExecutionException e) {
+          if (null == failure) {
+            failure = e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause()
+                : new IllegalStateException(e.getCause());
+          }
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while adding stock card entries", e);
+    }
+    if (null != failure) throw failure;
+  }
+
+  private void addStockCardEntriesOfCard(Long facilityId, List<StockCardEntry> entries) {
+    List<String> eventIds = new ArrayList<>();
+    for (StockCardEntry entry : entries) {
+      if (null != entry.getEventId()) eventIds.add(entry.getEventId());
+    }
+
+    List<StockCardEntry> newEntries = entries;
+    if (!eventIds.isEmpty()) {
+      Set<String> claimed = claimEventIds(facilityId, eventIds);
+      newEntries = new ArrayList<>();
+      for (StockCardEntry entry : entries) {
+        if (null == entry.getEventId() || claimed.contains(entry.getEventId())) newEntries.add(entry);
+      }
+    }
+
+    if (!newEntries.isEmpty()) addStockCardEntries(newEntries);
   }
 }
@@ -0,0 +1,255 @@
+package org.openlmis.stockmanagement.service;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.log4j.Logger;
+import org.openlmis.stockmanagement.domain.StockEventJob;
+import org.openlmis.stockmanagement.dto.StockEvent;
+import org.openlmis.stockmanagement.repository.StockEventJobRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.*;
+
+/**
+ * Processes stock events asynchronously.  Submitted events are stored as a job first, so that they survive a restart,
+ * and then processed by a bounded pool of workers.  When the queue of the pool is full, submissions are rejected
+ * rather than queued, so that clients back off instead of piling up work.  A periodic sweep queues the stored jobs
+ * that are not queued yet, as the queue frees up, and fails the jobs left processing for too long.
+ */
+@Service
+public class StockEventIngestionService {
+
+  private static Logger logger = Logger.getLogger(StockEventIngestionService.class);
+
+  // stored for unexpected failures, whose messages may hold SQL or data and are only logged
+  static final String PROCESSING_ERROR = "error.stock.event.processing";
+
+  private static final TypeReference<List<StockEvent>> EVENT_LIST = new TypeReference<List<StockEvent>>() {
+  };
+
+  private final StockEventJobRepository jobRepository;
+
+  private final StockEventService stockEventService;
+
+  private final ObjectMapper objectMapper;
+
+  private final ThreadPoolExecutor executor;
+
+  private final int retryAfterSeconds;
+
+  private final int maxEventCount;
+
+  private final int maxBodyLength;
+
+  private final int processingTimeoutMinutes;
+
+  // jobs in the queue of the pool or being processed by it, which the sweep leaves alone
+  private final Set<Long> queuedJobIds = Collections.synchronizedSet(new HashSet<Long>());
+
+  @Value("${stockmanagement.ingestion.sweepIntervalSeconds:60}")
+  private int sweepIntervalSeconds = 60;
+
+  private ScheduledExecutorService sweeper;
+
+  @Autowired
+  public StockEventIngestionService(StockEventJobRepository jobRepository,
+                                    StockEventService stockEventService,
+                                    @Qualifier("stockManagementObjectMapper") ObjectMapper objectMapper,
+                                    @Value("${stockmanagement.ingestion.workers:2}") int workers,
+                                    @Value("${stockmanagement.ingestion.queueCapacity:100}") int queueCapacity,
+                                    @Value("${stockmanagement.ingestion.retryAfterSeconds:30}") int retryAfterSeconds,
+                                    @Value("${stockmanagement.ingestion.maxEventCount:10000}") int maxEventCount,
+                                    @Value("${stockmanagement.ingestion.maxBodyLength:5000000}") int maxBodyLength,
+                                    @Value("${stockmanagement.ingestion.processingTimeoutMinutes:30}")
+                                    int processingTimeoutMinutes) {
+    this(jobRepository, stockEventService, objectMapper,
+        new ThreadPoolExecutor(workers, workers, 0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<Runnable>(queueCapacity), new ThreadPoolExecutor.AbortPolicy()), retryAfterSeconds,
+        maxEventCount, maxBodyLength, processingTimeoutMinutes);
+  }
+
+  StockEventIngestionService(StockEventJobRepository jobRepository,
+                             StockEventService stockEventService,
+                             ObjectMapper objectMapper,
+                             ThreadPoolExecutor executor,
+                             int retryAfterSeconds,
+                             int maxEventCount,
+                             int maxBodyLength,
+                             int processingTimeoutMinutes) {
+    this.jobRepository = Objects.requireNonNull(jobRepository);
+    this.stockEventService = Objects.requireNonNull(stockEventService);
+    this.objectMapper = Objects.requireNonNull(objectMapper);
+    this.executor = Objects.requireNonNull(executor);
+    this.retryAfterSeconds = retryAfterSeconds;
+    this.maxEventCount = maxEventCount;
+    this.maxBodyLength = maxBodyLength;
+    this.processingTimeoutMinutes = processingTimeoutMinutes;
+  }
+
+  /**
+   * @return whether a body of stock events is longer than a job may store, in characters.
+   */
+  public boolean isBodyTooLong(String body) {
+    return body.length() > maxBodyLength;
+  }
+
+  /**
+   * @return whether a job may not hold this many stock events.
+   */
+  public boolean hasTooManyEvents(int eventCount) {
+    return eventCount > maxEventCount;
+  }
+
+  /**
+   * Parses a JSON array of stock events with the mapper of the JSON endpoints.
+   * @throws IllegalArgumentException if the body is not a JSON array of stock events.
+   */
+  public static List<StockEvent> parseEvents(ObjectMapper objectMapper, String body) {
+    try {
+      List<StockEvent> events = objectMapper.readValue(body, EVENT_LIST);
+      if (null == events) throw new IllegalArgumentException("Stock events must be a JSON array");
+      return events;
+    } catch (IOException e) {
+      throw new IllegalArgumentException("Stock events must be a JSON array: " + e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Stores stock events as a job, and queues the job for processing.
+   * @param facilityId the facility the events happened at
+   * @param userId the user submitting the events
+   * @param body the events, a JSON array
+   * @param eventCount the number of events
+   * @return the queued job.
+   * @throws StockEventQueueFullException if the queue is full.  The events are not stored then.
+   * @throws IllegalArgumentException if the body is too long or has too many events.
+   */
+  public StockEventJob submit(long facilityId, Long userId, String body, int eventCount) {
+    if (isBodyTooLong(body) || hasTooManyEvents(eventCount)) {
+      throw new IllegalArgumentException("Stock event jobs may have at most " + maxEventCount + " events and " +
+          maxBodyLength + " characters");
+    }
+    if (0 == executor.getQueue().remainingCapacity()) {
+      throw new StockEventQueueFullException(retryAfterSeconds);
+    }
+
+    StockEventJob job = new StockEventJob(facilityId, userId, body, eventCount);
+    jobRepository.insert(job);
+
+    if (!enqueue(job.getId())) {
+      // other submissions filled the queue since it was checked
+      jobRepository.markFailed(job.getId(), "Stock event queue is full");
+      throw new StockEventQueueFullException(retryAfterSeconds);
+    }
+
+    return job;
+  }
+
+  public StockEventJob getJob(Long id) {
+    return jobRepository.getById(id);
+  }
+
+  @PostConstruct
+  void startSweeping() {
+    sweeper = Executors.newSingleThreadScheduledExecutor();
+    sweeper.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          sweep();
+        } catch (RuntimeException e) {
+          // a sweep that throws would cancel the following ones
+          logger.error("Failed to sweep stock event jobs", e);
+        }
+      }
+    }, 0, sweepIntervalSeconds, TimeUnit.SECONDS);
+  }
+
+  @PreDestroy
+  void shutdown() {
+    if (null != sweeper) sweeper.shutdown();
+    executor.shutdown();
+  }
+
+  /**
+   * Fails the jobs processing for longer than the processing timeout, e.g. because their server stopped while
+   * processing them.  They are failed rather than queued again, since some of their events may have been applied
+   * already.  Then queues the stored jobs that are not queued yet, left by a previous run or by a full queue, for as
+   * long as the queue has room.
+   */
+  void sweep() {
+    int staleJobs = jobRepository.failStaleProcessing(processingTimeoutMinutes,
+        "Processing did not complete within " + processingTimeoutMinutes + " minutes");
+    if (staleJobs > 0) {
+      logger.warn("Failed " + staleJobs + " stock event jobs processing for longer than " + processingTimeoutMinutes +
+          " minutes");
+    }
+
+    if (0 == executor.getQueue().remainingCapacity()) return;
+    for (Long id : jobRepository.getQueuedIds()) {
+      if (!enqueue(id)) return;
+    }
+  }
+
+  // queues a job unless it is queued already; false if the queue is full
+  private boolean enqueue(Long jobId) {
+    if (!queuedJobIds.add(jobId)) return true;
+
+    try {
+      executor.execute(new JobRunner(jobId));
+      return true;
+    } catch (RejectedExecutionException e) {
+      queuedJobIds.remove(jobId);
+      return false;
+    }
+  }
+
+  void process(Long jobId) {
+    StockEventJob job = jobRepository.claim(jobId);
+    if (null == job) return;
+
+    try {
+      List<StockEvent> events = parseEvents(objectMapper, job.getEvents());
+      if (stockEventService.isProcessedByCard()) {
+        stockEventService.processStockEventsByCard(job.getFacilityId(), job.getUserId(), events);
+      } else {
+        stockEventService.processStockEvents(job.getFacilityId(), job.getUserId(), events);
+      }
+      jobRepository.markSucceeded(jobId);
+    } catch (StockEventProcessingException e) {
+      jobRepository.markFailed(jobId, e.getMessageKey());
+    } catch (RuntimeException e) {
+      logger.error("Failed to process stock event job " + jobId, e);
+      jobRepository.markFailed(jobId, PROCESSING_ERROR);
+    }
+  }
+
+  private class JobRunner implements Runnable {
+
+    private final Long jobId;
+
+    JobRunner(Long jobId) {
+      this.jobId = jobId;
+    }
+
+    @Override
+    public void run() {
+      try {
+        process(jobId);
+      } finally {
+        queuedJobIds.remove(jobId);
+      }
+    }
+  }
+}
@@ -0,0 +1,22 @@
+package org.openlmis.stockmanagement.service;
+
+import lombok.Getter;
+import org.springframework.http.HttpStatus;
+
+/**
+ * Thrown when stock events can't be processed.  Carries the message key of the error, and the status a request
+ * processing the events should respond with.
+ */
+@Getter
+public class StockEventProcessingException extends RuntimeException {
+
+  private final String messageKey;
+
+  private final HttpStatus status;
+
+  public StockEventProcessingException(String messageKey, HttpStatus status) {
+    super(messageKey);
+    this.messageKey = messageKey;
+    this.status = status;
+  }
+}
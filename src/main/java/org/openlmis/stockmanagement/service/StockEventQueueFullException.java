@@ -0,0 +1,18 @@
+package org.openlmis.stockmanagement.service;
+
+import lombok.Getter;
+
+/**
+ * Thrown when stock events can't be queued for processing because the queue is full.  Clients should retry after
+ * the given number of seconds.
+ */
+@Getter
+public class StockEventQueueFullException extends RuntimeException {
+
+  private final int retryAfterSeconds;
+
+  public StockEventQueueFullException(int retryAfterSeconds) {
+    super("Stock event queue is full");
+    this.retryAfterSeconds = retryAfterSeconds;
+  }
+}
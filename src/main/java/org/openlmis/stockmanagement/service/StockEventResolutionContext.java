@@ -0,0 +1,114 @@
+package org.openlmis.stockmanagement.service;
+
+import org.openlmis.core.domain.Product;
+import org.openlmis.core.domain.Right;
+import org.openlmis.core.domain.StockAdjustmentReason;
+import org.openlmis.core.repository.StockAdjustmentReasonRepository;
+import org.openlmis.core.service.RoleRightsService;
+import org.openlmis.stockmanagement.domain.StockCard;
+import org.openlmis.stockmanagement.dto.StockEvent;
+import org.openlmis.stockmanagement.dto.StockEventType;
+
+import java.util.*;
+
+import static com.google.common.collect.Iterables.any;
+import static org.openlmis.core.utils.RightUtil.with;
+
+/**
+ * Resolves the products, adjustment reasons, rights and stock cards referenced by a list of stock events once per
+ * distinct product code or reason name, so that processing each event only needs in-memory lookups.  A context lives
+ * for a single request, for a single user and facility.
+ */
+public class StockEventResolutionContext {
+
+  private final long facilityId;
+  private final Long userId;
+  private final ProductCache productCache;
+  private final StockAdjustmentReasonRepository stockAdjustmentReasonRepository;
+  private final RoleRightsService roleRightsService;
+  private final StockCardService stockCardService;
+
+  private final Map<String, Product> products = new HashMap<>();
+  private final Map<String, StockAdjustmentReason> reasons = new HashMap<>();
+  private final Map<String, List<Right>> rights = new HashMap<>();
+  private final Map<String, StockCard> stockCards = new HashMap<>();
+
+  public StockEventResolutionContext(long facilityId,
+                                     Long userId,
+                                     ProductCache productCache,
+                                     StockAdjustmentReasonRepository stockAdjustmentReasonRepository,
+                                     RoleRightsService roleRightsService,
+                                     StockCardService stockCardService) {
+    this.facilityId = facilityId;
+    this.userId = userId;
+    this.productCache = Objects.requireNonNull(productCache);
+    this.stockAdjustmentReasonRepository = Objects.requireNonNull(stockAdjustmentReasonRepository);
+    this.roleRightsService = Objects.requireNonNull(roleRightsService);
+    this.stockCardService = Objects.requireNonNull(stockCardService);
+  }
+
+  /**
+   * Looks up the products and adjustment reasons for all the distinct product codes and reason names of the given
+   * events.
+   * @param events the stock events of the request
+   */
+  public void prefetch(List<StockEvent> events) {
+    for (StockEvent event : events) {
+      String productCode = event.getProductCode();
+      if (null != productCode && !products.containsKey(productCode)) {
+        products.put(productCode, productCache.getByCode(productCode));
+      }
+
+      String reasonName = event.getReasonName();
+      if (StockEventType.ADJUSTMENT == event.getType() && null != reasonName && !reasons.containsKey(reasonName)) {
+        reasons.put(reasonName, stockAdjustmentReasonRepository.getAdjustmentReasonByName(reasonName));
+      }
+    }
+  }
+
+  /**
+   * Looks up the rights of the user for all the product codes seen by {@link #prefetch(List)}.
+   */
+  public void prefetchRights() {
+    for (String productCode : products.keySet()) {
+      if (!rights.containsKey(productCode)) {
+        rights.put(productCode, roleRightsService.getRightsForUserFacilityAndProductCode(userId, facilityId,
+            productCode));
+      }
+    }
+  }
+
+  /**
+   * Gets or creates, in bulk, the stock cards for the product codes of the given events.  Call this only once the
+   * events have been validated, and left out the events that won't be recorded, as it creates stock cards that don't
+   * exist yet.
+   * @param events the stock events to be recorded, from those seen by {@link #prefetch(List)}
+   */
+  public void resolveStockCards(List<StockEvent> events) {
+    Set<String> productCodes = new HashSet<>();
+    for (StockEvent event : events) {
+      if (null != products.get(event.getProductCode())) productCodes.add(event.getProductCode());
+    }
+    productCodes.removeAll(stockCards.keySet());
+    if (!productCodes.isEmpty()) {
+      stockCards.putAll(stockCardService.getOrCreateStockCards(facilityId, productCodes));
+    }
+  }
+
+  public Product getProduct(String productCode) {
+    return products.get(productCode);
+  }
+
+  public StockAdjustmentReason getReason(String reasonName) {
+    return reasons.get(reasonName);
+  }
+
+  public boolean hasRight(String productCode, String rightName) {
+    List<Right> productRights = rights.get(productCode);
+    return null != productRights && any(productRights, with(rightName));
+  }
+
+  public StockCard getStockCard(String productCode) {
+    return stockCards.get(productCode);
+  }
+}
@@ -0,0 +1,331 @@
+package org.openlmis.stockmanagement.service;
+
+import lombok.NoArgsConstructor;
+import org.apache.log4j.Logger;
+import org.openlmis.core.domain.StockAdjustmentReason;
+import org.openlmis.core.repository.FacilityRepository;
+import org.openlmis.core.repository.StockAdjustmentReasonRepository;
+import org.openlmis.core.service.RoleRightsService;
+import org.openlmis.stockmanagement.domain.*;
+import org.openlmis.stockmanagement.dto.StockEvent;
+import org.openlmis.stockmanagement.dto.StockEventType;
+import org.openlmis.stockmanagement.metrics.MapperStatementProfiler;
+import org.openlmis.stockmanagement.metrics.MetricRegistry;
+import org.openlmis.stockmanagement.metrics.PhaseTimer;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.util.*;
+
+/**
+ * Validates stock events and records them as stock card entries.
+ */
+@Service
+@NoArgsConstructor
+public class StockEventService {
+
+  private static Logger logger = Logger.getLogger(StockEventService.class);
+
+  /**
+   * Timers of the phases of processing stock events, named with the phase: validation, rights, resolution of stock
+   * cards and lots, and persistence.
+   */
+  public static final String EVENT_PHASES = "stockmanagement.events.phases.";
+
+  public static final String EVENTS_PER_REQUEST = "stockmanagement.events.per.request";
+
+  public static final String EVENT_STATEMENTS = "stockmanagement.events.sql.statements";
+
+  static final String VALIDATION = "validation";
+  static final String RIGHTS = "rights";
+  static final String RESOLUTION = "resolution";
+  static final String PERSISTENCE = "persistence";
+
+  @Autowired
+  private FacilityRepository facilityRepository;
+
+  @Autowired
+  private ProductCache productCache;
+
+  @Autowired
+  private StockAdjustmentReasonRepository stockAdjustmentReasonRepository;
+
+  @Autowired
+  private RoleRightsService roleRightsService;
+
+  @Autowired
+  private StockCardService stockCardService;
+
+  @Autowired
+  private MetricRegistry metrics;
+
+  public StockEventService(FacilityRepository facilityRepository,
+                           ProductCache productCache,
+                           StockAdjustmentReasonRepository stockAdjustmentReasonRepository,
+                           RoleRightsService roleRightsService,
+                           StockCardService stockCardService,
+                           MetricRegistry metrics) {
+    this.facilityRepository = Objects.requireNonNull(facilityRepository);
+    this.productCache = Objects.requireNonNull(productCache);
+    this.stockAdjustmentReasonRepository = Objects.requireNonNull(stockAdjustmentReasonRepository);
+    this.roleRightsService = Objects.requireNonNull(roleRightsService);
+    this.stockCardService = Objects.requireNonNull(stockCardService);
+    this.metrics = Objects.requireNonNull(metrics);
+  }
+
+  /**
+   * Checks what can be checked about stock events without looking up their products or reasons: that the facility
+   * exists, that each event is well formed, and that the user may manage the stock of each event's product at the
+   * facility.  The rights are looked up with a single query.
+   * @throws StockEventProcessingException if the events are not valid, or the user may not record them.
+   */
+  public void validateEnvelope(long facilityId, Long userId, List<StockEvent> events) {
+    if (null == facilityRepository.getById(facilityId))
+      throw new StockEventProcessingException("error.facility.unknown", HttpStatus.BAD_REQUEST);
+
+    for (StockEvent event : events) {
+      if (!event.isValid())
+        throw new StockEventProcessingException("error.stock.event.invalid", HttpStatus.BAD_REQUEST);
+    }
+
+    Set<String> manageableProductCodes = stockCardService.getProductCodesWithRight(userId, facilityId,
+        "MANAGE_STOCK");
+    for (StockEvent event : events) {
+      if (!manageableProductCodes.contains(event.getProductCode()))
+        throw new StockEventProcessingException("error.permission.stock.card.manage", HttpStatus.FORBIDDEN);
+    }
+  }
+
+  /**
+   * Validates stock events, and records them as stock card entries of the facility, all in one transaction.
+   * @param facilityId the facility the events happened at
+   * @param userId the user recording the events
+   * @param events the events, in the order they occurred
+   * @throws StockEventProcessingException if an event is not valid, or the user may not record it.  Nothing is
+   * recorded then.
+   */
+  @Transactional
+  public void processStockEvents(long facilityId, Long userId, List<StockEvent> events) {
+    PhaseTimer timer = new PhaseTimer();
+    int eventCount = events.size();
+    long statementCount = MapperStatementProfiler.getThreadStatementCount();
+    try {
+      StockEventResolutionContext context = validate(facilityId, userId, events, timer);
+
+      // skip events recorded before, which clients send again when they retry
+      timer.start(PERSISTENCE);
+      events = withoutRecordedEvents(facilityId, events);
+      if (events.isEmpty()) return;
+
+      // get or create the stock cards of the remaining events at once
+      timer.start(RESOLUTION);
+      context.resolveStockCards(events);
+      List<StockCardEntry> entries = toEntries(context, userId, events);
+
+      timer.start(PERSISTENCE);
+      stockCardService.addStockCardEntries(entries);
+    } finally {
+      recordMetrics(timer, eventCount, statementCount);
+    }
+  }
+
+  /**
+   * Validates stock events, and records them as stock card entries of the facility one stock card at a time, see
+   * StockCardService.addStockCardEntriesByCard().  Large batches touching many stock cards are recorded faster, but
+   * not atomically.  Must not be called within a transaction.
+   * @param facilityId the facility the events happened at
+   * @param userId the user recording the events
+   * @param events the events, in the order they occurred
+   * @throws StockEventProcessingException if an event is not valid, or the user may not record it.  Nothing is
+   * recorded then.
+   */
+  public void processStockEventsByCard(long facilityId, Long userId, List<StockEvent> events) {
+    PhaseTimer timer = new PhaseTimer();
+    int eventCount = events.size();
+    long statementCount = MapperStatementProfiler.getThreadStatementCount();
+    try {
+      StockEventResolutionContext context = validate(facilityId, userId, events, timer);
+
+      // event ids are claimed along with the entries of each stock card
+      events = withoutRepeatedEventIds(events);
+
+      timer.start(RESOLUTION);
+      context.resolveStockCards(events);
+      List<StockCardEntry> entries = toEntries(context, userId, events);
+      for (int i = 0; i < entries.size(); i++) {
+        entries.get(i).setEventId(events.get(i).hasEventId() ? events.get(i).getEventId() : null);
+      }
+
+      // the statements of each stock card run on their own thread, and are not counted for the request
+      timer.start(PERSISTENCE);
+      stockCardService.addStockCardEntriesByCard(facilityId, entries);
+    } finally {
+      recordMetrics(timer, eventCount, statementCount);
+    }
+  }
+
+  /**
+   * @return true if stock events should be processed by card, as entries of several stock cards are then added at
+   * the same time.
+   */
+  public boolean isProcessedByCard() {
+    return stockCardService.getApplyParallelism() > 1;
+  }
+
+  private StockEventResolutionContext validate(long facilityId, Long userId, List<StockEvent> events,
+                                               PhaseTimer timer) {
+    timer.start(VALIDATION);
+    if (null == facilityRepository.getById(facilityId))
+      throw new StockEventProcessingException("error.facility.unknown", HttpStatus.BAD_REQUEST);
+
+    // look up products, reasons and rights once per distinct product code and reason name
+    timer.start(RESOLUTION);
+    StockEventResolutionContext context = new StockEventResolutionContext(facilityId, userId, productCache,
+        stockAdjustmentReasonRepository, roleRightsService, stockCardService);
+    context.prefetch(events);
+    timer.start(RIGHTS);
+    context.prefetchRights();
+
+    // validate events
+    timer.start(VALIDATION);
+    for (StockEvent event : events) {
+      logger.debug("Validating event: " + event);
+
+      // validate event
+      if (!event.isValid())
+        throw new StockEventProcessingException("error.stock.event.invalid", HttpStatus.BAD_REQUEST);
+
+      // validate product
+      String productCode = event.getProductCode();
+      if (null == context.getProduct(productCode))
+        throw new StockEventProcessingException("error.product.unknown", HttpStatus.BAD_REQUEST);
+
+      // validate reason
+      if (StockEventType.ADJUSTMENT == event.getType() && null == context.getReason(event.getReasonName()))
+        throw new StockEventProcessingException("error.stockadjustmentreason.unknown", HttpStatus.BAD_REQUEST);
+
+      // validate permissions
+      if (!context.hasRight(productCode, "MANAGE_STOCK"))
+        throw new StockEventProcessingException("error.permission.stock.card.manage", HttpStatus.FORBIDDEN);
+    }
+
+    return context;
+  }
+
+  private void recordMetrics(PhaseTimer timer, int eventCount, long statementCount) {
+    timer.record(metrics, EVENT_PHASES);
+    metrics.recordValue(EVENTS_PER_REQUEST, eventCount);
+    metrics.recordValue(EVENT_STATEMENTS, MapperStatementProfiler.getThreadStatementCount() - statementCount);
+  }
+
+  /**
+   * @return the events, without the events repeating the id of an earlier event.
+   */
+  private List<StockEvent> withoutRepeatedEventIds(List<StockEvent> events) {
+    Set<String> eventIds = new HashSet<>();
+    List<StockEvent> unique = new ArrayList<>();
+    for (StockEvent event : events) {
+      if (!event.hasEventId() || eventIds.add(event.getEventId())) unique.add(event);
+    }
+    return unique;
+  }
+
+  /**
+   * Claims the ids of events that have one, with a single statement per batch of ids.
+   * @return the events without an id, and the events whose id was not recorded before, once per id.
+   */
+  private List<StockEvent> withoutRecordedEvents(long facilityId, List<StockEvent> events) {
+    Set<String> eventIds = new LinkedHashSet<>();
+    for (StockEvent event : events) {
+      if (event.hasEventId()) eventIds.add(event.getEventId());
+    }
+    if (eventIds.isEmpty()) return events;
+
+    Set<String> claimed = new HashSet<>(stockCardService.claimEventIds(facilityId, new ArrayList<>(eventIds)));
+    List<StockEvent> newEvents = new ArrayList<>();
+    for (StockEvent event : events) {
+      if (!event.hasEventId()) {
+        newEvents.add(event);
+      } else if (claimed.remove(event.getEventId())) {
+        newEvents.add(event);
+      } else {
+        logger.debug("Skipping event recorded before: " + event);
+      }
+    }
+
+    return newEvents;
+  }
+
+  private List<StockCardEntry> toEntries(StockEventResolutionContext context, Long userId, List<StockEvent> events) {
+    List<StockCardEntry> entries = new ArrayList<>();
+    for (StockEvent event : events) {
+      logger.debug("Processing event: " + event);
+
+      String productCode = event.getProductCode();
+      StockAdjustmentReason reason = null;
+      if (StockEventType.ADJUSTMENT == event.getType()) {
+        reason = context.getReason(event.getReasonName());
+      }
+
+      StockCard card = context.getStockCard(productCode);
+      if (null == card)
+        throw new StockEventProcessingException("error.stock.card.get", HttpStatus.INTERNAL_SERVER_ERROR);
+
+      // get or create lot, if lot is being used
+      StringBuilder str = new StringBuilder();
+      Long lotId = event.getLotId();
+      Lot lotObj = event.getLot();
+      if (null != lotObj && null == lotObj.getProduct()) {
+        lotObj.setProduct(context.getProduct(productCode));
+      }
+      LotOnHand lotOnHand = stockCardService.getLotOnHand(lotId, lotObj, productCode, card, str);
+      if (!str.toString().equals("")) {
+        throw new StockEventProcessingException(str.toString(), HttpStatus.BAD_REQUEST);
+      }
+
+      entries.add(toEntry(event, card, reason, lotOnHand, userId));
+    }
+
+    return entries;
+  }
+
+  /**
+   * Creates the entry recording an event on a stock card.  Its stock card, reason and lot on hand are resolved before,
+   * so this only works in memory.
+   */
+  static StockCardEntry toEntry(StockEvent event, StockCard card, StockAdjustmentReason reason, LotOnHand lotOnHand,
+                                Long userId) {
+    long quantity = event.getPositiveOrNegativeQuantity(reason);
+
+    StockCardEntryType entryType = StockCardEntryType.ADJUSTMENT;
+    switch (event.getType()) {
+      case ISSUE: entryType = StockCardEntryType.DEBIT;
+        break;
+      case RECEIPT: entryType = StockCardEntryType.CREDIT;
+        break;
+      case ADJUSTMENT: entryType = StockCardEntryType.ADJUSTMENT;
+        break;
+      case PHYSICAL_INVENTORY: entryType = StockCardEntryType.PHYSICAL_COUNT;
+        break;
+      default: break;
+    }
+
+    Date occurred = event.getOccurred();
+    String referenceNumber  = event.getReferenceNumber();
+
+    StockCardEntry entry = new StockCardEntry(card, entryType, quantity, occurred, referenceNumber);
+    entry.setAdjustmentReason(reason);
+    entry.setLotOnHand(lotOnHand);
+    Map<String, String> customProps = event.getCustomProps();
+    if (null != customProps) {
+      for (String k : customProps.keySet()) {
+        entry.addKeyValue(k, customProps.get(k));
+      }
+    }
+    entry.setCreatedBy(userId);
+    entry.setModifiedBy(userId);
+    return entry;
+  }
+}
@@ -0,0 +1,47 @@
+package org.openlmis.stockmanagement.util;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.BaseEncoding;
+
+/**
+ * Opaque cursors for keyset pagination.  A cursor wraps the id of the last row of a page, so that the next page can be
+ * read with an index range scan instead of an OFFSET scan.  Clients are expected to pass cursors back unchanged.
+ */
+public class PageCursor {
+
+  private static final String VERSION = "v1:";
+
+  private static final BaseEncoding ENCODING = BaseEncoding.base64Url().omitPadding();
+
+  private PageCursor() {
+  }
+
+  public static String encode(Long id) {
+    if (null == id) return null;
+    return ENCODING.encode((VERSION + id).getBytes(Charsets.UTF_8));
+  }
+
+  /**
+   * Decodes a cursor made by encode().
+   * @param cursor the cursor, may be null
+   * @return the id wrapped by the cursor, or null if no cursor is given.
+   * @throws IllegalArgumentException if the cursor is not valid.
+   */
+  public static Long decode(String cursor) {
+    if (null == cursor || cursor.isEmpty()) return null;
+
+    String decoded;
+    try {
+      decoded = new String(ENCODING.decode(cursor), Charsets.UTF_8);
+    } catch (IllegalArgumentException e) {
+      throw new IllegalArgumentException("Invalid page cursor: " + cursor, e);
+    }
+
+    if (!decoded.startsWith(VERSION)) throw new IllegalArgumentException("Invalid page cursor: " + cursor);
+    try {
+      return Long.valueOf(decoded.substring(VERSION.length()));
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Invalid page cursor: " + cursor, e);
+    }
+  }
+}
@@ -1,42 +1,37 @@
 package org.openlmis.stockmanagement.util;
 
-import org.apache.commons.collections.CollectionUtils;
-import org.apache.commons.collections.Predicate;
-import org.apache.commons.collections.Transformer;
-import org.apache.commons.collections.list.SetUniqueList;
 import org.openlmis.stockmanagement.domain.StockCardEntryKV;
 
-import java.util.Collection;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
 public class StockManagementUtils {
+    /**
+     * Reduces key/values to a single value per key, keys being compared case-insensitively.  The key/values are
+     * grouped by key in a single pass, and the strategy is then applied once to each group.
+     */
     public static Map<String, String> getKeyValueAggregate(List<StockCardEntryKV> keyValues,
                                                            StockCardEntryKVReduceStrategy strategy) {
         Map<String, String> returnMap = new HashMap<>();
 
-        // Get just the keys in the key-value list
-        Collection keys = CollectionUtils.collect(keyValues, new Transformer() {
-            @Override
-            public Object transform(Object o) {
-                return ((StockCardEntryKV) o).getKeyColumn();
+        // Group the key-values by key, keeping the order in which the keys are first seen.
+        Map<String, List<StockCardEntryKV>> groups = new LinkedHashMap<>();
+        for (StockCardEntryKV item : keyValues) {
+            String key = item.getKeyColumn().toLowerCase();
+            List<StockCardEntryKV> group = groups.get(key);
+            if (null == group) {
+                group = new ArrayList<>();
+                groups.put(key, group);
             }
-        });
-
-        // Get only the unique keys
-        SetUniqueList.decorate((List) keys);
+            group.add(item);
+        }
 
-        // Iterate through the keys, getting the sub-list matching the key. Then implement the strategy on the sub-list.
-        // Put the resulting key-value entry into the map.
-        for (final Object item : keys) {
-            List<StockCardEntryKV> subList = (List<StockCardEntryKV>)CollectionUtils.select(keyValues, new Predicate() {
-                @Override
-                public boolean evaluate(Object o) {
-                    return ((StockCardEntryKV)o).getKeyColumn().equalsIgnoreCase((String)item);
-                }
-            });
-            StockCardEntryKV entry = strategy.reduce(subList);
+        // Implement the strategy on each group, and put the resulting key-value entry into the map.
+        for (List<StockCardEntryKV> group : groups.values()) {
+            StockCardEntryKV entry = strategy.reduce(group);
             returnMap.put(entry.getKeyColumn(), entry.getValueColumn());
         }
 
@@ -0,0 +1,33 @@
+-- Newest value of each custom property of a stock card and of a lot on hand, kept up to date as entry key/values are
+-- inserted, so that reading custom properties does not scan the whole entry history.
+
+CREATE TABLE stock_card_key_values_latest (
+  stockcardid   INTEGER      NOT NULL REFERENCES stock_cards (id),
+  keycolumn     TEXT         NOT NULL,
+  valuecolumn   TEXT,
+  synceddate    TIMESTAMP    NOT NULL,
+  PRIMARY KEY (stockcardid, keycolumn)
+);
+
+CREATE TABLE lot_on_hand_key_values_latest (
+  lotonhandid   INTEGER      NOT NULL REFERENCES lots_on_hand (id),
+  keycolumn     TEXT         NOT NULL,
+  valuecolumn   TEXT,
+  synceddate    TIMESTAMP    NOT NULL,
+  PRIMARY KEY (lotonhandid, keycolumn)
+);
+
+INSERT INTO stock_card_key_values_latest (stockcardid, keycolumn, valuecolumn, synceddate)
+  SELECT DISTINCT ON (sce.stockcardid, LOWER(scekv.keycolumn))
+    sce.stockcardid, LOWER(scekv.keycolumn), scekv.valuecolumn, scekv.modifieddate
+  FROM stock_card_entries sce
+    JOIN stock_card_entry_key_values scekv ON scekv.stockcardentryid = sce.id
+  ORDER BY sce.stockcardid, LOWER(scekv.keycolumn), scekv.modifieddate DESC, sce.id DESC;
+
+INSERT INTO lot_on_hand_key_values_latest (lotonhandid, keycolumn, valuecolumn, synceddate)
+  SELECT DISTINCT ON (sce.lotonhandid, LOWER(scekv.keycolumn))
+    sce.lotonhandid, LOWER(scekv.keycolumn), scekv.valuecolumn, scekv.modifieddate
+  FROM stock_card_entries sce
+    JOIN stock_card_entry_key_values scekv ON scekv.stockcardentryid = sce.id
+  WHERE sce.lotonhandid IS NOT NULL
+  ORDER BY sce.lotonhandid, LOWER(scekv.keycolumn), scekv.modifieddate DESC, sce.id DESC;
@@ -0,0 +1,27 @@
+-- A lot is identified by its code and manufacturer, ignoring case, and its expiration date.  The unique index serves
+-- the lot lookups by identity and keeps concurrent requests from creating the same lot twice.
+
+-- Merge lots created twice before the index existed into the one created first.
+CREATE TEMPORARY TABLE duplicate_lots ON COMMIT DROP AS
+  SELECT l.id AS lotid, canonical.id AS canonicalid
+  FROM lots l
+    JOIN (SELECT MIN(id) AS id, LOWER(lotnumber) AS lotnumber, LOWER(manufacturername) AS manufacturername,
+            expirationdate
+          FROM lots
+          GROUP BY LOWER(lotnumber), LOWER(manufacturername), expirationdate
+          HAVING COUNT(*) > 1) canonical
+      ON LOWER(l.lotnumber) = canonical.lotnumber
+      AND LOWER(l.manufacturername) = canonical.manufacturername
+      AND l.expirationdate = canonical.expirationdate
+  WHERE l.id <> canonical.id;
+
+UPDATE lots_on_hand loh
+  SET lotid = d.canonicalid
+  FROM duplicate_lots d
+  WHERE loh.lotid = d.lotid;
+
+DELETE FROM lots
+  WHERE id IN (SELECT lotid FROM duplicate_lots);
+
+CREATE UNIQUE INDEX uc_lots_identity
+  ON lots (LOWER(lotnumber), LOWER(manufacturername), expirationdate);
@@ -0,0 +1,93 @@
+-- A facility has one stock card per product, and a stock card one lot on hand per lot.  The unique indexes let
+-- concurrent requests create stock cards and lots on hand with INSERT ... ON CONFLICT DO NOTHING.
+
+-- Merge stock cards created twice into the one created first.
+CREATE TEMPORARY TABLE duplicate_stock_cards ON COMMIT DROP AS
+  SELECT sc.id AS stockcardid, canonical.id AS canonicalid
+  FROM stock_cards sc
+    JOIN (SELECT MIN(id) AS id, facilityid, productid
+          FROM stock_cards
+          GROUP BY facilityid, productid
+          HAVING COUNT(*) > 1) canonical
+      ON sc.facilityid = canonical.facilityid
+      AND sc.productid = canonical.productid
+  WHERE sc.id <> canonical.id;
+
+UPDATE stock_cards sc
+  SET totalquantityonhand = sc.totalquantityonhand + merged.quantity
+  FROM (SELECT d.canonicalid, SUM(dsc.totalquantityonhand) AS quantity
+        FROM duplicate_stock_cards d
+          JOIN stock_cards dsc ON dsc.id = d.stockcardid
+        GROUP BY d.canonicalid) merged
+  WHERE sc.id = merged.canonicalid;
+
+UPDATE stock_card_entries sce
+  SET stockcardid = d.canonicalid
+  FROM duplicate_stock_cards d
+  WHERE sce.stockcardid = d.stockcardid;
+
+UPDATE lots_on_hand loh
+  SET stockcardid = d.canonicalid
+  FROM duplicate_stock_cards d
+  WHERE loh.stockcardid = d.stockcardid;
+
+INSERT INTO stock_card_key_values_latest (stockcardid, keycolumn, valuecolumn, synceddate)
+  SELECT DISTINCT ON (d.canonicalid, kv.keycolumn) d.canonicalid, kv.keycolumn, kv.valuecolumn, kv.synceddate
+  FROM duplicate_stock_cards d
+    JOIN stock_card_key_values_latest kv ON kv.stockcardid = d.stockcardid
+  ORDER BY d.canonicalid, kv.keycolumn, kv.synceddate DESC
+  ON CONFLICT (stockcardid, keycolumn) DO UPDATE
+    SET valuecolumn = EXCLUDED.valuecolumn, synceddate = EXCLUDED.synceddate
+    WHERE stock_card_key_values_latest.synceddate < EXCLUDED.synceddate;
+
+DELETE FROM stock_card_key_values_latest
+  WHERE stockcardid IN (SELECT stockcardid FROM duplicate_stock_cards);
+
+DELETE FROM stock_cards
+  WHERE id IN (SELECT stockcardid FROM duplicate_stock_cards);
+
+-- Merge lots on hand created twice, including those brought together by the stock card merge, into the first one.
+CREATE TEMPORARY TABLE duplicate_lots_on_hand ON COMMIT DROP AS
+  SELECT loh.id AS lotonhandid, canonical.id AS canonicalid
+  FROM lots_on_hand loh
+    JOIN (SELECT MIN(id) AS id, stockcardid, lotid
+          FROM lots_on_hand
+          GROUP BY stockcardid, lotid
+          HAVING COUNT(*) > 1) canonical
+      ON loh.stockcardid = canonical.stockcardid
+      AND loh.lotid = canonical.lotid
+  WHERE loh.id <> canonical.id;
+
+UPDATE lots_on_hand loh
+  SET quantityonhand = loh.quantityonhand + merged.quantity
+  FROM (SELECT d.canonicalid, SUM(dloh.quantityonhand) AS quantity
+        FROM duplicate_lots_on_hand d
+          JOIN lots_on_hand dloh ON dloh.id = d.lotonhandid
+        GROUP BY d.canonicalid) merged
+  WHERE loh.id = merged.canonicalid;
+
+UPDATE stock_card_entries sce
+  SET lotonhandid = d.canonicalid
+  FROM duplicate_lots_on_hand d
+  WHERE sce.lotonhandid = d.lotonhandid;
+
+INSERT INTO lot_on_hand_key_values_latest (lotonhandid, keycolumn, valuecolumn, synceddate)
+  SELECT DISTINCT ON (d.canonicalid, kv.keycolumn) d.canonicalid, kv.keycolumn, kv.valuecolumn, kv.synceddate
+  FROM duplicate_lots_on_hand d
+    JOIN lot_on_hand_key_values_latest kv ON kv.lotonhandid = d.lotonhandid
+  ORDER BY d.canonicalid, kv.keycolumn, kv.synceddate DESC
+  ON CONFLICT (lotonhandid, keycolumn) DO UPDATE
+    SET valuecolumn = EXCLUDED.valuecolumn, synceddate = EXCLUDED.synceddate
+    WHERE lot_on_hand_key_values_latest.synceddate < EXCLUDED.synceddate;
+
+DELETE FROM lot_on_hand_key_values_latest
+  WHERE lotonhandid IN (SELECT lotonhandid FROM duplicate_lots_on_hand);
+
+DELETE FROM lots_on_hand
+  WHERE id IN (SELECT lotonhandid FROM duplicate_lots_on_hand);
+
+CREATE UNIQUE INDEX uc_stock_cards_facility_product
+  ON stock_cards (facilityid, productid);
+
+CREATE UNIQUE INDEX uc_lots_on_hand_stock_card_lot
+  ON lots_on_hand (stockcardid, lotid);
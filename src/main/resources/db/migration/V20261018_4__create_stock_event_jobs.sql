@@ -0,0 +1,24 @@
+-- Stock events submitted for asynchronous processing.  The request body is stored as received, so a job survives a
+-- restart, and is processed by a worker pool afterwards.
+CREATE TABLE stock_event_jobs
+(
+  id SERIAL NOT NULL,
+  facilityid INTEGER NOT NULL,
+  userid INTEGER NOT NULL,
+  status VARCHAR(20) NOT NULL,
+  events TEXT NOT NULL,
+  eventcount INTEGER NOT NULL,
+  errormessage TEXT,
+  starteddate TIMESTAMP WITH TIME ZONE,
+  completeddate TIMESTAMP WITH TIME ZONE,
+  createdby INTEGER,
+  createddate TIMESTAMP WITH TIME ZONE DEFAULT NOW(),
+  modifiedby INTEGER,
+  modifieddate TIMESTAMP WITH TIME ZONE DEFAULT NOW(),
+  CONSTRAINT stock_event_jobs_pkey PRIMARY KEY (id),
+  CONSTRAINT stock_event_jobs_facilityid_fkey FOREIGN KEY (facilityid) REFERENCES facilities (id),
+  CONSTRAINT stock_event_jobs_userid_fkey FOREIGN KEY (userid) REFERENCES users (id)
+);
+
+-- Jobs still queued are picked up again on startup.
+CREATE INDEX i_stock_event_jobs_queued ON stock_event_jobs (id) WHERE status = 'QUEUED';
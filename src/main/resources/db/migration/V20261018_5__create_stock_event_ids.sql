@@ -0,0 +1,10 @@
+-- Ids that clients gave the stock events recorded at a facility.  An event whose id is already here is a retry of an
+-- event already recorded, and is skipped.
+CREATE TABLE stock_event_ids
+(
+  facilityid INTEGER NOT NULL,
+  eventid TEXT NOT NULL,
+  createddate TIMESTAMP WITH TIME ZONE DEFAULT NOW(),
+  CONSTRAINT stock_event_ids_pkey PRIMARY KEY (facilityid, eventid),
+  CONSTRAINT stock_event_ids_facilityid_fkey FOREIGN KEY (facilityid) REFERENCES facilities (id)
+);
@@ -0,0 +1,50 @@
+-- Monthly balance snapshots of stock cards and lots on hand.  A row holds the balance at the end of the month starting
+-- at periodstart, the sum of the quantities of all entries effective up to then, and there is a row for each month
+-- with entries.  An entry is effective on the day it occurred, or the day it was created if it has no occurred date.
+-- The balance on any day is the latest snapshot before its month, plus the entries of its month up to that day.
+CREATE TABLE stock_card_balance_snapshots
+(
+  stockcardid INTEGER NOT NULL,
+  periodstart DATE NOT NULL,
+  quantity BIGINT NOT NULL,
+  CONSTRAINT stock_card_balance_snapshots_pkey PRIMARY KEY (stockcardid, periodstart),
+  CONSTRAINT stock_card_balance_snapshots_stockcardid_fkey FOREIGN KEY (stockcardid) REFERENCES stock_cards (id)
+);
+
+CREATE TABLE lot_on_hand_balance_snapshots
+(
+  lotonhandid INTEGER NOT NULL,
+  periodstart DATE NOT NULL,
+  quantity BIGINT NOT NULL,
+  CONSTRAINT lot_on_hand_balance_snapshots_pkey PRIMARY KEY (lotonhandid, periodstart),
+  CONSTRAINT lot_on_hand_balance_snapshots_lotonhandid_fkey FOREIGN KEY (lotonhandid) REFERENCES lots_on_hand (id)
+);
+
+-- Entries of a month up to a day are read with index range scans.
+CREATE INDEX i_stock_card_entries_stockcard_effective
+  ON stock_card_entries (stockcardid, (COALESCE(occurred, createddate::date)));
+
+CREATE INDEX i_stock_card_entries_lotonhand_effective
+  ON stock_card_entries (lotonhandid, (COALESCE(occurred, createddate::date)))
+  WHERE lotonhandid IS NOT NULL;
+
+INSERT INTO stock_card_balance_snapshots (stockcardid, periodstart, quantity)
+  SELECT stockcardid
+    , periodstart
+    , SUM(quantity) OVER (PARTITION BY stockcardid ORDER BY periodstart)
+  FROM (SELECT stockcardid
+          , date_trunc('month', COALESCE(occurred, createddate::date))::date AS periodstart
+          , SUM(quantity) AS quantity
+        FROM stock_card_entries
+        GROUP BY stockcardid, date_trunc('month', COALESCE(occurred, createddate::date))::date) monthly;
+
+INSERT INTO lot_on_hand_balance_snapshots (lotonhandid, periodstart, quantity)
+  SELECT lotonhandid
+    , periodstart
+    , SUM(quantity) OVER (PARTITION BY lotonhandid ORDER BY periodstart)
+  FROM (SELECT lotonhandid
+          , date_trunc('month', COALESCE(occurred, createddate::date))::date AS periodstart
+          , SUM(quantity) AS quantity
+        FROM stock_card_entries
+        WHERE lotonhandid IS NOT NULL
+        GROUP BY lotonhandid, date_trunc('month', COALESCE(occurred, createddate::date))::date) monthly;
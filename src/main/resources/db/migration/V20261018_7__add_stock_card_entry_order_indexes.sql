@@ -0,0 +1,11 @@
+-- The newest entries of a stock card, either by the day they are effective or by the time they were recorded, are
+-- read in index order, so a top-N read stops after N index entries and needs no sort.  The id breaks ties between
+-- entries of the same day or time, and makes the order stable for paging.
+CREATE INDEX i_stock_card_entries_stockcard_occurred
+  ON stock_card_entries (stockcardid, (COALESCE(occurred, createddate::date)) DESC, id DESC);
+
+CREATE INDEX i_stock_card_entries_stockcard_recorded
+  ON stock_card_entries (stockcardid, createddate DESC, id DESC);
+
+-- Range scans of the entries of a stock card by effective day are served by the occurred index.
+DROP INDEX i_stock_card_entries_stockcard_effective;
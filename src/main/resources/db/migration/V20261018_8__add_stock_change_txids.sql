@@ -0,0 +1,53 @@
+-- Id of the transaction that last changed each stock card, lot on hand and entry.  Transaction ids only grow, and every
+-- transaction with an id below the xmin of a snapshot has ended, so the changes with ids from one such xmin up to the
+-- next are complete once read, and clients sync changes with the xmin as a watermark.  Rows that existed before have
+-- no change id, and are only returned to clients that sync from the start.
+ALTER TABLE stock_cards ADD COLUMN changetxid BIGINT NOT NULL DEFAULT 0;
+ALTER TABLE lots_on_hand ADD COLUMN changetxid BIGINT NOT NULL DEFAULT 0;
+ALTER TABLE stock_card_entries ADD COLUMN changetxid BIGINT NOT NULL DEFAULT 0;
+
+CREATE OR REPLACE FUNCTION set_stock_change_txid() RETURNS TRIGGER AS $$
+BEGIN
+  NEW.changetxid := txid_current();
+  RETURN NEW;
+END;
+$$ LANGUAGE plpgsql;
+
+-- A change to a lot on hand or an entry is also a change to its stock card, so that the changes of a facility are
+-- found from its changed stock cards alone.
+CREATE OR REPLACE FUNCTION touch_stock_card_change_txid() RETURNS TRIGGER AS $$
+BEGIN
+  UPDATE stock_cards
+    SET changetxid = txid_current()
+    WHERE id = NEW.stockcardid
+      AND changetxid <> txid_current();
+  RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER stock_cards_change_txid
+  BEFORE INSERT OR UPDATE ON stock_cards
+  FOR EACH ROW EXECUTE PROCEDURE set_stock_change_txid();
+
+CREATE TRIGGER lots_on_hand_change_txid
+  BEFORE INSERT OR UPDATE ON lots_on_hand
+  FOR EACH ROW EXECUTE PROCEDURE set_stock_change_txid();
+
+CREATE TRIGGER stock_card_entries_change_txid
+  BEFORE INSERT OR UPDATE ON stock_card_entries
+  FOR EACH ROW EXECUTE PROCEDURE set_stock_change_txid();
+
+CREATE TRIGGER lots_on_hand_touch_stock_card
+  AFTER INSERT OR UPDATE ON lots_on_hand
+  FOR EACH ROW EXECUTE PROCEDURE touch_stock_card_change_txid();
+
+CREATE TRIGGER stock_card_entries_touch_stock_card
+  AFTER INSERT OR UPDATE ON stock_card_entries
+  FOR EACH ROW EXECUTE PROCEDURE touch_stock_card_change_txid();
+
+-- Reading the changes of a facility costs index range scans over the changed rows only.
+CREATE INDEX i_stock_cards_facility_changetxid ON stock_cards (facilityid, changetxid);
+
+CREATE INDEX i_lots_on_hand_stockcard_changetxid ON lots_on_hand (stockcardid, changetxid);
+
+CREATE INDEX i_stock_card_entries_stockcard_changetxid ON stock_card_entries (stockcardid, changetxid);
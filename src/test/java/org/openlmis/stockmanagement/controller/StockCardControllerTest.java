@@ -10,6 +10,7 @@
 
 package org.openlmis.stockmanagement.controller;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.experimental.categories.Category;
@@ -28,16 +29,30 @@ import org.openlmis.core.service.*;
 import org.openlmis.core.web.OpenLmisResponse;
 import org.openlmis.db.categories.UnitTests;
 import org.openlmis.stockmanagement.domain.*;
+import org.openlmis.stockmanagement.dto.FacilityStockOnHand;
+import org.openlmis.stockmanagement.dto.LotSummary;
+import org.openlmis.stockmanagement.dto.StockCardChanges;
+import org.openlmis.stockmanagement.dto.StockCardSummary;
 import org.openlmis.stockmanagement.dto.StockEvent;
 import org.openlmis.stockmanagement.dto.StockEventType;
+import org.openlmis.stockmanagement.dto.StockOnHandAggregate;
+import org.openlmis.stockmanagement.metrics.InMemoryMetricRegistry;
+import org.openlmis.stockmanagement.metrics.MetricStatistics;
+import org.openlmis.stockmanagement.metrics.RequestMetricsInterceptor;
 import org.openlmis.stockmanagement.repository.LotRepository;
 import org.openlmis.stockmanagement.repository.StockCardRepository;
+import org.openlmis.stockmanagement.service.ProductCache;
 import org.openlmis.stockmanagement.service.StockCardService;
+import org.openlmis.stockmanagement.service.StockEventIngestionService;
+import org.openlmis.stockmanagement.service.StockEventQueueFullException;
+import org.openlmis.stockmanagement.service.StockEventService;
+import org.openlmis.stockmanagement.util.PageCursor;
 import org.powermock.modules.junit4.PowerMockRunner;
 import org.powermock.modules.junit4.PowerMockRunnerDelegate;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
 import org.springframework.mock.web.MockHttpSession;
 
 import java.util.*;
@@ -47,6 +62,11 @@ import static org.hamcrest.CoreMatchers.is;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.mockito.Matchers.any;
@@ -88,6 +108,11 @@ public class StockCardControllerTest {
   @Mock
   private StockCardService stockCardService;
 
+  @Mock
+  private StockEventIngestionService ingestionService;
+
+  private InMemoryMetricRegistry metrics;
+
   private StockCardController controller;
 
   private static final long USER_ID = 1L;
@@ -117,6 +142,7 @@ public class StockCardControllerTest {
   public void setup() {
     request.setSession(session);
     session.setAttribute(UserAuthenticationSuccessHandler.USER_ID, USER_ID);
+    metrics = new InMemoryMetricRegistry();
     controller =  new StockCardController(messageService,
             facilityRepository,
             productService,
@@ -126,7 +152,12 @@ public class StockCardControllerTest {
             programProductService,
             programService,
             roleRightsService,
-            stockCardService);
+            stockCardService,
+            new StockEventService(facilityRepository, new ProductCache(productService, 100, 60),
+                stockAdjustmentReasonRepository, roleRightsService, stockCardService, metrics),
+            ingestionService,
+            metrics,
+            new ObjectMapper());
   }
 
   public void setupEvent() {
@@ -175,9 +206,10 @@ public class StockCardControllerTest {
   }
 
   public void setupGetStockCardCalls() {
-    when(stockCardRepository.getStockCardByFacilityAndProduct(any(Long.class), any(String.class))).thenReturn(dummyCard);
-    when(stockCardService.getStockCardById(any(Long.class), any(Long.class))).thenReturn(dummyCard);
-    when(stockCardService.getStockCards(any(Long.class))).thenReturn(new LinkedList<>(Collections.singletonList(dummyCard)));
+    when(stockCardRepository.getStockCardByFacilityAndProduct(any(Long.class), any(String.class), any(Integer.class), any(StockCardEntryOrder.class))).thenReturn(dummyCard);
+    when(stockCardService.getStockCardById(any(Long.class), any(Long.class), any(Integer.class), any(StockCardEntryOrder.class))).thenReturn(dummyCard);
+    when(stockCardService.getStockCards(any(Long.class), any(Long.class), eq("VIEW_STOCK_ON_HAND"), any(Integer.class), any(StockCardEntryOrder.class))).thenReturn(new LinkedList<>(Collections.singletonList(dummyCard)));
+    when(stockCardService.countStockCards(any(Long.class), any(Long.class), eq("VIEW_STOCK_ON_HAND"))).thenReturn(1);
   }
 
   public void setupPermissionCalls(List<Right> rights) {
@@ -198,17 +230,17 @@ public class StockCardControllerTest {
     setupGetStockCardCalls();
     setupPermissionCalls(Collections.singletonList(new Right("VIEW_STOCK_ON_HAND", RightType.REQUISITION)));
 
-    response = controller.getStockCard(facilityId, productCode, numEntries, true, request);
+    response = controller.getStockCard(facilityId, productCode, numEntries, true, null, null, request);
     assertThat(response.getStatusCode(), is(HttpStatus.OK));
     stockCard = (StockCard)response.getBody();
     assertEquals(dummyCard, stockCard);
 
-    response = controller.getStockCardById(facilityId, stockCardId, numEntries, true, request);
+    response = controller.getStockCardById(facilityId, stockCardId, numEntries, true, null, null, request);
     assertThat(response.getStatusCode(), is(HttpStatus.OK));
     stockCard = (StockCard)response.getBody();
     assertEquals(dummyCard, stockCard);
 
-    response = controller.getStockCards(facilityId, numEntries, false, true, request);
+    response = controller.getStockCards(facilityId, numEntries, false, true, null, null, null, null, request);
     assertThat(response.getStatusCode(), is(HttpStatus.OK));
     OpenLmisResponse openLmisResponse = (OpenLmisResponse)response.getBody();
     List<StockCard> stockCards = (List<StockCard>)openLmisResponse.getData().get("stockCards");
@@ -226,11 +258,13 @@ public class StockCardControllerTest {
     setupGetStockCardCalls();
     setupPermissionCalls(Collections.singletonList(new Right("VIEW_STOCK_ON_HAND", RightType.REQUISITION)));
 
-    response = controller.getStockCards(facilityId, numEntries, true, true, request);
+    response = controller.getStockCards(facilityId, numEntries, true, true, null, null, null, null, request);
     assertThat(response.getStatusCode(), is(HttpStatus.OK));
     OpenLmisResponse openLmisResponse = (OpenLmisResponse)response.getBody();
     int count = (int)openLmisResponse.getData().get("count");
     assertEquals(1, count);
+    verify(stockCardService).countStockCards(facilityId, USER_ID, "VIEW_STOCK_ON_HAND");
+    verify(roleRightsService, never()).getRightsForUserFacilityAndProductCode(any(Long.class), any(Long.class), any(String.class));
   }
 
   @Test
@@ -243,21 +277,259 @@ public class StockCardControllerTest {
 
     setupGetStockCardCalls();
     setupPermissionCalls(Collections.<Right>emptyList());
+    // stock cards without view permission are filtered out by the query
+    when(stockCardService.getStockCards(facilityId, USER_ID, "VIEW_STOCK_ON_HAND", numEntries,
+        StockCardEntryOrder.RECORDED))
+        .thenReturn(new LinkedList<StockCard>());
 
-    response = controller.getStockCard(facilityId, productCode, numEntries, true, request);
+    response = controller.getStockCard(facilityId, productCode, numEntries, true, null, null, request);
     assertThat(response.getStatusCode(), is(HttpStatus.FORBIDDEN));
 
-    response = controller.getStockCardById(facilityId, stockCardId, numEntries, true, request);
+    response = controller.getStockCardById(facilityId, stockCardId, numEntries, true, null, null, request);
     assertThat(response.getStatusCode(), is(HttpStatus.FORBIDDEN));
 
     // This one does not return an error, but returns an empty stock card list
-    response = controller.getStockCards(facilityId, numEntries, false, true, request);
+    response = controller.getStockCards(facilityId, numEntries, false, true, null, null, null, null, request);
     assertThat(response.getStatusCode(), is(HttpStatus.OK));
     OpenLmisResponse openLmisResponse = (OpenLmisResponse)response.getBody();
     List<StockCard> stockCards = (List<StockCard>)openLmisResponse.getData().get("stockCards");
     assertEquals(0, stockCards.size());
   }
 
+  @Test
+  public void shouldLoadOnlyRequestedNumberOfEntries() {
+    Long facilityId = 1L;
+    String productCode = "2";
+    Long stockCardId = 3L;
+
+    setupGetStockCardCalls();
+    setupPermissionCalls(Collections.singletonList(new Right("VIEW_STOCK_ON_HAND", RightType.REQUISITION)));
+
+    controller.getStockCard(facilityId, productCode, 5, true, null, null, request);
+    verify(stockCardRepository).getStockCardByFacilityAndProduct(facilityId, productCode, 5,
+        StockCardEntryOrder.RECORDED);
+
+    controller.getStockCardById(facilityId, stockCardId, -1, true, null, null, request);
+    verify(stockCardService).getStockCardById(facilityId, stockCardId, 1, StockCardEntryOrder.RECORDED);
+
+    controller.getStockCards(facilityId, 0, false, true, null, null, null, null, request);
+    verify(stockCardService).getStockCards(facilityId, USER_ID, "VIEW_STOCK_ON_HAND", 0, StockCardEntryOrder.RECORDED);
+  }
+
+  @Test
+  public void shouldOrderEntriesByOccurredDate() {
+    Long facilityId = 1L;
+    Long stockCardId = 3L;
+    setupGetStockCardCalls();
+    setupPermissionCalls(Collections.singletonList(new Right("VIEW_STOCK_ON_HAND", RightType.REQUISITION)));
+
+    controller.getStockCardById(facilityId, stockCardId, 5, true, "OCCURRED", null, request);
+    verify(stockCardService).getStockCardById(facilityId, stockCardId, 5, StockCardEntryOrder.OCCURRED);
+
+    controller.getStockCards(facilityId, 5, false, true, null, null, "occurred", null, request);
+    verify(stockCardService).getStockCards(facilityId, USER_ID, "VIEW_STOCK_ON_HAND", 5, StockCardEntryOrder.OCCURRED);
+  }
+
+  @Test
+  public void shouldRejectUnknownEntryOrder() {
+    Long facilityId = 1L;
+    Long stockCardId = 3L;
+    setupGetStockCardCalls();
+    setupPermissionCalls(Collections.singletonList(new Right("VIEW_STOCK_ON_HAND", RightType.REQUISITION)));
+    when(stockCardRepository.getProductByStockCardId(stockCardId)).thenReturn(defaultProduct);
+
+    ResponseEntity response = controller.getStockCardById(facilityId, stockCardId, 5, true, "modified", null, request);
+    assertThat(response.getStatusCode(), is(HttpStatus.BAD_REQUEST));
+
+    response = controller.getStockCardEntries(facilityId, stockCardId, 10, null, "modified", request);
+    assertThat(response.getStatusCode(), is(HttpStatus.BAD_REQUEST));
+    verify(stockCardService, never()).getStockCardById(any(Long.class), any(Long.class), any(Integer.class),
+        any(StockCardEntryOrder.class));
+  }
+
+  @Test
+  public void shouldGetStockOnHandAsOfDay() {
+    Long facilityId = 1L;
+    Long stockCardId = 3L;
+    Date asOf = new Date(0);
+    setupGetStockCardCalls();
+    setupPermissionCalls(Collections.singletonList(new Right("VIEW_STOCK_ON_HAND", RightType.REQUISITION)));
+
+    controller.getStockCardById(facilityId, stockCardId, 1, true, null, asOf, request);
+    controller.getStockCards(facilityId, 1, false, true, null, null, null, asOf, request);
+
+    // once for the stock card, and once for the list of stock cards
+    verify(stockCardService, times(2)).applyBalancesAsOf(Collections.singletonList(dummyCard), asOf);
+  }
+
+  @Test
+  public void shouldGetStockOnHandAsOfDayWithoutEntries() {
+    // the balances as of a day leave the stock card without entries
+    StockCard stockCard = StockCard.createZeroedStockCard(defaultFacility, defaultProduct);
+    stockCard.setEntries(new ArrayList<StockCardEntry>());
+    when(stockCardService.getStockCardById(any(Long.class), any(Long.class), any(Integer.class),
+        any(StockCardEntryOrder.class))).thenReturn(stockCard);
+    setupPermissionCalls(Collections.singletonList(new Right("VIEW_STOCK_ON_HAND", RightType.REQUISITION)));
+
+    ResponseEntity response = controller.getStockCardById(1L, 3L, -1, true, null, new Date(0), request);
+
+    assertThat(response.getStatusCode(), is(HttpStatus.OK));
+    assertEquals(0, stockCard.getEntries().size());
+  }
+
+  @Test
+  public void shouldGetPageOfStockCardsAfterCursor() {
+    Long facilityId = 1L;
+    StockCard card1 = StockCard.createZeroedStockCard(defaultFacility, defaultProduct);
+    card1.setId(11L);
+    StockCard card2 = StockCard.createZeroedStockCard(defaultFacility, defaultProduct);
+    card2.setId(12L);
+    when(stockCardService.getStockCardsPage(facilityId, USER_ID, "VIEW_STOCK_ON_HAND", 10L, 2, 1,
+        StockCardEntryOrder.RECORDED))
+        .thenReturn(Arrays.asList(card1, card2));
+
+    ResponseEntity response = controller.getStockCards(facilityId, 1, false, true, 2, PageCursor.encode(10L),
+        null, null, request);
+
+    assertThat(response.getStatusCode(), is(HttpStatus.OK));
+    OpenLmisResponse openLmisResponse = (OpenLmisResponse)response.getBody();
+    assertEquals(Arrays.asList(card1, card2), openLmisResponse.getData().get("stockCards"));
+    assertThat(PageCursor.decode((String) openLmisResponse.getData().get("nextCursor")), is(12L));
+    assertEquals(2, metrics.getDistribution(RequestMetricsInterceptor.ENTRIES_RETURNED).getCount());
+    verify(stockCardService, never()).getStockCards(any(Long.class), any(Long.class), any(String.class), any(Integer.class),
+        any(StockCardEntryOrder.class));
+  }
+
+  @Test
+  public void shouldNotReturnCursorForLastPageOfStockCards() {
+    Long facilityId = 1L;
+    when(stockCardService.getStockCardsPage(facilityId, USER_ID, "VIEW_STOCK_ON_HAND", null, 2, 1,
+        StockCardEntryOrder.RECORDED))
+        .thenReturn(Collections.singletonList(dummyCard));
+
+    ResponseEntity response = controller.getStockCards(facilityId, 1, false, true, 2, null, null, null, request);
+
+    assertThat(response.getStatusCode(), is(HttpStatus.OK));
+    OpenLmisResponse openLmisResponse = (OpenLmisResponse)response.getBody();
+    assertNull(openLmisResponse.getData().get("nextCursor"));
+  }
+
+  @Test
+  public void shouldRejectInvalidPageRequests() {
+    Long facilityId = 1L;
+
+    ResponseEntity response = controller.getStockCards(facilityId, 1, false, true, 0, null, null, null, request);
+    assertThat(response.getStatusCode(), is(HttpStatus.BAD_REQUEST));
+
+    response = controller.getStockCards(facilityId, 1, false, true, 10, "not-a-cursor", null, null, request);
+    assertThat(response.getStatusCode(), is(HttpStatus.BAD_REQUEST));
+  }
+
+  @Test
+  public void shouldGetPageOfStockCardEntries() {
+    Long facilityId = 1L;
+    Long stockCardId = 3L;
+    setupPermissionCalls(Collections.singletonList(new Right("VIEW_STOCK_ON_HAND", RightType.REQUISITION)));
+    when(stockCardRepository.getProductByStockCardId(stockCardId)).thenReturn(defaultProduct);
+    StockCardEntry entry = new StockCardEntry(dummyCard, StockCardEntryType.CREDIT, 5L, null, null);
+    entry.setId(7L);
+    when(stockCardService.getStockCardEntriesPage(facilityId, stockCardId, 20L, 1, StockCardEntryOrder.OCCURRED))
+        .thenReturn(Collections.singletonList(entry));
+
+    ResponseEntity response = controller.getStockCardEntries(facilityId, stockCardId, 1, PageCursor.encode(20L),
+        "occurred", request);
+
+    assertThat(response.getStatusCode(), is(HttpStatus.OK));
+    OpenLmisResponse openLmisResponse = (OpenLmisResponse)response.getBody();
+    assertEquals(Collections.singletonList(entry), openLmisResponse.getData().get("entries"));
+    assertThat(PageCursor.decode((String) openLmisResponse.getData().get("nextCursor")), is(7L));
+    MetricStatistics entriesReturned = metrics.getDistribution(RequestMetricsInterceptor.ENTRIES_RETURNED);
+    assertEquals(1, entriesReturned.getCount());
+    assertEquals(1, entriesReturned.getMax());
+  }
+
+  @Test
+  public void shouldGetChangesSinceWatermark() {
+    Long facilityId = 1L;
+    StockCardChanges changes = new StockCardChanges(120L, Collections.singletonList(dummyCard),
+        new ArrayList<LotOnHand>(), new ArrayList<StockCardEntry>());
+    when(stockCardService.getChanges(facilityId, USER_ID, "VIEW_STOCK_ON_HAND", 100L)).thenReturn(changes);
+
+    ResponseEntity response = controller.getStockCardChanges(facilityId, 100L, request);
+
+    assertThat(response.getStatusCode(), is(HttpStatus.OK));
+    OpenLmisResponse openLmisResponse = (OpenLmisResponse)response.getBody();
+    assertEquals(changes, openLmisResponse.getData().get("changes"));
+
+    response = controller.getStockCardChanges(facilityId, -1L, request);
+    assertThat(response.getStatusCode(), is(HttpStatus.BAD_REQUEST));
+  }
+
+  @Test
+  public void shouldGetStockCardSummaries() {
+    Long facilityId = 1L;
+    List<StockCardSummary> summaries = Collections.singletonList(new StockCardSummary("valid_code", 30L,
+        Collections.singletonList(new LotSummary("LOT-A", new Date(), 30L))));
+    when(stockCardService.getStockCardSummaries(facilityId, USER_ID, "VIEW_STOCK_ON_HAND", false))
+        .thenReturn(summaries);
+
+    ResponseEntity response = controller.getStockCardSummaries(facilityId, false, request);
+
+    assertThat(response.getStatusCode(), is(HttpStatus.OK));
+    OpenLmisResponse openLmisResponse = (OpenLmisResponse)response.getBody();
+    assertEquals(summaries, openLmisResponse.getData().get("stockCards"));
+  }
+
+  @Test
+  public void shouldGetStockOnHandOfManyFacilities() {
+    Set<Long> facilityIds = new HashSet<>(Arrays.asList(1L, 2L));
+    List<StockOnHandAggregate> aggregates = Collections.singletonList(new StockOnHandAggregate("valid_code", 40L,
+        Arrays.asList(new FacilityStockOnHand(1L, 30L), new FacilityStockOnHand(2L, 10L)),
+        new ArrayList<LotSummary>()));
+    when(stockCardService.getStockOnHandAggregates(facilityIds, null, USER_ID, "VIEW_STOCK_ON_HAND"))
+        .thenReturn(aggregates);
+
+    ResponseEntity response = controller.getStockOnHandAggregates(facilityIds, new HashSet<String>(), request);
+
+    assertThat(response.getStatusCode(), is(HttpStatus.OK));
+    OpenLmisResponse openLmisResponse = (OpenLmisResponse)response.getBody();
+    assertEquals(aggregates, openLmisResponse.getData().get("products"));
+
+    response = controller.getStockOnHandAggregates(new HashSet<Long>(), null, request);
+    assertThat(response.getStatusCode(), is(HttpStatus.BAD_REQUEST));
+  }
+
+  @Test
+  public void shouldStreamStockCardsPageByPage() throws Exception {
+    Long facilityId = 1L;
+    List<StockCard> firstPage = new ArrayList<>();
+    for (long id = 1; id <= StockCardController.STREAM_PAGE_SIZE; id++) {
+      StockCard card = StockCard.createZeroedStockCard(defaultFacility, defaultProduct);
+      card.setId(id);
+      firstPage.add(card);
+    }
+    StockCard lastCard = StockCard.createZeroedStockCard(defaultFacility, defaultProduct);
+    lastCard.setId(1000L);
+    when(stockCardService.getStockCardsPage(facilityId, USER_ID, "VIEW_STOCK_ON_HAND", null,
+        StockCardController.STREAM_PAGE_SIZE, 1, StockCardEntryOrder.RECORDED)).thenReturn(firstPage);
+    when(stockCardService.getStockCardsPage(facilityId, USER_ID, "VIEW_STOCK_ON_HAND",
+        (long) StockCardController.STREAM_PAGE_SIZE, StockCardController.STREAM_PAGE_SIZE, 1,
+        StockCardEntryOrder.RECORDED))
+        .thenReturn(Collections.singletonList(lastCard));
+    MockHttpServletResponse response = new MockHttpServletResponse();
+
+    controller.streamStockCards(facilityId, 1, true, null, request, response);
+
+    assertThat(response.getContentType().startsWith(StockCardController.NDJSON), is(true));
+    String[] lines = response.getContentAsString().split("\n");
+    assertEquals(StockCardController.STREAM_PAGE_SIZE + 1, lines.length);
+    assertThat(lines[lines.length - 1].contains("\"id\":1000"), is(true));
+    assertEquals(StockCardController.STREAM_PAGE_SIZE + 1,
+        metrics.getDistribution(RequestMetricsInterceptor.ENTRIES_RETURNED).getCount());
+    verify(stockCardService, times(2)).getStockCardsPage(any(Long.class), any(Long.class), any(String.class),
+        any(Long.class), any(Integer.class), any(Integer.class), any(StockCardEntryOrder.class));
+  }
+
   @Test
   public void shouldSucceedWithEmptyStockEventList() {
     List<StockEvent> events = Collections.emptyList();
@@ -284,7 +556,8 @@ public class StockCardControllerTest {
     when(facilityRepository.getById(fId)).thenReturn(defaultFacility);
     when(productService.getByCode(pCode)).thenReturn(defaultProduct);
     when(stockAdjustmentReasonRepository.getAdjustmentReasonByName(reasonName)).thenReturn(reason);
-    when(stockCardService.getOrCreateStockCard(fId, pCode)).thenReturn(dummyCard);
+    when(stockCardService.getOrCreateStockCards(eq(fId), any(Collection.class))).thenReturn(
+        Collections.singletonMap(pCode, dummyCard));
     when(lotRepository.getLotOnHandByStockCardAndLot(eq(dummyCard.getId()), any(Long.class))).thenReturn(null);
     setupPermissionCalls(Collections.singletonList(new Right("MANAGE_STOCK", RightType.REQUISITION)));
 
@@ -299,6 +572,231 @@ public class StockCardControllerTest {
 
 
 
+  @Test
+  public void shouldRecordPhysicalInventoryAsCountedQuantity() {
+    setupEvent();
+    event.setType(StockEventType.PHYSICAL_INVENTORY);
+    event.setReasonName(null);
+    event.setQuantity(25L);
+
+    when(facilityRepository.getById(fId)).thenReturn(defaultFacility);
+    when(productService.getByCode(pCode)).thenReturn(defaultProduct);
+    when(stockCardService.getOrCreateStockCards(eq(fId), any(Collection.class))).thenReturn(
+        Collections.singletonMap(pCode, dummyCard));
+    setupPermissionCalls(Collections.singletonList(new Right("MANAGE_STOCK", RightType.REQUISITION)));
+
+    ResponseEntity response = controller.processStock(fId, Collections.singletonList(event), request);
+
+    StockCardEntry entry = new StockCardEntry(dummyCard, StockCardEntryType.PHYSICAL_COUNT, 25L, null, null);
+    verify(stockCardService).addStockCardEntries(Collections.singletonList(entry));
+    assertThat(response.getStatusCode(), is(HttpStatus.OK));
+  }
+
+  @Test
+  public void shouldSkipStockEventsRecordedBefore() {
+    setupEvent();
+    event.setEventId("event-1");
+    StockEvent retried = new StockEvent();
+    retried.setEventId("event-2");
+    retried.setProductCode(pCode);
+    retried.setType(StockEventType.ADJUSTMENT);
+    retried.setReasonName(reasonName);
+    retried.setQuantity(5L);
+
+    when(facilityRepository.getById(fId)).thenReturn(defaultFacility);
+    when(productService.getByCode(pCode)).thenReturn(defaultProduct);
+    when(stockAdjustmentReasonRepository.getAdjustmentReasonByName(reasonName)).thenReturn(reason);
+    when(stockCardService.getOrCreateStockCards(eq(fId), any(Collection.class))).thenReturn(
+        Collections.singletonMap(pCode, dummyCard));
+    when(stockCardService.claimEventIds(fId, Arrays.asList("event-1", "event-2"))).thenReturn(
+        Collections.singleton("event-1"));
+    setupPermissionCalls(Collections.singletonList(new Right("MANAGE_STOCK", RightType.REQUISITION)));
+
+    ResponseEntity response = controller.processStock(fId, Arrays.asList(event, retried, event), request);
+
+    StockCardEntry entry = new StockCardEntry(dummyCard, StockCardEntryType.ADJUSTMENT, event.getQuantity() * -1, null, null);
+    entry.setAdjustmentReason(reason);
+    verify(stockCardService).addStockCardEntries(Collections.singletonList(entry));
+    assertThat(response.getStatusCode(), is(HttpStatus.OK));
+  }
+
+  @Test
+  public void shouldResolveStockCardsOnlyForStockEventsNotRecordedBefore() {
+    setupEvent();
+    event.setEventId("event-1");
+    Product otherProduct = new Product();
+    otherProduct.setCode("other_code");
+    StockEvent retried = new StockEvent();
+    retried.setEventId("event-2");
+    retried.setProductCode("other_code");
+    retried.setType(StockEventType.ADJUSTMENT);
+    retried.setReasonName(reasonName);
+    retried.setQuantity(5L);
+
+    when(facilityRepository.getById(fId)).thenReturn(defaultFacility);
+    when(productService.getByCode(pCode)).thenReturn(defaultProduct);
+    when(productService.getByCode("other_code")).thenReturn(otherProduct);
+    when(stockAdjustmentReasonRepository.getAdjustmentReasonByName(reasonName)).thenReturn(reason);
+    when(stockCardService.getOrCreateStockCards(eq(fId), any(Collection.class))).thenReturn(
+        Collections.singletonMap(pCode, dummyCard));
+    when(stockCardService.claimEventIds(fId, Arrays.asList("event-1", "event-2"))).thenReturn(
+        Collections.singleton("event-1"));
+    setupPermissionCalls(Collections.singletonList(new Right("MANAGE_STOCK", RightType.REQUISITION)));
+
+    ResponseEntity response = controller.processStock(fId, Arrays.asList(event, retried), request);
+
+    verify(stockCardService).getOrCreateStockCards(fId, Collections.singleton(pCode));
+    assertThat(response.getStatusCode(), is(HttpStatus.OK));
+  }
+
+  @Test
+  public void shouldNotAddEntriesWhenAllStockEventsWereRecordedBefore() {
+    setupEvent();
+    event.setEventId("event-1");
+
+    when(facilityRepository.getById(fId)).thenReturn(defaultFacility);
+    when(productService.getByCode(pCode)).thenReturn(defaultProduct);
+    when(stockAdjustmentReasonRepository.getAdjustmentReasonByName(reasonName)).thenReturn(reason);
+    when(stockCardService.claimEventIds(fId, Collections.singletonList("event-1"))).thenReturn(
+        Collections.<String>emptySet());
+    setupPermissionCalls(Collections.singletonList(new Right("MANAGE_STOCK", RightType.REQUISITION)));
+
+    ResponseEntity response = controller.processStock(fId, Collections.singletonList(event), request);
+
+    verify(stockCardService, never()).getOrCreateStockCards(any(Long.class), any(Collection.class));
+    verify(stockCardService, never()).addStockCardEntries(any(List.class));
+    assertThat(response.getStatusCode(), is(HttpStatus.OK));
+  }
+
+  @Test
+  public void shouldResolveEachProductAndReasonOnceForManyEvents() {
+    setupEvent();
+
+    when(facilityRepository.getById(fId)).thenReturn(defaultFacility);
+    when(productService.getByCode(pCode)).thenReturn(defaultProduct);
+    when(stockAdjustmentReasonRepository.getAdjustmentReasonByName(reasonName)).thenReturn(reason);
+    when(stockCardService.getOrCreateStockCards(eq(fId), any(Collection.class))).thenReturn(
+        Collections.singletonMap(pCode, dummyCard));
+    setupPermissionCalls(Collections.singletonList(new Right("MANAGE_STOCK", RightType.REQUISITION)));
+
+    ResponseEntity response = controller.processStock(fId, Arrays.asList(event, event, event), request);
+
+    assertThat(response.getStatusCode(), is(HttpStatus.OK));
+    verify(productService, times(1)).getByCode(pCode);
+    verify(stockAdjustmentReasonRepository, times(1)).getAdjustmentReasonByName(reasonName);
+    verify(roleRightsService, times(1)).getRightsForUserFacilityAndProductCode(USER_ID, fId, pCode);
+    verify(stockCardService, times(1)).getOrCreateStockCards(eq(fId), any(Collection.class));
+  }
+
+  @Test
+  public void shouldRecordStockEventMetrics() {
+    setupEvent();
+
+    when(facilityRepository.getById(fId)).thenReturn(defaultFacility);
+    when(productService.getByCode(pCode)).thenReturn(defaultProduct);
+    when(stockAdjustmentReasonRepository.getAdjustmentReasonByName(reasonName)).thenReturn(reason);
+    when(stockCardService.getOrCreateStockCards(eq(fId), any(Collection.class))).thenReturn(
+        Collections.singletonMap(pCode, dummyCard));
+    setupPermissionCalls(Collections.singletonList(new Right("MANAGE_STOCK", RightType.REQUISITION)));
+
+    controller.processStock(fId, Arrays.asList(event, event), request);
+
+    MetricStatistics eventsPerRequest = metrics.getDistribution(StockEventService.EVENTS_PER_REQUEST);
+    assertEquals(1, eventsPerRequest.getCount());
+    assertEquals(2, eventsPerRequest.getMax());
+    for (String phase : Arrays.asList("validation", "rights", "resolution", "persistence")) {
+      assertEquals(1, metrics.getTimer(StockEventService.EVENT_PHASES + phase).getCount());
+    }
+    assertEquals(1, metrics.getDistribution(StockEventService.EVENT_STATEMENTS).getCount());
+  }
+
+  @Test
+  public void shouldRecordStockCardEntriesReturned() {
+    setupGetStockCardCalls();
+    setupPermissionCalls(Collections.singletonList(new Right("VIEW_STOCK_ON_HAND", RightType.REQUISITION)));
+
+    controller.getStockCard(1L, "2", 1, true, null, null, request);
+
+    MetricStatistics entriesReturned = metrics.getDistribution(RequestMetricsInterceptor.ENTRIES_RETURNED);
+    assertEquals(1, entriesReturned.getCount());
+  }
+
+  @Test
+  public void shouldAcceptStockEventsForAsynchronousProcessing() {
+    StockEventJob job = new StockEventJob(1L, USER_ID, "[]", 1);
+    job.setId(5L);
+    String body = "[{\"type\": \"RECEIPT\", \"facilityId\": 2, \"productCode\": \"valid_code\", \"quantity\": 10}]";
+    when(facilityRepository.getById(1L)).thenReturn(defaultFacility);
+    when(stockCardService.getProductCodesWithRight(USER_ID, 1L, "MANAGE_STOCK"))
+        .thenReturn(Collections.singleton("valid_code"));
+    when(ingestionService.submit(1L, USER_ID, body, 1)).thenReturn(job);
+
+    ResponseEntity response = controller.submitStockEvents(1L, body, request);
+
+    assertThat(response.getStatusCode(), is(HttpStatus.ACCEPTED));
+    assertEquals(job, ((OpenLmisResponse) response.getBody()).getData().get("job"));
+  }
+
+  @Test
+  public void shouldNotQueueInvalidStockEvents() {
+    when(facilityRepository.getById(1L)).thenReturn(defaultFacility);
+
+    assertThat(controller.submitStockEvents(1L, "[{}]", request).getStatusCode(), is(HttpStatus.BAD_REQUEST));
+    assertThat(controller.submitStockEvents(1L, "not json", request).getStatusCode(), is(HttpStatus.BAD_REQUEST));
+    verify(ingestionService, never()).submit(anyLong(), any(Long.class), anyString(), anyInt());
+  }
+
+  @Test
+  public void shouldNotQueueStockEventsWithoutManageStockRight() {
+    String body = "[{\"type\": \"RECEIPT\", \"facilityId\": 2, \"productCode\": \"valid_code\", \"quantity\": 10}]";
+    when(facilityRepository.getById(1L)).thenReturn(defaultFacility);
+    when(stockCardService.getProductCodesWithRight(USER_ID, 1L, "MANAGE_STOCK"))
+        .thenReturn(Collections.singleton("other_code"));
+
+    assertThat(controller.submitStockEvents(1L, body, request).getStatusCode(), is(HttpStatus.FORBIDDEN));
+    verify(ingestionService, never()).submit(anyLong(), any(Long.class), anyString(), anyInt());
+  }
+
+  @Test
+  public void shouldNotQueueTooManyStockEvents() {
+    String body = "[{\"type\": \"RECEIPT\", \"facilityId\": 2, \"productCode\": \"valid_code\", \"quantity\": 10}]";
+    when(ingestionService.hasTooManyEvents(1)).thenReturn(true);
+
+    assertThat(controller.submitStockEvents(1L, body, request).getStatusCode(), is(HttpStatus.REQUEST_ENTITY_TOO_LARGE));
+    when(ingestionService.isBodyTooLong(body)).thenReturn(true);
+    assertThat(controller.submitStockEvents(1L, body, request).getStatusCode(), is(HttpStatus.REQUEST_ENTITY_TOO_LARGE));
+    verify(ingestionService, never()).submit(anyLong(), any(Long.class), anyString(), anyInt());
+  }
+
+  @Test
+  public void shouldAskToRetryLaterWhenStockEventQueueIsFull() {
+    String body = "[{\"type\": \"RECEIPT\", \"facilityId\": 2, \"productCode\": \"valid_code\", \"quantity\": 10}]";
+    when(facilityRepository.getById(1L)).thenReturn(defaultFacility);
+    when(stockCardService.getProductCodesWithRight(USER_ID, 1L, "MANAGE_STOCK"))
+        .thenReturn(Collections.singleton("valid_code"));
+    when(ingestionService.submit(1L, USER_ID, body, 1)).thenThrow(new StockEventQueueFullException(30));
+
+    ResponseEntity response = controller.submitStockEvents(1L, body, request);
+
+    assertThat(response.getStatusCode(), is(HttpStatus.SERVICE_UNAVAILABLE));
+    assertEquals("30", response.getHeaders().getFirst("Retry-After"));
+  }
+
+  @Test
+  public void shouldOnlyGetStockEventJobsOfCurrentUserAndFacility() {
+    StockEventJob job = new StockEventJob(1L, USER_ID, "[]", 1);
+    job.setId(5L);
+    StockEventJob otherUsersJob = new StockEventJob(1L, USER_ID + 1, "[]", 1);
+    otherUsersJob.setId(6L);
+    when(ingestionService.getJob(5L)).thenReturn(job);
+    when(ingestionService.getJob(6L)).thenReturn(otherUsersJob);
+
+    assertThat(controller.getStockEventJob(1L, 5L, request).getStatusCode(), is(HttpStatus.OK));
+    assertThat(controller.getStockEventJob(2L, 5L, request).getStatusCode(), is(HttpStatus.NOT_FOUND));
+    assertThat(controller.getStockEventJob(1L, 6L, request).getStatusCode(), is(HttpStatus.NOT_FOUND));
+    assertThat(controller.getStockEventJob(1L, 7L, request).getStatusCode(), is(HttpStatus.NOT_FOUND));
+  }
+
   @Test
   public void shouldReturnNullWhenLotsOnHandIsNull()
   {
@@ -307,16 +805,16 @@ public class StockCardControllerTest {
     String productCode = "2";
     Integer numEntries = 100;
 
-    when(stockCardRepository.getStockCardByFacilityAndProduct(any(Long.class), any(String.class))).thenReturn(dummyCard);
+    when(stockCardRepository.getStockCardByFacilityAndProduct(any(Long.class), any(String.class), any(Integer.class), any(StockCardEntryOrder.class))).thenReturn(dummyCard);
     setupPermissionCalls(Collections.singletonList(new Right("VIEW_STOCK_ON_HAND", RightType.REQUISITION)));
 
     boolean includeEmptyLots = false;
-    ResponseEntity response = controller.getStockCard(facilityId, productCode, numEntries, includeEmptyLots, request);
+    ResponseEntity response = controller.getStockCard(facilityId, productCode, numEntries, includeEmptyLots, null, null, request);
     StockCard stockCard = (StockCard)response.getBody();
     assertNull(stockCard.getLotsOnHand());
 
     includeEmptyLots = true;
-    response = controller.getStockCard(facilityId, productCode, numEntries, includeEmptyLots, request);
+    response = controller.getStockCard(facilityId, productCode, numEntries, includeEmptyLots, null, null, request);
     stockCard = (StockCard)response.getBody();
     assertNull(stockCard.getLotsOnHand());
   }
@@ -330,7 +828,8 @@ public class StockCardControllerTest {
     when(facilityRepository.getById(fId)).thenReturn(defaultFacility);
     when(productService.getByCode(pCode)).thenReturn(defaultProduct);
     when(stockAdjustmentReasonRepository.getAdjustmentReasonByName(reasonName)).thenReturn(reason);
-    when(stockCardService.getOrCreateStockCard(fId, pCode)).thenReturn(dummyCard);
+    when(stockCardService.getOrCreateStockCards(eq(fId), any(Collection.class))).thenReturn(
+        Collections.singletonMap(pCode, dummyCard));
     when(lotRepository.getLotOnHandByStockCardAndLot(eq(dummyCard.getId()), any(Long.class))).thenReturn(null);
     setupPermissionCalls(Collections.<Right>emptyList());
 
@@ -358,18 +857,18 @@ public class StockCardControllerTest {
 
 
     associateTestLotsWithStockCard(dummyCard);
-    ResponseEntity response = controller.getStockCard(facilityId, productCode, numEntries, includeEmptyLots, request);
+    ResponseEntity response = controller.getStockCard(facilityId, productCode, numEntries, includeEmptyLots, null, null, request);
     StockCard stockCard = (StockCard)response.getBody();
     assertEquals( 1, stockCard.getLotsOnHand().size());
 
     associateTestLotsWithStockCard(dummyCard);
-    response = controller.getStockCardById(facilityId, stockCardId, numEntries, includeEmptyLots, request);
+    response = controller.getStockCardById(facilityId, stockCardId, numEntries, includeEmptyLots, null, null, request);
     stockCard = (StockCard)response.getBody();
     assertEquals( 1, stockCard.getLotsOnHand().size());
 
 
     associateTestLotsWithStockCard(dummyCard);
-    response = controller.getStockCards(facilityId, numEntries, countOnly, includeEmptyLots, request);
+    response = controller.getStockCards(facilityId, numEntries, countOnly, includeEmptyLots, null, null, null, null, request);
     OpenLmisResponse openLmisResponse = (OpenLmisResponse)response.getBody();
     List<StockCard> stockCards = (List<StockCard>)openLmisResponse.getData().get("stockCards");
     stockCard = stockCards.get(0);
@@ -383,17 +882,17 @@ public class StockCardControllerTest {
 
 
     associateTestLotsWithStockCard(dummyCard);
-    response = controller.getStockCard(facilityId, productCode, numEntries, includeEmptyLots, request);
+    response = controller.getStockCard(facilityId, productCode, numEntries, includeEmptyLots, null, null, request);
     stockCard = (StockCard)response.getBody();
     assertEquals( 2, stockCard.getLotsOnHand().size());
 
     associateTestLotsWithStockCard(dummyCard);
-    response = controller.getStockCardById(facilityId, stockCardId, numEntries, includeEmptyLots, request);
+    response = controller.getStockCardById(facilityId, stockCardId, numEntries, includeEmptyLots, null, null, request);
     stockCard = (StockCard)response.getBody();
     assertEquals( 2, stockCard.getLotsOnHand().size());
 
     associateTestLotsWithStockCard(dummyCard);
-    response = controller.getStockCards(facilityId, numEntries, countOnly, includeEmptyLots, request);
+    response = controller.getStockCards(facilityId, numEntries, countOnly, includeEmptyLots, null, null, null, null, request);
     openLmisResponse = (OpenLmisResponse)response.getBody();
     stockCards = (List<StockCard>)openLmisResponse.getData().get("stockCards");
     stockCard = stockCards.get(0);
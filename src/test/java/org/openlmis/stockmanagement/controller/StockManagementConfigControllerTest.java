@@ -0,0 +1,59 @@
+package org.openlmis.stockmanagement.controller;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.junit.runner.RunWith;
+import org.junit.runners.BlockJUnit4ClassRunner;
+import org.openlmis.core.web.OpenLmisResponse;
+import org.openlmis.db.categories.UnitTests;
+import org.openlmis.stockmanagement.metrics.InMemoryMetricRegistry;
+import org.openlmis.stockmanagement.metrics.MetricRegistry;
+import org.powermock.modules.junit4.PowerMockRunner;
+import org.powermock.modules.junit4.PowerMockRunnerDelegate;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+
+import java.util.Map;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+
+@Category(UnitTests.class)
+@RunWith(PowerMockRunner.class)
+@PowerMockRunnerDelegate(BlockJUnit4ClassRunner.class)
+public class StockManagementConfigControllerTest {
+
+  private StockManagementConfigController controller;
+
+  @Before
+  public void setup() {
+    controller = new StockManagementConfigController();
+  }
+
+  @Test
+  public void shouldGetMetricsKeptInMemory() {
+    InMemoryMetricRegistry metrics = new InMemoryMetricRegistry();
+    metrics.recordTime("request.latency", 2000);
+    metrics.increment("request.count", 3);
+    metrics.recordValue("request.entries", 5);
+    controller.metrics = metrics;
+
+    ResponseEntity response = controller.getMetrics();
+
+    assertThat(response.getStatusCode(), is(HttpStatus.OK));
+    Map snapshot = (Map) ((OpenLmisResponse) response.getBody()).getData().get("metrics");
+    assertEquals(1L, ((Map) ((Map) snapshot.get("timers")).get("request.latency")).get("count"));
+    assertEquals(3L, ((Map) snapshot.get("counters")).get("request.count"));
+    assertEquals(5L, ((Map) ((Map) snapshot.get("distributions")).get("request.entries")).get("max"));
+  }
+
+  @Test
+  public void shouldNotGetMetricsShippedElsewhere() {
+    controller.metrics = mock(MetricRegistry.class);
+
+    assertThat(controller.getMetrics().getStatusCode(), is(HttpStatus.NOT_FOUND));
+  }
+}
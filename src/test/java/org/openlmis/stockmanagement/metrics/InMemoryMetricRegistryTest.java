@@ -0,0 +1,75 @@
+package org.openlmis.stockmanagement.metrics;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.junit.runners.BlockJUnit4ClassRunner;
+import org.openlmis.db.categories.UnitTests;
+import org.powermock.modules.junit4.PowerMockRunnerDelegate;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+@Category(UnitTests.class)
+@PowerMockRunnerDelegate(BlockJUnit4ClassRunner.class)
+public class InMemoryMetricRegistryTest {
+
+  @Test
+  public void shouldKeepCountTotalAndMaxOfRecordedValues() {
+    InMemoryMetricRegistry registry = new InMemoryMetricRegistry();
+
+    registry.recordValue("entries", 3);
+    registry.recordValue("entries", 7);
+    registry.recordValue("entries", 2);
+
+    MetricStatistics entries = registry.getDistribution("entries");
+    assertEquals(3, entries.getCount());
+    assertEquals(12, entries.getTotal());
+    assertEquals(7, entries.getMax());
+    assertEquals(4.0, entries.getMean(), 0.0);
+  }
+
+  @Test
+  public void shouldBoundPercentilesWithHistogramBuckets() {
+    InMemoryMetricRegistry registry = new InMemoryMetricRegistry();
+
+    for (int i = 1; i <= 100; i++) {
+      registry.recordValue("rows", i);
+    }
+
+    MetricStatistics rows = registry.getDistribution("rows");
+    assertEquals(1, rows.getBuckets()[1]);
+    assertEquals(37, rows.getBuckets()[7]);
+    assertEquals(63, rows.getPercentile(50));
+    assertEquals(100, rows.getPercentile(99));
+  }
+
+  @Test
+  public void shouldAddUpCounterIncrements() {
+    InMemoryMetricRegistry registry = new InMemoryMetricRegistry();
+
+    registry.increment("statements", 1);
+    registry.increment("statements", 2);
+
+    assertEquals(3, registry.getCounter("statements"));
+    assertEquals(0, registry.getCounter("unknown"));
+    assertNull(registry.getTimer("unknown"));
+  }
+
+  @Test
+  public void shouldRecordEachPhaseOnceWhenEnteredSeveralTimes() {
+    InMemoryMetricRegistry registry = new InMemoryMetricRegistry();
+    PhaseTimer timer = new PhaseTimer();
+
+    timer.start("validation");
+    timer.start("resolution");
+    timer.start("validation");
+    timer.record(registry, "events.");
+
+    assertEquals(1, registry.getTimer("events.validation").getCount());
+    assertEquals(1, registry.getTimer("events.resolution").getCount());
+    assertEquals(Arrays.asList("events.resolution", "events.validation"),
+        Arrays.asList(registry.getNames().toArray()));
+  }
+}
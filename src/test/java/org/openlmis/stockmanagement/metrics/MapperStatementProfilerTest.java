@@ -0,0 +1,51 @@
+package org.openlmis.stockmanagement.metrics;
+
+import org.apache.ibatis.mapping.BoundSql;
+import org.apache.ibatis.mapping.ParameterMapping;
+import org.apache.ibatis.session.Configuration;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.junit.runners.BlockJUnit4ClassRunner;
+import org.openlmis.db.categories.UnitTests;
+import org.powermock.modules.junit4.PowerMockRunnerDelegate;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+@Category(UnitTests.class)
+@PowerMockRunnerDelegate(BlockJUnit4ClassRunner.class)
+public class MapperStatementProfilerTest {
+
+  @Test
+  public void shouldNameStatementsOfStockManagementMappers() {
+    assertEquals("StockCardMapper.getEntries", MapperStatementProfiler.statementName(
+        "org.openlmis.stockmanagement.repository.mapper.StockCardMapper.getEntries"));
+    assertEquals("LotMapper.insertLotOnHand", MapperStatementProfiler.statementName(
+        "org.openlmis.stockmanagement.repository.mapper.LotMapper.insertLotOnHand"));
+  }
+
+  @Test
+  public void shouldNotNameStatementsOfOtherMappers() {
+    assertNull(MapperStatementProfiler.statementName("org.openlmis.core.repository.mapper.ProductMapper.getByCode"));
+    assertNull(MapperStatementProfiler.statementName(
+        "org.openlmis.stockmanagement.repository.mapper.StockCardMapperExtra.getEntries"));
+  }
+
+  @Test
+  public void shouldRedactBoundParameterValues() {
+    Configuration configuration = new Configuration();
+    List<ParameterMapping> parameters = new ArrayList<>();
+    parameters.add(new ParameterMapping.Builder(configuration, "facilityId", Object.class).build());
+    for (int i = 0; i < 3; i++) {
+      parameters.add(new ParameterMapping.Builder(configuration, "__frch_stockCardId_" + i, Object.class).build());
+    }
+    parameters.add(new ParameterMapping.Builder(configuration, "entryLimit", Object.class).build());
+    BoundSql boundSql = new BoundSql(configuration, "SELECT 1", parameters, "secret");
+
+    assertEquals("[facilityId=?, stockCardId[]=? x3, entryLimit=?]",
+        MapperStatementProfiler.redactedParameters(boundSql));
+  }
+}
@@ -10,12 +10,16 @@ import org.openlmis.core.builder.ProductBuilder;
 import org.openlmis.core.domain.Product;
 import org.openlmis.db.categories.UnitTests;
 import org.openlmis.stockmanagement.domain.Lot;
+import org.openlmis.stockmanagement.domain.LotOnHand;
+import org.openlmis.stockmanagement.domain.StockCard;
 import org.openlmis.stockmanagement.repository.mapper.LotMapper;
+import org.openlmis.stockmanagement.service.ProductCache;
 
 import java.util.Date;
 
 import static com.natpryce.makeiteasy.MakeItEasy.*;
 import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -26,6 +30,9 @@ public class LotRepositoryTest {
     @Mock
     LotMapper mapper;
 
+    @Mock
+    ProductCache productCache;
+
     LotRepository repository;
 
     private static final Product defaultProduct;
@@ -45,7 +52,7 @@ public class LotRepositoryTest {
         lot.setManufactureDate(new Date());
         lot.setExpirationDate(new Date());
 
-        repository = new LotRepository(mapper);
+        repository = new LotRepository(mapper, productCache);
     }
 
     @Test
@@ -61,11 +68,103 @@ public class LotRepositoryTest {
     @Test
     public void shouldCreateNonExistingLot() {
         when(mapper.getByObject(lot)).thenReturn(null);
+        when(mapper.insertIfAbsent(lot)).thenReturn(5L);
 
         Lot l = repository.getOrCreateLot(lot);
-        verify(mapper).insert(lot);
+        verify(mapper).insertIfAbsent(lot);
+        assertEquals(Long.valueOf(5L), l.getId());
         assertEquals(l.getLotCode(), lot.getLotCode());
         assertEquals(l.getManufacturerName(), lot.getManufacturerName());
         assertEquals(l.getExpirationDate(), lot.getExpirationDate());
     }
+
+    @Test
+    public void shouldGetLotCreatedConcurrently() {
+        Lot concurrentLot = new Lot();
+        concurrentLot.setId(6L);
+        when(mapper.getByObject(lot)).thenReturn(null, concurrentLot);
+        when(mapper.insertIfAbsent(lot)).thenReturn(null);
+
+        Lot l = repository.getOrCreateLot(lot);
+        assertEquals(concurrentLot, l);
+        verify(mapper, times(2)).getByObject(lot);
+    }
+
+    @Test
+    public void shouldReadLotThroughCache() {
+        lot.setId(3L);
+        when(mapper.getByIdWithoutProduct(3L)).thenReturn(lot);
+
+        assertEquals(lot, repository.getLotById(3L));
+        assertEquals(lot, repository.getLotById(3L));
+
+        verify(mapper, times(1)).getByIdWithoutProduct(3L);
+        assertEquals(1L, repository.getLotCacheStats().hitCount());
+        assertEquals(1L, repository.getLotCacheStats().missCount());
+    }
+
+    @Test
+    public void shouldGetProductOfLotFromProductCache() {
+        Lot lotWithProductIdOnly = new Lot();
+        lotWithProductIdOnly.setId(3L);
+        lotWithProductIdOnly.setProduct(make(a(ProductBuilder.defaultProduct, with(ProductBuilder.productId, 1L))));
+        when(mapper.getByIdWithoutProduct(3L)).thenReturn(lotWithProductIdOnly);
+        when(productCache.getById(1L)).thenReturn(defaultProduct);
+
+        assertEquals(defaultProduct, repository.getLotById(3L).getProduct());
+    }
+
+    @Test
+    public void shouldInvalidateCachedLotOnUpdate() {
+        lot.setId(3L);
+        when(mapper.getByIdWithoutProduct(3L)).thenReturn(lot);
+        repository.getLotById(3L);
+
+        repository.updateLot(lot);
+        repository.getLotById(3L);
+
+        verify(mapper).update(lot);
+        verify(mapper, times(2)).getByIdWithoutProduct(3L);
+    }
+
+    @Test
+    public void shouldResolveLotOfLotOnHandFromCache() {
+        lot.setId(3L);
+        Lot lotWithIdOnly = new Lot();
+        lotWithIdOnly.setId(3L);
+        LotOnHand lotOnHand = LotOnHand.createZeroedLotOnHand(lotWithIdOnly, new StockCard());
+        when(mapper.getLotOnHandByStockCardAndLot(1L, 3L)).thenReturn(lotOnHand);
+        when(mapper.getByIdWithoutProduct(3L)).thenReturn(lot);
+
+        assertEquals(lot, repository.getLotOnHandByStockCardAndLot(1L, 3L).getLot());
+        assertEquals(lot, repository.getLotOnHandByStockCardAndLot(1L, 3L).getLot());
+
+        verify(mapper, times(1)).getByIdWithoutProduct(3L);
+    }
+
+    @Test
+    public void shouldGetLotOnHandCreatedConcurrently() {
+        lot.setId(3L);
+        StockCard card = new StockCard();
+        card.setId(1L);
+        LotOnHand newLotOnHand = LotOnHand.createZeroedLotOnHand(lot, card);
+        LotOnHand existingLotOnHand = LotOnHand.createZeroedLotOnHand(lot, card);
+        existingLotOnHand.setId(7L);
+        when(mapper.insertLotOnHandIfAbsent(newLotOnHand)).thenReturn(null);
+        when(mapper.getLotOnHandByStockCardAndLot(1L, 3L)).thenReturn(existingLotOnHand);
+        when(mapper.getByIdWithoutProduct(3L)).thenReturn(lot);
+
+        assertEquals(Long.valueOf(7L), repository.getOrCreateLotOnHand(newLotOnHand).getId());
+    }
+
+    @Test
+    public void shouldRefreshQuantityOnHandFromDatabase() {
+        LotOnHand lotOnHand = LotOnHand.createZeroedLotOnHand(lot, new StockCard());
+        lotOnHand.setId(1L);
+        when(mapper.addToQuantityOnHand(1L, -5L, 2L)).thenReturn(20L);
+
+        repository.addToQuantityOnHand(lotOnHand, -5L, 2L);
+
+        assertEquals(Long.valueOf(20L), lotOnHand.getQuantityOnHand());
+    }
 }
@@ -4,6 +4,7 @@ import org.junit.Test;
 import org.junit.experimental.categories.Category;
 import org.junit.runner.RunWith;
 import org.junit.runners.BlockJUnit4ClassRunner;
+import org.mockito.ArgumentCaptor;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.openlmis.core.builder.FacilityBuilder;
@@ -11,17 +12,39 @@ import org.openlmis.core.builder.ProductBuilder;
 import org.openlmis.core.domain.Facility;
 import org.openlmis.core.domain.Product;
 import org.openlmis.core.repository.FacilityRepository;
-import org.openlmis.core.repository.ProductRepository;
 import org.openlmis.db.categories.UnitTests;
 import org.openlmis.stockmanagement.domain.StockCard;
+import org.openlmis.stockmanagement.domain.StockCardEntry;
+import org.openlmis.stockmanagement.domain.StockCardEntryKVRow;
+import org.openlmis.stockmanagement.domain.StockCardEntryOrder;
+import org.openlmis.stockmanagement.domain.StockCardEntryType;
+import org.openlmis.stockmanagement.domain.StockCardSummaryRow;
+import org.openlmis.stockmanagement.domain.StockOnHandAggregateRow;
+import org.openlmis.stockmanagement.dto.StockCardChanges;
+import org.openlmis.stockmanagement.dto.StockCardSummary;
+import org.openlmis.stockmanagement.dto.StockOnHandAggregate;
 import org.openlmis.stockmanagement.repository.mapper.StockCardMapper;
+import org.openlmis.stockmanagement.service.ProductCache;
 import org.powermock.modules.junit4.PowerMockRunner;
 import org.powermock.modules.junit4.PowerMockRunnerDelegate;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
 import static com.natpryce.makeiteasy.MakeItEasy.*;
 import static org.hamcrest.CoreMatchers.is;
 import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.reset;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.when;
 
 @Category(UnitTests.class)
@@ -36,7 +59,7 @@ public class StockCardRepositoryTest {
   private FacilityRepository facilityRepository;
 
   @Mock
-  private ProductRepository productRepository;
+  private ProductCache productCache;
 
   private static final Facility defaultFacility;
   private static final Product defaultProduct;
@@ -52,23 +75,266 @@ public class StockCardRepositoryTest {
 
 
   @Test
-  public void shouldGetStockCardIfItExists() {
-    StockCard dummyCard = StockCard.createZeroedStockCard(defaultFacility, defaultProduct);
-    when(mapper.getByFacilityAndProduct(defaultFacility.getId(), defaultProduct.getCode())).thenReturn(dummyCard);
+  public void shouldLoadStockCardsWithSameNumberOfQueriesRegardlessOfStockCardCount() {
+    assertStockCardsLoadedWithFixedNumberOfQueries(1);
+    assertStockCardsLoadedWithFixedNumberOfQueries(300);
+  }
+
+  private void assertStockCardsLoadedWithFixedNumberOfQueries(int cardCount) {
+    reset(mapper);
+    Product product = make(a(ProductBuilder.defaultProduct, with(ProductBuilder.productId, 1L)));
+    List<StockCard> cards = new ArrayList<>();
+    List<StockCardEntry> entries = new ArrayList<>();
+    List<StockCardEntryKVRow> keyValues = new ArrayList<>();
+    for (long id = 1; id <= cardCount; id++) {
+      StockCard card = new StockCard();
+      card.setId(id);
+      card.setProduct(product);
+      cards.add(card);
+
+      StockCard entryCard = new StockCard();
+      entryCard.setId(id);
+      StockCardEntry entry = new StockCardEntry(entryCard, StockCardEntryType.CREDIT, 1L, null, null);
+      entry.setId(id);
+      entries.add(entry);
 
-    StockCard stockCard = stockCardRepository.getOrCreateStockCard(defaultFacility.getId(), defaultProduct.getCode());
-    assertThat(stockCard, is(dummyCard));
+      StockCardEntryKVRow kv = new StockCardEntryKVRow();
+      kv.setStockCardEntryId(id);
+      kv.setStockCardId(id);
+      kv.setKeyColumn("vvmstatus");
+      kv.setValueColumn("1");
+      kv.setSyncedDate(new Date());
+      keyValues.add(kv);
+    }
+    when(mapper.getAllByFacilityWithoutDetails(defaultFacility.getId(), null, null)).thenReturn(cards);
+    when(mapper.getProductsForStockCards(anyListOf(Long.class))).thenReturn(Collections.singletonList(product));
+    when(mapper.getEntriesForStockCards(anyListOf(Long.class), eq(1), eq(StockCardEntryOrder.RECORDED))).thenReturn(entries);
+    when(mapper.getLatestKeyValuesForStockCards(anyListOf(Long.class))).thenReturn(keyValues);
+    when(mapper.getKeyValuesForEntries(anyListOf(Long.class))).thenReturn(keyValues);
+
+    List<StockCard> stockCards = stockCardRepository.getStockCards(defaultFacility.getId(), null, null, 1,
+        StockCardEntryOrder.RECORDED);
+
+    assertThat(stockCards.size(), is(cardCount));
+    StockCard last = stockCards.get(cardCount - 1);
+    assertThat(last.getEntries().size(), is(1));
+    assertThat(last.getEntries().get(0).getCustomProps().get("vvmstatus"), is("1"));
+    assertThat(last.getCustomProps().get("vvmstatus"), is("1"));
+    verify(mapper).getAllByFacilityWithoutDetails(defaultFacility.getId(), null, null);
+    verify(mapper).getProductsForStockCards(anyListOf(Long.class));
+    verify(mapper).getEntriesForStockCards(anyListOf(Long.class), eq(1), eq(StockCardEntryOrder.RECORDED));
+    verify(mapper).getLatestKeyValuesForStockCards(anyListOf(Long.class));
+    verify(mapper).getLatestKeyValuesForLotsOnHand(anyListOf(Long.class));
+    verify(mapper).getKeyValuesForEntries(anyListOf(Long.class));
+    verify(mapper).getLotsOnHandForStockCards(anyListOf(Long.class));
+    verifyNoMoreInteractions(mapper);
   }
 
   @Test
-  public void shouldCreateStockCardIfItDoesNotExist() {
-    when(mapper.getByFacilityAndProduct(defaultFacility.getId(), defaultProduct.getCode())).thenReturn(null);
+  public void shouldPersistStockCardEntriesWithMultiRowInserts() {
+    StockCard card = StockCard.createZeroedStockCard(defaultFacility, defaultProduct);
+    StockCardEntry withKeyValues = new StockCardEntry(card, StockCardEntryType.CREDIT, 1L, null, null);
+    withKeyValues.addKeyValue("vvmStatus", "1");
+    StockCardEntry withoutKeyValues = new StockCardEntry(card, StockCardEntryType.CREDIT, 2L, null, null);
+    when(mapper.getNextEntryIds(2)).thenReturn(Arrays.asList(10L, 11L));
+
+    stockCardRepository.persistStockCardEntries(Arrays.asList(withKeyValues, withoutKeyValues));
+
+    assertThat(withKeyValues.getId(), is(10L));
+    assertThat(withoutKeyValues.getId(), is(11L));
+    verify(mapper).insertEntries(Arrays.asList(withKeyValues, withoutKeyValues));
+    verify(mapper).insertEntriesKeyValues(Collections.singletonList(withKeyValues));
+  }
+
+  @Test
+  public void shouldAssignEntryIdsInAscendingOrder() {
+    StockCard card = StockCard.createZeroedStockCard(defaultFacility, defaultProduct);
+    StockCardEntry first = new StockCardEntry(card, StockCardEntryType.CREDIT, 1L, null, null);
+    StockCardEntry second = new StockCardEntry(card, StockCardEntryType.CREDIT, 2L, null, null);
+    when(mapper.getNextEntryIds(2)).thenReturn(Arrays.asList(11L, 10L));
+
+    stockCardRepository.persistStockCardEntries(Arrays.asList(first, second));
+
+    assertThat(first.getId(), is(10L));
+    assertThat(second.getId(), is(11L));
+  }
+
+  @Test
+  public void shouldUpdateLatestKeyValuesOncePerCardAndKey() {
+    StockCard card = StockCard.createZeroedStockCard(defaultFacility, defaultProduct);
+    card.setId(1L);
+    StockCardEntry older = new StockCardEntry(card, StockCardEntryType.CREDIT, 1L, null, null);
+    older.addKeyValue("vvmStatus", "1");
+    StockCardEntry newer = new StockCardEntry(card, StockCardEntryType.CREDIT, 1L, null, null);
+    newer.addKeyValue("VVMSTATUS", "2");
+    when(mapper.getNextEntryIds(2)).thenReturn(Arrays.asList(10L, 11L));
+
+    stockCardRepository.persistStockCardEntries(Arrays.asList(older, newer));
+
+    ArgumentCaptor<List> captor = ArgumentCaptor.forClass(List.class);
+    verify(mapper).upsertStockCardKeyValuesLatest(captor.capture());
+    List<StockCardEntryKVRow> rows = captor.getValue();
+    assertThat(rows.size(), is(1));
+    assertThat(rows.get(0).getStockCardId(), is(1L));
+    assertThat(rows.get(0).getKeyColumn(), is("vvmstatus"));
+    assertThat(rows.get(0).getValueColumn(), is("2"));
+    verify(mapper, never()).upsertLotOnHandKeyValuesLatest(anyListOf(StockCardEntryKVRow.class));
+  }
+
+  @Test
+  public void shouldRefreshTotalQuantityOnHandFromDatabase() {
+    StockCard card = StockCard.createZeroedStockCard(defaultFacility, defaultProduct);
+    card.setId(1L);
+    when(mapper.addToTotalQuantityOnHand(1L, 5L, 2L)).thenReturn(15L);
+
+    stockCardRepository.addToTotalQuantityOnHand(card, 5L, 2L);
+
+    assertThat(card.getTotalQuantityOnHand(), is(15L));
+  }
+
+  @Test
+  public void shouldGetExistingAndCreateMissingStockCardsInBulk() {
+    Product missingProduct = make(a(ProductBuilder.defaultProduct, with(ProductBuilder.code, "MISSING")));
+    StockCard existingCard = StockCard.createZeroedStockCard(defaultFacility, defaultProduct);
+    List<String> productCodes = Arrays.asList(defaultProduct.getCode(), missingProduct.getCode());
+    when(mapper.getByFacilityAndProductCodesWithoutDetails(defaultFacility.getId(), productCodes))
+        .thenReturn(Collections.singletonList(existingCard));
     when(facilityRepository.getById(defaultFacility.getId())).thenReturn(defaultFacility);
-    when(productRepository.getByCode(defaultProduct.getCode())).thenReturn(defaultProduct);
+    when(productCache.getByCode(missingProduct.getCode())).thenReturn(missingProduct);
+    when(mapper.insertIfAbsent(any(StockCard.class))).thenReturn(4L);
+
+    Map<String, StockCard> cards = stockCardRepository.getOrCreateStockCards(defaultFacility.getId(), productCodes);
+
+    assertThat(cards.get(defaultProduct.getCode()), is(existingCard));
+    StockCard createdCard = cards.get(missingProduct.getCode());
+    assertThat(createdCard.getProduct(), is(missingProduct));
+    assertThat(createdCard.getId(), is(4L));
+    verify(mapper).insertIfAbsent(createdCard);
+    verify(mapper, never()).insertIfAbsent(existingCard);
+  }
+
+  @Test
+  public void shouldGetStockCardsCreatedConcurrently() {
+    StockCard concurrentCard = StockCard.createZeroedStockCard(defaultFacility, defaultProduct);
+    List<String> productCodes = Collections.singletonList(defaultProduct.getCode());
+    when(mapper.getByFacilityAndProductCodesWithoutDetails(defaultFacility.getId(), productCodes))
+        .thenReturn(Collections.<StockCard>emptyList(), Collections.singletonList(concurrentCard));
+    when(facilityRepository.getById(defaultFacility.getId())).thenReturn(defaultFacility);
+    when(productCache.getByCode(defaultProduct.getCode())).thenReturn(defaultProduct);
+    when(mapper.insertIfAbsent(any(StockCard.class))).thenReturn(null);
+
+    Map<String, StockCard> cards = stockCardRepository.getOrCreateStockCards(defaultFacility.getId(), productCodes);
+
+    assertThat(cards.get(defaultProduct.getCode()), is(concurrentCard));
+  }
+
+  @Test
+  public void shouldGetChangesOfChangedStockCardsBelowWatermark() {
+    StockCard card = StockCard.createZeroedStockCard(defaultFacility, defaultProduct);
+    card.setId(3L);
+    StockCardEntry entry = new StockCardEntry(card, StockCardEntryType.CREDIT, 1L, null, null);
+    entry.setId(7L);
+    StockCardEntryKVRow kv = new StockCardEntryKVRow();
+    kv.setStockCardEntryId(7L);
+    kv.setKeyColumn("vvmstatus");
+    kv.setValueColumn("1");
+    kv.setSyncedDate(new Date());
+    when(mapper.getChangeWatermark()).thenReturn(120L);
+    when(mapper.getChangedStockCards(1L, 2L, "VIEW_STOCK_ON_HAND", 100L, 120L))
+        .thenReturn(Collections.singletonList(card));
+    when(mapper.getChangedEntries(Collections.singletonList(3L), 100L, 120L))
+        .thenReturn(Collections.singletonList(entry));
+    when(mapper.getKeyValuesForEntries(Collections.singletonList(7L))).thenReturn(Collections.singletonList(kv));
+
+    StockCardChanges changes = stockCardRepository.getChanges(1L, 2L, "VIEW_STOCK_ON_HAND", 100L);
+
+    assertThat(changes.getWatermark(), is(120L));
+    assertThat(changes.getStockCards(), is(Collections.singletonList(card)));
+    assertThat(changes.getEntries(), is(Collections.singletonList(entry)));
+    assertThat(entry.getCustomProps().get("vvmstatus"), is("1"));
+    verify(mapper).getChangedLotsOnHand(Collections.singletonList(3L), 100L, 120L);
+  }
+
+  @Test
+  public void shouldNotReadLotsOrEntriesWithoutChangedStockCards() {
+    when(mapper.getChangeWatermark()).thenReturn(120L);
+    when(mapper.getChangedStockCards(1L, null, null, null, 120L)).thenReturn(new ArrayList<StockCard>());
+
+    StockCardChanges changes = stockCardRepository.getChanges(1L, null, null, null);
+
+    assertThat(changes.getWatermark(), is(120L));
+    assertThat(changes.getEntries().size(), is(0));
+    verify(mapper).getChangeWatermark();
+    verify(mapper).getChangedStockCards(1L, null, null, null, 120L);
+    verifyNoMoreInteractions(mapper);
+  }
+
+  @Test
+  public void shouldGroupSummaryRowsByStockCard() {
+    when(mapper.getStockCardSummaries(1L, 2L, "VIEW_STOCK_ON_HAND", false)).thenReturn(Arrays.asList(
+        summaryRow(3L, "P1", 30L, "LOT-A", 10L),
+        summaryRow(3L, "P1", 30L, "LOT-B", 20L),
+        summaryRow(4L, "P2", 5L, null, null)));
+
+    List<StockCardSummary> summaries = stockCardRepository.getStockCardSummaries(1L, 2L, "VIEW_STOCK_ON_HAND",
+        false);
+
+    assertThat(summaries.size(), is(2));
+    assertThat(summaries.get(0).getProductCode(), is("P1"));
+    assertThat(summaries.get(0).getStockOnHand(), is(30L));
+    assertThat(summaries.get(0).getLots().size(), is(2));
+    assertThat(summaries.get(0).getLots().get(1).getLotCode(), is("LOT-B"));
+    assertThat(summaries.get(0).getLots().get(1).getStockOnHand(), is(20L));
+    assertThat(summaries.get(1).getProductCode(), is("P2"));
+    assertThat(summaries.get(1).getLots().size(), is(0));
+  }
+
+  @Test
+  public void shouldGroupStockOnHandAggregateRowsByProduct() {
+    List<Long> facilityIds = Arrays.asList(1L, 2L);
+    when(mapper.getStockOnHandAggregates(facilityIds, null, 3L, "VIEW_STOCK_ON_HAND")).thenReturn(Arrays.asList(
+        aggregateRow("P1", StockOnHandAggregateRow.LOT, null, "LOT-A", null, 25L),
+        aggregateRow("P1", StockOnHandAggregateRow.PRODUCT, null, null, 40L, null),
+        aggregateRow("P1", StockOnHandAggregateRow.FACILITY, 1L, null, 30L, null),
+        aggregateRow("P1", StockOnHandAggregateRow.FACILITY, 2L, null, 10L, null),
+        aggregateRow("P2", StockOnHandAggregateRow.PRODUCT, null, null, 5L, null),
+        aggregateRow("P2", StockOnHandAggregateRow.FACILITY, 2L, null, 5L, null)));
+
+    List<StockOnHandAggregate> aggregates = stockCardRepository.getStockOnHandAggregates(facilityIds, null, 3L,
+        "VIEW_STOCK_ON_HAND");
+
+    assertThat(aggregates.size(), is(2));
+    assertThat(aggregates.get(0).getProductCode(), is("P1"));
+    assertThat(aggregates.get(0).getStockOnHand(), is(40L));
+    assertThat(aggregates.get(0).getFacilities().size(), is(2));
+    assertThat(aggregates.get(0).getFacilities().get(1).getFacilityId(), is(2L));
+    assertThat(aggregates.get(0).getFacilities().get(1).getStockOnHand(), is(10L));
+    assertThat(aggregates.get(0).getLots().get(0).getStockOnHand(), is(25L));
+    assertThat(aggregates.get(1).getStockOnHand(), is(5L));
+    assertThat(aggregates.get(1).getLots().size(), is(0));
+  }
+
+  private static StockOnHandAggregateRow aggregateRow(String productCode, String level, Long facilityId,
+                                                      String lotCode, Long totalQuantityOnHand,
+                                                      Long lotQuantityOnHand) {
+    StockOnHandAggregateRow row = new StockOnHandAggregateRow();
+    row.setProductCode(productCode);
+    row.setLevel(level);
+    row.setFacilityId(facilityId);
+    row.setLotCode(lotCode);
+    row.setTotalQuantityOnHand(totalQuantityOnHand);
+    row.setLotQuantityOnHand(lotQuantityOnHand);
+    return row;
+  }
 
-    StockCard stockCard = stockCardRepository.getOrCreateStockCard(defaultFacility.getId(), defaultProduct.getCode());
-    verify(mapper).insert(stockCard);
-    assertThat(stockCard.getFacility(), is(defaultFacility));
-    assertThat(stockCard.getProduct(), is(defaultProduct));
+  private static StockCardSummaryRow summaryRow(Long stockCardId, String productCode, Long totalQuantityOnHand,
+                                                String lotCode, Long lotQuantityOnHand) {
+    StockCardSummaryRow row = new StockCardSummaryRow();
+    row.setStockCardId(stockCardId);
+    row.setProductCode(productCode);
+    row.setTotalQuantityOnHand(totalQuantityOnHand);
+    row.setLotCode(lotCode);
+    row.setLotQuantityOnHand(lotQuantityOnHand);
+    return row;
   }
-}
\ No newline at end of file
+}
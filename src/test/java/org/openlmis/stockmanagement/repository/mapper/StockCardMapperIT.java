@@ -24,17 +24,26 @@ import org.openlmis.core.repository.mapper.ProductMapper;
 import org.openlmis.core.utils.DateUtil;
 import org.openlmis.db.categories.IntegrationTests;
 import org.openlmis.stockmanagement.domain.StockCard;
+import org.openlmis.stockmanagement.domain.StockCardBalanceRow;
 import org.openlmis.stockmanagement.domain.StockCardEntry;
 import org.openlmis.stockmanagement.domain.StockCardEntryKV;
+import org.openlmis.stockmanagement.domain.StockCardEntryKVRow;
+import org.openlmis.stockmanagement.domain.StockCardEntryOrder;
 import org.openlmis.stockmanagement.domain.StockCardEntryType;
+import org.openlmis.stockmanagement.domain.StockCardSummaryRow;
+import org.openlmis.stockmanagement.domain.StockOnHandAggregateRow;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 import org.springframework.test.context.transaction.TransactionConfiguration;
 import org.springframework.transaction.annotation.Transactional;
 
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 
@@ -114,8 +123,10 @@ public class StockCardMapperIT {
     StockCardEntry entry = new StockCardEntry(defaultCard, StockCardEntryType.CREDIT, 1L, null, null);
     mapper.insertEntry(entry);
 
-    StockCard stockCard = mapper.getByFacilityAndProduct(defaultFacility.getId(), defaultProduct.getCode());
-    assertThat(stockCard.getProduct().getCode(), is(defaultProduct.getCode()));
+    StockCard stockCard = mapper.getByFacilityAndProductWithoutDetails(defaultFacility.getId(),
+        defaultProduct.getCode());
+    assertThat(stockCard.getId(), is(defaultCard.getId()));
+    assertThat(stockCard.getProduct().getId(), is(defaultProduct.getId()));
     assertThat(stockCard.getFacility().getId(), is(defaultFacility.getId()));
   }
 
@@ -141,10 +152,336 @@ public class StockCardMapperIT {
     assertThat(entries.get(0).getReferenceNumber(), is(referenceNumber));
   }
 
+  @Test
+  public void shouldGetStockCardGraphForFacilityWithSetBasedQueries() {
+    StockCardEntry entry = new StockCardEntry(defaultCard, StockCardEntryType.CREDIT, 1L, null, null);
+    mapper.insertEntry(entry);
+    mapper.insertEntryKeyValue(entry, "vvmstatus", "1");
+
+    List<StockCard> cards = mapper.getAllByFacilityWithoutDetails(defaultFacility.getId(), null, null);
+    assertThat(cards.size(), is(1));
+    assertThat(cards.get(0).getProduct().getId(), is(defaultProduct.getId()));
+
+    List<Long> stockCardIds = Collections.singletonList(defaultCard.getId());
+    List<Product> products = mapper.getProductsForStockCards(stockCardIds);
+    assertThat(products.size(), is(1));
+    assertThat(products.get(0).getCode(), is(defaultProduct.getCode()));
+
+    List<StockCardEntry> entries = mapper.getEntriesForStockCards(stockCardIds, null, StockCardEntryOrder.RECORDED);
+    assertThat(entries.size(), is(1));
+    assertThat(entries.get(0).getStockCard().getId(), is(defaultCard.getId()));
+
+    List<StockCardEntryKVRow> keyValues = mapper.getKeyValuesForEntries(Collections.singletonList(entry.getId()));
+    assertThat(keyValues.size(), is(1));
+    assertThat(keyValues.get(0).getStockCardEntryId(), is(entry.getId()));
+    assertThat(keyValues.get(0).getValueColumn(), is("1"));
+  }
+
+  @Test
+  public void shouldGetOnlyNewestEntriesWhenLimited() throws SQLException {
+    StockCardEntry older = new StockCardEntry(defaultCard, StockCardEntryType.CREDIT, 1L, null, "older");
+    StockCardEntry newer = new StockCardEntry(defaultCard, StockCardEntryType.CREDIT, 1L, null, "newer");
+    mapper.insertEntry(older);
+    mapper.insertEntry(newer);
+    queryExecutor.executeUpdate("UPDATE stock_card_entries SET createddate = ? WHERE id = ?",
+        new Timestamp(DateUtil.parseDate("2015-11-11 11:11:11").getTime()), older.getId());
+
+    List<Long> stockCardIds = Collections.singletonList(defaultCard.getId());
+    List<StockCardEntry> entries = mapper.getEntriesForStockCards(stockCardIds, 1, StockCardEntryOrder.RECORDED);
+
+    assertThat(entries.size(), is(1));
+    assertThat(entries.get(0).getReferenceNumber(), is("newer"));
+    assertThat(mapper.getEntriesForStockCards(stockCardIds, null, StockCardEntryOrder.RECORDED).size(), is(2));
+  }
+
+  @Test
+  public void shouldOrderEntriesByOccurredDate() {
+    // recorded in the opposite order of the days they occurred, and one without an occurred date
+    StockCardEntry latest = new StockCardEntry(defaultCard, StockCardEntryType.CREDIT, 1L,
+        DateUtil.parseDate("2016-03-01 00:00:00"), "latest");
+    StockCardEntry earliest = new StockCardEntry(defaultCard, StockCardEntryType.CREDIT, 1L,
+        DateUtil.parseDate("2016-01-01 00:00:00"), "earliest");
+    StockCardEntry undated = new StockCardEntry(defaultCard, StockCardEntryType.CREDIT, 1L, null, "undated");
+    mapper.insertEntry(latest);
+    mapper.insertEntry(earliest);
+    mapper.insertEntry(undated);
+    List<Long> stockCardIds = Collections.singletonList(defaultCard.getId());
+
+    List<StockCardEntry> entries = mapper.getEntriesForStockCards(stockCardIds, null, StockCardEntryOrder.OCCURRED);
+    assertThat(referenceNumbers(entries), is(Arrays.asList("undated", "latest", "earliest")));
+
+    entries = mapper.getEntriesForStockCards(stockCardIds, 2, StockCardEntryOrder.OCCURRED);
+    assertThat(referenceNumbers(entries), is(Arrays.asList("undated", "latest")));
+
+    entries = mapper.getEntriesForStockCards(stockCardIds, null, StockCardEntryOrder.RECORDED);
+    assertThat(referenceNumbers(entries), is(Arrays.asList("undated", "earliest", "latest")));
+
+    entries = mapper.getEntriesPage(defaultFacility.getId(), defaultCard.getId(), latest.getId(), 10,
+        StockCardEntryOrder.OCCURRED);
+    assertThat(referenceNumbers(entries), is(Arrays.asList("earliest")));
+  }
+
+  @Test
+  public void shouldReadNewestEntriesInIndexOrder() throws SQLException {
+    for (int i = 0; i < 20; i++) {
+      mapper.insertEntry(new StockCardEntry(defaultCard, StockCardEntryType.CREDIT, 1L, null, null));
+    }
+    // the planner would rather scan a table this small, whatever its indexes
+    queryExecutor.executeUpdate("SET LOCAL enable_seqscan = off");
+    queryExecutor.executeUpdate("SET LOCAL enable_bitmapscan = off");
+
+    // the newest entries of one stock card, as read for each stock card by getEntriesForStockCards
+    String occurredPlan = explain("SELECT * FROM stock_card_entries sce" +
+        " WHERE sce.stockcardid = " + defaultCard.getId() +
+        " ORDER BY COALESCE(sce.occurred, sce.createddate::date) DESC, sce.id DESC LIMIT 5");
+    assertThat(occurredPlan.contains("Index Scan using i_stock_card_entries_stockcard_occurred"), is(true));
+    assertThat(occurredPlan.contains("Sort"), is(false));
+
+    String recordedPlan = explain("SELECT * FROM stock_card_entries sce" +
+        " WHERE sce.stockcardid = " + defaultCard.getId() +
+        " ORDER BY sce.createddate DESC, sce.id DESC LIMIT 5");
+    assertThat(recordedPlan.contains("Index Scan using i_stock_card_entries_stockcard_recorded"), is(true));
+    assertThat(recordedPlan.contains("Sort"), is(false));
+  }
+
+  @Test
+  public void shouldGetStockDataChangedByTransaction() throws SQLException {
+    StockCardEntry entry = new StockCardEntry(defaultCard, StockCardEntryType.CREDIT, 1L, null, null);
+    mapper.insertEntry(entry);
+    long txid = currentTxid();
+    List<Long> stockCardIds = Collections.singletonList(defaultCard.getId());
+
+    List<StockCard> cards = mapper.getChangedStockCards(defaultFacility.getId(), null, null, txid, txid + 1);
+    assertThat(cards.size(), is(1));
+    assertThat(cards.get(0).getProduct().getCode(), is(defaultProduct.getCode()));
+    List<StockCardEntry> entries = mapper.getChangedEntries(stockCardIds, txid, txid + 1);
+    assertThat(entries.size(), is(1));
+    assertThat(entries.get(0).getId(), is(entry.getId()));
+
+    assertThat(mapper.getChangedStockCards(defaultFacility.getId(), null, null, txid + 1, txid + 2).size(), is(0));
+    assertThat(mapper.getChangedEntries(stockCardIds, null, txid).size(), is(0));
+    // this transaction is still running, so the watermark does not pass its changes yet
+    assertThat(mapper.getChangeWatermark() <= txid, is(true));
+  }
+
+  @Test
+  public void shouldAddToTotalQuantityOnHandInDatabase() {
+    assertThat(mapper.addToTotalQuantityOnHand(defaultCard.getId(), 5L, null), is(5L));
+    assertThat(mapper.addToTotalQuantityOnHand(defaultCard.getId(), 5L, null), is(10L));
+    assertThat(mapper.addToTotalQuantityOnHand(defaultCard.getId(), -3L, null), is(7L));
+  }
+
+  @Test
+  public void shouldFilterStockCardsByRightInDatabase() {
+    Long userWithoutRights = -1L;
+
+    assertThat(mapper.countByFacility(defaultFacility.getId(), null, null), is(1));
+    assertThat(mapper.countByFacility(defaultFacility.getId(), userWithoutRights, "VIEW_STOCK_ON_HAND"), is(0));
+    assertThat(mapper.getAllByFacilityWithoutDetails(defaultFacility.getId(), userWithoutRights,
+        "VIEW_STOCK_ON_HAND").size(), is(0));
+    assertThat(mapper.getProductCodesWithRight(userWithoutRights, defaultFacility.getId(),
+        "VIEW_STOCK_ON_HAND").size(), is(0));
+  }
+
+  @Test
+  public void shouldFilterStockCardsByHomeFacilityRoleForProductProgram() throws SQLException {
+    long programId = insertProgramOfProduct("P1", defaultProduct.getId());
+    long userId = insertUser("home-user", defaultFacility.getId());
+    assignRole(userId, "VIEW_STOCK_ON_HAND", programId, null);
+
+    assertThat(mapper.countByFacility(defaultFacility.getId(), userId, "VIEW_STOCK_ON_HAND"), is(1));
+    assertThat(mapper.getProductCodesWithRight(userId, defaultFacility.getId(), "VIEW_STOCK_ON_HAND"),
+        is(Collections.singletonList(defaultProduct.getCode())));
+    assertThat(mapper.countByFacility(defaultFacility.getId(), userId, "MANAGE_STOCK"), is(0));
+
+    long otherUserId = insertUser("other-home-user", insertFacility("F-OTHER"));
+    assignRole(otherUserId, "VIEW_STOCK_ON_HAND", programId, null);
+    assertThat(mapper.countByFacility(defaultFacility.getId(), otherUserId, "VIEW_STOCK_ON_HAND"), is(0));
+  }
+
+  @Test
+  public void shouldFilterStockCardsBySupervisoryNodeHierarchyForScheduledProgram() throws SQLException {
+    long programId = insertProgramOfProduct("P1", defaultProduct.getId());
+    long parentNodeId = insertSupervisoryNode("SN-PARENT", null);
+    long nodeId = insertSupervisoryNode("SN-CHILD", parentNodeId);
+    long requisitionGroupId = insertRequisitionGroup("RG1", nodeId, defaultFacility.getId());
+    long userId = insertUser("supervisor", null);
+    assignRole(userId, "VIEW_STOCK_ON_HAND", programId, parentNodeId);
+    List<Long> facilityIds = Collections.singletonList(defaultFacility.getId());
+
+    // the requisition group has no schedule for the program, so it does not supervise the facility for it
+    assertThat(mapper.countByFacility(defaultFacility.getId(), userId, "VIEW_STOCK_ON_HAND"), is(0));
+    assertThat(mapper.getStockOnHandAggregates(facilityIds, null, userId, "VIEW_STOCK_ON_HAND").size(), is(0));
+
+    scheduleProgram(requisitionGroupId, programId);
+
+    assertThat(mapper.countByFacility(defaultFacility.getId(), userId, "VIEW_STOCK_ON_HAND"), is(1));
+    assertThat(mapper.getStockCardSummaries(defaultFacility.getId(), userId, "VIEW_STOCK_ON_HAND", false).size(),
+        is(1));
+    assertThat(mapper.getStockOnHandAggregates(facilityIds, null, userId, "VIEW_STOCK_ON_HAND").size(), is(2));
+
+    // a role on a node below the supervising node gives no right
+    long childUserId = insertUser("child-supervisor", null);
+    assignRole(childUserId, "VIEW_STOCK_ON_HAND", programId, insertSupervisoryNode("SN-GRANDCHILD", nodeId));
+    assertThat(mapper.countByFacility(defaultFacility.getId(), childUserId, "VIEW_STOCK_ON_HAND"), is(0));
+  }
+
+  @Test
+  public void shouldWalkStockCardsAndEntriesWithKeysets() {
+    Product otherProduct = make(a(ProductBuilder.defaultProduct, with(code, "P_OTHER")));
+    productMapper.insert(otherProduct);
+    StockCard otherCard = StockCard.createZeroedStockCard(defaultFacility, otherProduct);
+    mapper.insert(otherCard);
+
+    List<StockCard> firstPage = mapper.getPageByFacilityWithoutDetails(defaultFacility.getId(), null, null, null, 1);
+    assertThat(firstPage.size(), is(1));
+    assertThat(firstPage.get(0).getId(), is(defaultCard.getId()));
+    List<StockCard> secondPage = mapper.getPageByFacilityWithoutDetails(defaultFacility.getId(), null, null,
+        defaultCard.getId(), 1);
+    assertThat(secondPage.size(), is(1));
+    assertThat(secondPage.get(0).getId(), is(otherCard.getId()));
+
+    StockCardEntry older = new StockCardEntry(defaultCard, StockCardEntryType.CREDIT, 1L, null, "older");
+    StockCardEntry newer = new StockCardEntry(defaultCard, StockCardEntryType.CREDIT, 1L, null, "newer");
+    mapper.insertEntry(older);
+    mapper.insertEntry(newer);
+    mapper.insertEntryKeyValue(older, "vvmstatus", "2");
+
+    List<StockCardEntry> entries = mapper.getEntriesPage(defaultFacility.getId(), defaultCard.getId(), null, 1,
+        StockCardEntryOrder.RECORDED);
+    assertThat(entries.size(), is(1));
+    assertThat(entries.get(0).getReferenceNumber(), is("newer"));
+    entries = mapper.getEntriesPage(defaultFacility.getId(), defaultCard.getId(), newer.getId(), 1,
+        StockCardEntryOrder.RECORDED);
+    assertThat(entries.size(), is(1));
+    assertThat(entries.get(0).getReferenceNumber(), is("older"));
+    assertThat(mapper.getEntriesPage(-1L, defaultCard.getId(), null, 10, StockCardEntryOrder.RECORDED).size(), is(0));
+
+    List<StockCardEntryKVRow> keyValues = mapper.getKeyValuesForEntries(Collections.singletonList(older.getId()));
+    assertThat(keyValues.size(), is(1));
+    assertThat(keyValues.get(0).getStockCardEntryId(), is(older.getId()));
+  }
+
+  @Test
+  public void shouldKeepOnlyLatestValuePerStockCardKey() {
+    mapper.upsertStockCardKeyValuesLatest(Collections.singletonList(latestKeyValue("vvmStatus", "1")));
+    mapper.upsertStockCardKeyValuesLatest(Collections.singletonList(latestKeyValue("vvmstatus", "2")));
+    mapper.upsertStockCardKeyValuesLatest(Collections.singletonList(latestKeyValue("expiration", "2016-01")));
+
+    List<StockCardEntryKVRow> keyValues = mapper.getLatestKeyValuesForStockCards(
+        Collections.singletonList(defaultCard.getId()));
+    assertThat(keyValues.size(), is(2));
+    List<StockCardEntryKV> cardKeyValues = mapper.getStockCardKeyValues(defaultCard.getId());
+    assertThat(cardKeyValues.size(), is(2));
+    for (StockCardEntryKV kv : cardKeyValues) {
+      if (kv.getKeyColumn().equals("vvmstatus")) {
+        assertEquals("2", kv.getValueColumn());
+      }
+    }
+  }
+
+  private StockCardEntryKVRow latestKeyValue(String key, String value) {
+    StockCardEntryKVRow row = new StockCardEntryKVRow();
+    row.setStockCardId(defaultCard.getId());
+    row.setKeyColumn(key);
+    row.setValueColumn(value);
+    return row;
+  }
+
   private void updateModifiedDateForStockCard(Timestamp modifiedDate, Long stockCardId) throws SQLException {
     queryExecutor.executeUpdate("UPDATE stock_cards SET modifieddate = ? WHERE id = ?", modifiedDate, stockCardId);
   }
 
+  @Test
+  public void shouldGetStockCardSummariesWithoutReadingEntries() {
+    for (int i = 0; i < 3; i++) {
+      mapper.insertEntry(new StockCardEntry(defaultCard, StockCardEntryType.CREDIT, 5L, null, null));
+    }
+    mapper.addToTotalQuantityOnHand(defaultCard.getId(), 15L, null);
+
+    List<StockCardSummaryRow> rows = mapper.getStockCardSummaries(defaultFacility.getId(), null, null, false);
+
+    assertThat(rows.size(), is(1));
+    assertThat(rows.get(0).getStockCardId(), is(defaultCard.getId()));
+    assertThat(rows.get(0).getProductCode(), is(defaultProduct.getCode()));
+    assertEquals(Long.valueOf(15L), rows.get(0).getTotalQuantityOnHand());
+    assertEquals(null, rows.get(0).getLotQuantityOnHand());
+    assertThat(mapper.getStockCardSummaries(defaultFacility.getId(), -1L, "VIEW_STOCK_ON_HAND", false).size(),
+        is(0));
+  }
+
+  @Test
+  public void shouldAggregateStockOnHandOfFacilitiesInOneQuery() {
+    mapper.addToTotalQuantityOnHand(defaultCard.getId(), 15L, null);
+    List<Long> facilityIds = Collections.singletonList(defaultFacility.getId());
+
+    List<StockOnHandAggregateRow> rows = mapper.getStockOnHandAggregates(facilityIds, null, null, null);
+
+    assertThat(rows.size(), is(2));
+    assertThat(rows.get(0).getLevel(), is(StockOnHandAggregateRow.PRODUCT));
+    assertEquals(Long.valueOf(15L), rows.get(0).getTotalQuantityOnHand());
+    assertThat(rows.get(1).getLevel(), is(StockOnHandAggregateRow.FACILITY));
+    assertThat(rows.get(1).getFacilityId(), is(defaultFacility.getId()));
+    assertEquals(Long.valueOf(15L), rows.get(1).getTotalQuantityOnHand());
+    assertThat(mapper.getStockOnHandAggregates(facilityIds, Collections.singletonList("unknown"), null, null).size(),
+        is(0));
+    assertThat(mapper.getStockOnHandAggregates(facilityIds, null, -1L, "VIEW_STOCK_ON_HAND").size(), is(0));
+  }
+
+  @Test
+  public void shouldGetBalancesOfStockCardsAndRequestedLotsOnHand() {
+    mapper.addToTotalQuantityOnHand(defaultCard.getId(), 15L, null);
+
+    List<StockCardBalanceRow> balances = mapper.getBalancesForUpdate(Collections.singletonList(defaultCard.getId()),
+        Collections.<Long>emptyList());
+
+    assertThat(balances.size(), is(1));
+    assertEquals(Long.valueOf(15L), balances.get(0).getTotalQuantityOnHand());
+    assertEquals(null, balances.get(0).getLotOnHandId());
+  }
+
+  @Test
+  public void shouldGetBalanceAsOfDayFromSnapshotsAndEntriesOfItsMonth() {
+    StockCardEntry january = new StockCardEntry(defaultCard, StockCardEntryType.CREDIT, 10L,
+        DateUtil.parseDate("2016-01-15 00:00:00"), null);
+    StockCardEntry earlyMarch = new StockCardEntry(defaultCard, StockCardEntryType.CREDIT, 5L,
+        DateUtil.parseDate("2016-03-02 00:00:00"), null);
+    StockCardEntry lateMarch = new StockCardEntry(defaultCard, StockCardEntryType.DEBIT, -3L,
+        DateUtil.parseDate("2016-03-20 00:00:00"), null);
+    mapper.insertEntry(january);
+    mapper.insertEntry(lateMarch);
+    List<Long> entryIds = Arrays.asList(january.getId(), lateMarch.getId());
+    mapper.insertMissingStockCardSnapshots(entryIds);
+    mapper.addToStockCardSnapshots(entryIds);
+
+    // an entry back-dated into a month before an existing snapshot moves that snapshot too
+    mapper.insertEntry(earlyMarch);
+    entryIds = Collections.singletonList(earlyMarch.getId());
+    mapper.insertMissingStockCardSnapshots(entryIds);
+    mapper.addToStockCardSnapshots(entryIds);
+
+    assertThat(balanceAsOf("2015-12-31"), is(0L));
+    assertThat(balanceAsOf("2016-02-10"), is(10L));
+    assertThat(balanceAsOf("2016-03-02"), is(15L));
+    assertThat(balanceAsOf("2016-03-31"), is(12L));
+    assertThat(balanceAsOf("2016-06-01"), is(12L));
+  }
+
+  private long balanceAsOf(String day) {
+    List<StockCardBalanceRow> balances = mapper.getBalancesAsOf(Collections.singletonList(defaultCard.getId()),
+        DateUtil.parseDate(day + " 00:00:00"));
+    return balances.get(0).getTotalQuantityOnHand();
+  }
+
+  @Test
+  public void shouldInsertOnlyEventIdsNotRecordedBefore() {
+    List<String> inserted = mapper.insertEventIds(defaultFacility.getId(), Arrays.asList("event-1", "event-2"));
+    assertThat(inserted.size(), is(2));
+
+    inserted = mapper.insertEventIds(defaultFacility.getId(), Arrays.asList("event-2", "event-3"));
+    assertThat(inserted, is(Collections.singletonList("event-3")));
+  }
+
   @Test
   public void shouldReturnLastUpdatedDateOfStockDataByFacilityId() throws SQLException {
     Product product1 = make(a(ProductBuilder.defaultProduct, with(active, true), with(code, "Prod1")));
@@ -170,4 +507,82 @@ public class StockCardMapperIT {
     Date lastUpdatedTime = mapper.getLastUpdatedTimeforStockDataByFacility(defaultFacility.getId());
     assertEquals("2025-12-12 12:12:12", DateUtil.formatDate(lastUpdatedTime));
   }
+
+  private static List<String> referenceNumbers(List<StockCardEntry> entries) {
+    List<String> referenceNumbers = new ArrayList<>();
+    for (StockCardEntry entry : entries) {
+      referenceNumbers.add(entry.getReferenceNumber());
+    }
+    return referenceNumbers;
+  }
+
+  private long insertId(String insert, Object... params) throws SQLException {
+    ResultSet resultSet = queryExecutor.execute(insert + " RETURNING id", params);
+    resultSet.next();
+    return resultSet.getLong(1);
+  }
+
+  private long insertFacility(String code) {
+    Facility facility = make(a(FacilityBuilder.defaultFacility, with(FacilityBuilder.code, code)));
+    facilityMapper.insert(facility);
+    return facility.getId();
+  }
+
+  private long insertProgramOfProduct(String programCode, Long productId) throws SQLException {
+    long programId = insertId("INSERT INTO programs (code, name, active) VALUES (?, ?, TRUE)", programCode,
+        programCode);
+    queryExecutor.executeUpdate("INSERT INTO program_products (programid, productid, dosespermonth, active)" +
+        " VALUES (?, ?, 1, TRUE)", programId, productId);
+    return programId;
+  }
+
+  private long insertUser(String userName, Long homeFacilityId) throws SQLException {
+    return insertId("INSERT INTO users (username, firstname, lastname, email, facilityid, active)" +
+        " VALUES (?, ?, ?, ?, ?, TRUE)", userName, userName, userName, userName + "@openlmis.org", homeFacilityId);
+  }
+
+  private void assignRole(long userId, String rightName, long programId, Long supervisoryNodeId)
+      throws SQLException {
+    long roleId = insertId("INSERT INTO roles (name) VALUES (?)", "role-" + userId + "-" + rightName);
+    queryExecutor.executeUpdate("INSERT INTO role_rights (roleid, rightname) VALUES (?, ?)", roleId, rightName);
+    queryExecutor.executeUpdate("INSERT INTO role_assignments (userid, roleid, programid, supervisorynodeid)" +
+        " VALUES (?, ?, ?, ?)", userId, roleId, programId, supervisoryNodeId);
+  }
+
+  private long insertSupervisoryNode(String code, Long parentId) throws SQLException {
+    return insertId("INSERT INTO supervisory_nodes (code, name, facilityid, parentid) VALUES (?, ?, ?, ?)", code,
+        code, defaultFacility.getId(), parentId);
+  }
+
+  private long insertRequisitionGroup(String code, long supervisoryNodeId, long memberFacilityId)
+      throws SQLException {
+    long requisitionGroupId = insertId("INSERT INTO requisition_groups (code, name, supervisorynodeid)" +
+        " VALUES (?, ?, ?)", code, code, supervisoryNodeId);
+    queryExecutor.executeUpdate("INSERT INTO requisition_group_members (requisitiongroupid, facilityid)" +
+        " VALUES (?, ?)", requisitionGroupId, memberFacilityId);
+    return requisitionGroupId;
+  }
+
+  private void scheduleProgram(long requisitionGroupId, long programId) throws SQLException {
+    long scheduleId = insertId("INSERT INTO processing_schedules (code, name) VALUES (?, ?)",
+        "S-" + requisitionGroupId, "S-" + requisitionGroupId);
+    queryExecutor.executeUpdate("INSERT INTO requisition_group_program_schedules" +
+        " (requisitiongroupid, programid, scheduleid, directdelivery) VALUES (?, ?, ?, TRUE)",
+        requisitionGroupId, programId, scheduleId);
+  }
+
+  private long currentTxid() throws SQLException {
+    ResultSet resultSet = queryExecutor.execute("SELECT txid_current()");
+    resultSet.next();
+    return resultSet.getLong(1);
+  }
+
+  private String explain(String query) throws SQLException {
+    StringBuilder plan = new StringBuilder();
+    ResultSet resultSet = queryExecutor.execute("EXPLAIN " + query);
+    while (resultSet.next()) {
+      plan.append(resultSet.getString(1)).append('\n');
+    }
+    return plan.toString();
+  }
 }
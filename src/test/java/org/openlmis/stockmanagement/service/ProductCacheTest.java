@@ -0,0 +1,75 @@
+package org.openlmis.stockmanagement.service;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.junit.runner.RunWith;
+import org.junit.runners.BlockJUnit4ClassRunner;
+import org.mockito.Mock;
+import org.openlmis.core.builder.ProductBuilder;
+import org.openlmis.core.domain.Product;
+import org.openlmis.core.service.ProductService;
+import org.openlmis.db.categories.UnitTests;
+import org.powermock.modules.junit4.PowerMockRunner;
+import org.powermock.modules.junit4.PowerMockRunnerDelegate;
+
+import static com.natpryce.makeiteasy.MakeItEasy.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@Category(UnitTests.class)
+@RunWith(PowerMockRunner.class)
+@PowerMockRunnerDelegate(BlockJUnit4ClassRunner.class)
+public class ProductCacheTest {
+
+    @Mock
+    private ProductService productService;
+
+    private ProductCache cache;
+
+    private static final Product defaultProduct;
+
+    static {
+        defaultProduct = make(a(ProductBuilder.defaultProduct, with(ProductBuilder.productId, 1L),
+            with(ProductBuilder.code, "CODE")));
+    }
+
+    @Before
+    public void setup() {
+        cache = new ProductCache(productService, 2, 60);
+    }
+
+    @Test
+    public void shouldLoadProductOnceByCode() {
+        when(productService.getByCode("CODE")).thenReturn(defaultProduct);
+
+        assertEquals(defaultProduct, cache.getByCode("CODE"));
+        assertEquals(defaultProduct, cache.getByCode("CODE"));
+
+        verify(productService, times(1)).getByCode("CODE");
+        assertEquals(1L, cache.getByCodeStats().hitCount());
+        assertEquals(1L, cache.getByCodeStats().missCount());
+    }
+
+    @Test
+    public void shouldLoadProductOnceById() {
+        when(productService.getById(1L)).thenReturn(defaultProduct);
+
+        assertEquals(defaultProduct, cache.getById(1L));
+        assertEquals(defaultProduct, cache.getById(1L));
+
+        verify(productService, times(1)).getById(1L);
+        assertEquals(1L, cache.getByIdStats().hitCount());
+    }
+
+    @Test
+    public void shouldNotCacheMissingProducts() {
+        assertNull(cache.getByCode("MISSING"));
+        assertNull(cache.getByCode("MISSING"));
+
+        verify(productService, times(2)).getByCode("MISSING");
+    }
+}
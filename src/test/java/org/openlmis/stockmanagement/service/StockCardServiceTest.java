@@ -10,7 +10,6 @@ import org.openlmis.core.builder.FacilityBuilder;
 import org.openlmis.core.builder.ProductBuilder;
 import org.openlmis.core.domain.Facility;
 import org.openlmis.core.domain.Product;
-import org.openlmis.core.repository.ProductRepository;
 import org.openlmis.core.service.FacilityService;
 import org.openlmis.db.categories.UnitTests;
 import org.openlmis.stockmanagement.domain.*;
@@ -18,12 +17,26 @@ import org.openlmis.stockmanagement.repository.LotRepository;
 import org.openlmis.stockmanagement.repository.StockCardRepository;
 import org.powermock.modules.junit4.PowerMockRunner;
 import org.powermock.modules.junit4.PowerMockRunnerDelegate;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionStatus;
 
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.List;
 
 import static com.natpryce.makeiteasy.MakeItEasy.*;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+import static org.mockito.AdditionalAnswers.returnsFirstArg;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 @Category(UnitTests.class)
@@ -35,7 +48,7 @@ public class StockCardServiceTest {
     private FacilityService facilityService;
 
     @Mock
-    private ProductRepository productRepository;
+    private ProductCache productCache;
 
     @Mock
     private LotRepository lotRepository;
@@ -43,8 +56,15 @@ public class StockCardServiceTest {
     @Mock
     private StockCardRepository repository;
 
+    @Mock
+    private PlatformTransactionManager transactionManager;
+
+    @Mock
+    private TransactionStatus transactionStatus;
+
     private StockCardService service;
 
+    private static final Long USER_ID = 1L;
     private static final Facility defaultFacility;
     private static final Product defaultProduct;
     private static final StockCard dummyCard;
@@ -82,7 +102,7 @@ public class StockCardServiceTest {
         expectedLotOnHand = LotOnHand.createZeroedLotOnHand(lot, dummyCard);
 
         service = new StockCardService(facilityService,
-                productRepository,
+                productCache,
                 lotRepository,
                 repository);
     }
@@ -100,6 +120,7 @@ public class StockCardServiceTest {
     public void shouldCreateNonExistingLot() {
         when(lotRepository.getLotOnHandByStockCardAndLotObject(stockCardId, lot)).thenReturn(null);
         when(lotRepository.getOrCreateLot(lot)).thenReturn(createdLot);
+        when(lotRepository.getOrCreateLotOnHand(any(LotOnHand.class))).thenAnswer(returnsFirstArg());
         LotOnHand lotOnHand = service.getOrCreateLotOnHand(lot, dummyCard);
 
         assertEquals(lotOnHand.getQuantityOnHand(), expectedLotOnHand.getQuantityOnHand());
@@ -179,4 +200,183 @@ public class StockCardServiceTest {
         // verify
         assertEquals(expectedLotOnHand, lotOnHand);
     }
+
+    @Test
+    public void shouldUpdateEachStockCardAndLotOnHandOnceForBatch() {
+        StockCard card = StockCard.createZeroedStockCard(defaultFacility, defaultProduct);
+        card.setId(2L);
+        StockCard sameCard = StockCard.createZeroedStockCard(defaultFacility, defaultProduct);
+        sameCard.setId(2L);
+        LotOnHand lotOnHand = LotOnHand.createZeroedLotOnHand(lot, card);
+        lotOnHand.setId(3L);
+
+        StockCardEntry first = new StockCardEntry(card, StockCardEntryType.CREDIT, 10L, null, null);
+        first.setLotOnHand(lotOnHand);
+        first.setModifiedBy(USER_ID);
+        StockCardEntry second = new StockCardEntry(sameCard, StockCardEntryType.DEBIT, -4L, null, null);
+        second.setModifiedBy(USER_ID);
+        List<StockCardEntry> entries = Arrays.asList(first, second);
+
+        service.addStockCardEntries(entries);
+
+        verify(repository).persistStockCardEntries(entries);
+        verify(repository, times(1)).addToTotalQuantityOnHand(any(StockCard.class), anyLong(), anyLong());
+        verify(repository).addToTotalQuantityOnHand(card, 6L, USER_ID);
+        verify(lotRepository, times(1)).addToQuantityOnHand(lotOnHand, 10L, USER_ID);
+    }
+
+    @Test
+    public void shouldAddEntryQuantityInDatabase() {
+        LotOnHand lotOnHand = LotOnHand.createZeroedLotOnHand(lot, dummyCard);
+        lotOnHand.setId(3L);
+        StockCardEntry entry = new StockCardEntry(dummyCard, StockCardEntryType.DEBIT, -4L, null, null);
+        entry.setLotOnHand(lotOnHand);
+        entry.setModifiedBy(USER_ID);
+
+        service.addStockCardEntries(Collections.singletonList(entry));
+
+        verify(repository).persistStockCardEntries(Collections.singletonList(entry));
+        verify(repository).addToTotalQuantityOnHand(dummyCard, -4L, USER_ID);
+        verify(lotRepository).addToQuantityOnHand(lotOnHand, -4L, USER_ID);
+    }
+
+    @Test
+    public void shouldAddEntriesOfEachStockCardInItsOwnTransaction() {
+        service = new StockCardService(facilityService, productCache, lotRepository, repository,
+                transactionManager, 2);
+        when(transactionManager.getTransaction(any(TransactionDefinition.class))).thenReturn(transactionStatus);
+        StockCard otherCard = StockCard.createZeroedStockCard(defaultFacility, defaultProduct);
+        otherCard.setId(5L);
+
+        StockCardEntry first = new StockCardEntry(dummyCard, StockCardEntryType.CREDIT, 10L, null, null);
+        StockCardEntry second = new StockCardEntry(otherCard, StockCardEntryType.CREDIT, 7L, null, null);
+        StockCardEntry third = new StockCardEntry(dummyCard, StockCardEntryType.DEBIT, -4L, null, null);
+
+        service.addStockCardEntriesByCard(defaultFacility.getId(), Arrays.asList(first, second, third));
+
+        verify(repository).persistStockCardEntries(Arrays.asList(first, third));
+        verify(repository).persistStockCardEntries(Collections.singletonList(second));
+        verify(repository).addToTotalQuantityOnHand(dummyCard, 6L, null);
+        verify(repository).addToTotalQuantityOnHand(otherCard, 7L, null);
+        verify(transactionManager, times(2)).commit(transactionStatus);
+        service.shutdownApplyExecutor();
+    }
+
+    @Test
+    public void shouldSkipEntriesOfEventsRecordedBeforeWhenAddingByCard() {
+        service = new StockCardService(facilityService, productCache, lotRepository, repository,
+                transactionManager, 1);
+        when(transactionManager.getTransaction(any(TransactionDefinition.class))).thenReturn(transactionStatus);
+        StockCardEntry recorded = new StockCardEntry(dummyCard, StockCardEntryType.CREDIT, 10L, null, null);
+        recorded.setEventId("event-1");
+        StockCardEntry notRecorded = new StockCardEntry(dummyCard, StockCardEntryType.CREDIT, 7L, null, null);
+        notRecorded.setEventId("event-2");
+        when(repository.claimEventIds(defaultFacility.getId(), Arrays.asList("event-1", "event-2"))).thenReturn(
+                Collections.singleton("event-2"));
+
+        service.addStockCardEntriesByCard(defaultFacility.getId(), Arrays.asList(recorded, notRecorded));
+
+        verify(repository).persistStockCardEntries(Collections.singletonList(notRecorded));
+        verify(repository).addToTotalQuantityOnHand(dummyCard, 7L, null);
+    }
+
+    @Test
+    public void shouldRollBackOnlyTheStockCardThatFailed() {
+        service = new StockCardService(facilityService, productCache, lotRepository, repository,
+                transactionManager, 2);
+        when(transactionManager.getTransaction(any(TransactionDefinition.class))).thenReturn(transactionStatus);
+        StockCard otherCard = StockCard.createZeroedStockCard(defaultFacility, defaultProduct);
+        otherCard.setId(5L);
+        StockCardEntry failing = new StockCardEntry(dummyCard, StockCardEntryType.CREDIT, 10L, null, null);
+        StockCardEntry succeeding = new StockCardEntry(otherCard, StockCardEntryType.CREDIT, 7L, null, null);
+        doThrow(new IllegalStateException("failed")).when(repository)
+                .persistStockCardEntries(Collections.singletonList(failing));
+
+        try {
+            service.addStockCardEntriesByCard(defaultFacility.getId(), Arrays.asList(failing, succeeding));
+            fail("Expected the failure of the first stock card");
+        } catch (IllegalStateException e) {
+            assertEquals("failed", e.getMessage());
+        }
+
+        verify(repository).persistStockCardEntries(Collections.singletonList(succeeding));
+        verify(transactionManager).rollback(transactionStatus);
+        verify(transactionManager).commit(transactionStatus);
+        service.shutdownApplyExecutor();
+    }
+
+    @Test
+    public void shouldReconcileCountsWithBalancesReadInOneQuery() {
+        StockCard otherCard = StockCard.createZeroedStockCard(defaultFacility, defaultProduct);
+        otherCard.setId(5L);
+        LotOnHand lotOnHand = LotOnHand.createZeroedLotOnHand(lot, dummyCard);
+        lotOnHand.setId(3L);
+        when(repository.getBalancesForUpdate(Arrays.asList(1L, 5L), Collections.singletonList(3L))).thenReturn(
+                Arrays.asList(balance(1L, 20L, 3L, 8L), balance(5L, 10L, null, null)));
+
+        StockCardEntry lotCount = new StockCardEntry(dummyCard, StockCardEntryType.PHYSICAL_COUNT, 5L, null, null);
+        lotCount.setLotOnHand(lotOnHand);
+        StockCardEntry cardCount = new StockCardEntry(otherCard, StockCardEntryType.PHYSICAL_COUNT, 12L, null, null);
+        StockCardEntry issue = new StockCardEntry(otherCard, StockCardEntryType.DEBIT, -4L, null, null);
+        StockCardEntry recount = new StockCardEntry(otherCard, StockCardEntryType.PHYSICAL_COUNT, 12L, null, null);
+
+        service.addStockCardEntries(Arrays.asList(lotCount, cardCount, issue, recount));
+
+        assertEquals(Long.valueOf(-3L), lotCount.getQuantity());
+        assertEquals(Long.valueOf(2L), cardCount.getQuantity());
+        assertEquals(Long.valueOf(4L), recount.getQuantity());
+        verify(repository, times(1)).getBalancesForUpdate(any(List.class), any(List.class));
+        verify(repository).addToTotalQuantityOnHand(dummyCard, -3L, null);
+        verify(repository).addToTotalQuantityOnHand(otherCard, 2L, null);
+        verify(lotRepository).addToQuantityOnHand(lotOnHand, -3L, null);
+    }
+
+    @Test
+    public void shouldNotReadBalancesWithoutCounts() {
+        StockCardEntry entry = new StockCardEntry(dummyCard, StockCardEntryType.CREDIT, 10L, null, null);
+
+        service.addStockCardEntries(Collections.singletonList(entry));
+
+        verify(repository, never()).getBalancesForUpdate(any(List.class), any(List.class));
+    }
+
+    @Test
+    public void shouldApplyBalancesAsOfDayToStockCardsAndLotsOnHand() {
+        Date asOf = new Date(0);
+        StockCard card = StockCard.createZeroedStockCard(defaultFacility, defaultProduct);
+        card.setId(2L);
+        card.setTotalQuantityOnHand(50L);
+        LotOnHand lotOnHand = LotOnHand.createZeroedLotOnHand(lot, card);
+        lotOnHand.setId(3L);
+        lotOnHand.setQuantityOnHand(30L);
+        card.setLotsOnHand(Collections.singletonList(lotOnHand));
+        card.setEntries(Collections.singletonList(new StockCardEntry(card, StockCardEntryType.CREDIT, 50L, null, null)));
+        when(repository.getBalancesAsOf(Collections.singletonList(2L), asOf)).thenReturn(
+                Collections.singletonList(balance(2L, 20L, 3L, 5L)));
+
+        service.applyBalancesAsOf(Collections.singletonList(card), asOf);
+
+        assertEquals(Long.valueOf(20L), card.getTotalQuantityOnHand());
+        assertEquals(Long.valueOf(5L), lotOnHand.getQuantityOnHand());
+        assertEquals(0, card.getEntries().size());
+    }
+
+    @Test
+    public void shouldUpdateBalanceSnapshotsOfBatch() {
+        StockCardEntry entry = new StockCardEntry(dummyCard, StockCardEntryType.CREDIT, 10L, null, null);
+        List<StockCardEntry> entries = Collections.singletonList(entry);
+
+        service.addStockCardEntries(entries);
+
+        verify(repository).updateBalanceSnapshots(entries);
+    }
+
+    private static StockCardBalanceRow balance(Long stockCardId, Long total, Long lotOnHandId, Long lotQuantity) {
+        StockCardBalanceRow row = new StockCardBalanceRow();
+        row.setStockCardId(stockCardId);
+        row.setTotalQuantityOnHand(total);
+        row.setLotOnHandId(lotOnHandId);
+        row.setLotQuantityOnHand(lotQuantity);
+        return row;
+    }
 }
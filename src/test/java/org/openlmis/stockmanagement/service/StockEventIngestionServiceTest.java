@@ -0,0 +1,241 @@
+package org.openlmis.stockmanagement.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.junit.runner.RunWith;
+import org.junit.runners.BlockJUnit4ClassRunner;
+import org.mockito.Mock;
+import org.openlmis.db.categories.UnitTests;
+import org.openlmis.stockmanagement.domain.StockEventJob;
+import org.openlmis.stockmanagement.domain.StockEventJobStatus;
+import org.openlmis.stockmanagement.dto.StockEvent;
+import org.openlmis.stockmanagement.repository.StockEventJobRepository;
+import org.powermock.modules.junit4.PowerMockRunner;
+import org.powermock.modules.junit4.PowerMockRunnerDelegate;
+import org.springframework.http.HttpStatus;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyList;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@Category(UnitTests.class)
+@RunWith(PowerMockRunner.class)
+@PowerMockRunnerDelegate(BlockJUnit4ClassRunner.class)
+public class StockEventIngestionServiceTest {
+
+  private static final String EVENTS = "[{\"type\": \"RECEIPT\", \"facilityId\": 2, \"productCode\": \"P1\", \"quantity\": 10}]";
+
+  @Mock
+  private StockEventJobRepository jobRepository;
+
+  @Mock
+  private StockEventService stockEventService;
+
+  // runs jobs on the submitting thread
+  private static ThreadPoolExecutor inlineExecutor() {
+    return new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(1)) {
+      @Override
+      public void execute(Runnable command) {
+        command.run();
+      }
+    };
+  }
+
+  @Test
+  public void shouldStoreAndProcessSubmittedEvents() {
+    StockEventIngestionService service = new StockEventIngestionService(jobRepository, stockEventService,
+        new ObjectMapper(), inlineExecutor(), 30, 100, 10000, 30);
+    StockEventJob claimed = new StockEventJob(1L, 2L, EVENTS, 1);
+    when(jobRepository.claim(any(Long.class))).thenReturn(claimed);
+
+    StockEventJob job = service.submit(1L, 2L, EVENTS, 1);
+
+    assertEquals(StockEventJobStatus.QUEUED, job.getStatus());
+    verify(jobRepository).insert(job);
+    verify(stockEventService).processStockEvents(eq(1L), eq(2L), anyList());
+    verify(jobRepository).markSucceeded(job.getId());
+  }
+
+  @Test
+  public void shouldProcessEventsByCardWhenEntriesAreAddedInParallel() {
+    StockEventIngestionService service = new StockEventIngestionService(jobRepository, stockEventService,
+        new ObjectMapper(), inlineExecutor(), 30, 100, 10000, 30);
+    when(jobRepository.claim(5L)).thenReturn(new StockEventJob(1L, 2L, EVENTS, 1));
+    when(stockEventService.isProcessedByCard()).thenReturn(true);
+
+    service.process(5L);
+
+    verify(stockEventService).processStockEventsByCard(eq(1L), eq(2L), anyList());
+    verify(stockEventService, never()).processStockEvents(anyLong(), any(Long.class), anyList());
+    verify(jobRepository).markSucceeded(5L);
+  }
+
+  @Test
+  public void shouldRejectSubmissionsWithoutStoringThemWhenQueueIsFull() {
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<Runnable>(1));
+    executor.getQueue().offer(new Runnable() {
+      @Override
+      public void run() {
+      }
+    });
+    StockEventIngestionService service = new StockEventIngestionService(jobRepository, stockEventService,
+        new ObjectMapper(), executor, 30, 100, 10000, 30);
+
+    try {
+      service.submit(1L, 2L, EVENTS, 1);
+      fail("Expected the queue to be full");
+    } catch (StockEventQueueFullException e) {
+      assertEquals(30, e.getRetryAfterSeconds());
+    }
+    verify(jobRepository, never()).insert(any(StockEventJob.class));
+  }
+
+  @Test
+  public void shouldFailJobWhenItCanNotBeQueued() {
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<Runnable>(1));
+    executor.shutdown();
+    StockEventIngestionService service = new StockEventIngestionService(jobRepository, stockEventService,
+        new ObjectMapper(), executor, 30, 100, 10000, 30);
+
+    try {
+      service.submit(1L, 2L, EVENTS, 1);
+      fail("Expected the job to be rejected");
+    } catch (StockEventQueueFullException e) {
+      verify(jobRepository).markFailed(any(Long.class), eq("Stock event queue is full"));
+    }
+  }
+
+  @Test
+  public void shouldRecordWhyProcessingFailed() {
+    StockEventIngestionService service = new StockEventIngestionService(jobRepository, stockEventService,
+        new ObjectMapper(), inlineExecutor(), 30, 100, 10000, 30);
+    when(jobRepository.claim(5L)).thenReturn(new StockEventJob(1L, 2L, EVENTS, 1));
+    doThrow(new StockEventProcessingException("error.product.unknown", HttpStatus.BAD_REQUEST))
+        .when(stockEventService).processStockEvents(anyLong(), any(Long.class), anyList());
+
+    service.process(5L);
+
+    verify(jobRepository).markFailed(5L, "error.product.unknown");
+    verify(jobRepository, never()).markSucceeded(5L);
+  }
+
+  @Test
+  public void shouldNotRecordMessagesOfUnexpectedFailures() {
+    StockEventIngestionService service = new StockEventIngestionService(jobRepository, stockEventService,
+        new ObjectMapper(), inlineExecutor(), 30, 100, 10000, 30);
+    when(jobRepository.claim(5L)).thenReturn(new StockEventJob(1L, 2L, EVENTS, 1));
+    doThrow(new IllegalStateException("duplicate key value violates unique constraint \"stock_cards_pkey\""))
+        .when(stockEventService).processStockEvents(anyLong(), any(Long.class), anyList());
+
+    service.process(5L);
+
+    verify(jobRepository).markFailed(5L, StockEventIngestionService.PROCESSING_ERROR);
+  }
+
+  @Test
+  public void shouldNotProcessJobClaimedByAnotherWorker() {
+    StockEventIngestionService service = new StockEventIngestionService(jobRepository, stockEventService,
+        new ObjectMapper(), inlineExecutor(), 30, 100, 10000, 30);
+    when(jobRepository.claim(5L)).thenReturn(null);
+
+    service.process(5L);
+
+    verify(stockEventService, never()).processStockEvents(anyLong(), any(Long.class), anyList());
+  }
+
+  @Test
+  public void shouldFailStaleProcessingJobsAndQueueStoredJobsWhenSweeping() {
+    StockEventIngestionService service = new StockEventIngestionService(jobRepository, stockEventService,
+        new ObjectMapper(), inlineExecutor(), 30, 100, 10000, 45);
+    when(jobRepository.getQueuedIds()).thenReturn(Collections.singletonList(5L));
+    when(jobRepository.claim(5L)).thenReturn(new StockEventJob(1L, 2L, EVENTS, 1));
+
+    service.sweep();
+
+    verify(jobRepository).failStaleProcessing(eq(45), anyString());
+    verify(jobRepository).markSucceeded(5L);
+  }
+
+  @Test
+  public void shouldQueueStoredJobsAsQueueFreesUp() {
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<Runnable>(2));
+    CountDownLatch release = blockWorker(executor);
+    StockEventIngestionService service = new StockEventIngestionService(jobRepository, stockEventService,
+        new ObjectMapper(), executor, 30, 100, 10000, 30);
+
+    // a job in the queue is not queued again
+    when(jobRepository.getQueuedIds()).thenReturn(Collections.singletonList(5L));
+    service.sweep();
+    service.sweep();
+    assertEquals(1, executor.getQueue().size());
+
+    // jobs that don't fit stay stored for a later sweep
+    when(jobRepository.getQueuedIds()).thenReturn(Arrays.asList(5L, 6L, 7L));
+    service.sweep();
+    assertEquals(2, executor.getQueue().size());
+
+    release.countDown();
+    executor.shutdown();
+  }
+
+  // occupies the only worker of the executor until the returned latch is released
+  private static CountDownLatch blockWorker(ThreadPoolExecutor executor) {
+    final CountDownLatch release = new CountDownLatch(1);
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    });
+    return release;
+  }
+
+  @Test
+  public void shouldParseEvents() {
+    List<StockEvent> events = StockEventIngestionService.parseEvents(new ObjectMapper(), EVENTS);
+
+    assertEquals(1, events.size());
+    assertEquals("P1", events.get(0).getProductCode());
+    assertTrue(events.get(0).isValid());
+  }
+
+  @Test
+  public void shouldNotStoreJobsOverTheLimits() {
+    StockEventIngestionService service = new StockEventIngestionService(jobRepository, stockEventService,
+        new ObjectMapper(), inlineExecutor(), 30, 1, EVENTS.length(), 30);
+
+    assertTrue(service.hasTooManyEvents(2));
+    assertTrue(service.isBodyTooLong(EVENTS + " "));
+    try {
+      service.submit(1L, 2L, "[" + EVENTS.substring(1, EVENTS.length() - 1) + ", {}]", 2);
+      fail("Expected the job to be rejected");
+    } catch (IllegalArgumentException e) {
+      verify(jobRepository, never()).insert(any(StockEventJob.class));
+    }
+  }
+}
@@ -0,0 +1,55 @@
+package org.openlmis.stockmanagement.util;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.junit.runners.BlockJUnit4ClassRunner;
+import org.openlmis.db.categories.UnitTests;
+import org.openlmis.stockmanagement.domain.StockCardEntryKV;
+import org.powermock.modules.junit4.PowerMockRunnerDelegate;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+@Category(UnitTests.class)
+@PowerMockRunnerDelegate(BlockJUnit4ClassRunner.class)
+public class StockManagementUtilsTest {
+
+  @Test
+  public void shouldReduceEachKeyToItsLatestSyncedValue() {
+    List<StockCardEntryKV> keyValues = new ArrayList<>();
+    keyValues.add(new StockCardEntryKV("vvmstatus", "1", new Date(1000)));
+    keyValues.add(new StockCardEntryKV("expirationdate", "2016-01-01", new Date(1000)));
+    keyValues.add(new StockCardEntryKV("vvmstatus", "3", new Date(3000)));
+    keyValues.add(new StockCardEntryKV("vvmstatus", "2", new Date(2000)));
+
+    Map<String, String> aggregate = StockManagementUtils.getKeyValueAggregate(keyValues, new LatestSyncedStrategy());
+
+    assertEquals(2, aggregate.size());
+    assertEquals("3", aggregate.get("vvmstatus"));
+    assertEquals("2016-01-01", aggregate.get("expirationdate"));
+  }
+
+  @Test
+  public void shouldCompareKeysIgnoringCase() {
+    List<StockCardEntryKV> keyValues = new ArrayList<>();
+    keyValues.add(new StockCardEntryKV("VVMStatus", "1", new Date(1000)));
+    keyValues.add(new StockCardEntryKV("vvmstatus", "2", new Date(2000)));
+
+    Map<String, String> aggregate = StockManagementUtils.getKeyValueAggregate(keyValues, new LatestSyncedStrategy());
+
+    assertEquals(1, aggregate.size());
+    assertEquals("2", aggregate.get("vvmstatus"));
+  }
+
+  @Test
+  public void shouldGetEmptyAggregateFromEmptyKeyValues() {
+    Map<String, String> aggregate = StockManagementUtils.getKeyValueAggregate(new ArrayList<StockCardEntryKV>(),
+        new LatestSyncedStrategy());
+
+    assertEquals(0, aggregate.size());
+  }
+}